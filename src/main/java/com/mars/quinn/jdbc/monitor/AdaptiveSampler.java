@@ -0,0 +1,74 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feedback controller of an adaptive {@link SamplingPolicy}. It adds up the
+ * time the monitor spends on sampled transactions and the time those
+ * transactions take, and once per window moves the sample rate towards the
+ * rate at which the overhead would be {@code budget} of all transaction time.
+ */
+final class AdaptiveSampler {
+
+	static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final double budget;
+
+	private final double minRate;
+
+	private final LongAdder overheadNanos = new LongAdder();
+
+	private final LongAdder transactionNanos = new LongAdder();
+
+	private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+	private volatile double rate = 1;
+
+	AdaptiveSampler(double budget, double minRate) {
+		this.budget = budget;
+		this.minRate = minRate;
+	}
+
+	boolean sample() {
+		double current = rate;
+		return current >= 1 || ThreadLocalRandom.current().nextDouble() < current;
+	}
+
+	double getRate() {
+		return rate;
+	}
+
+	void addOverhead(long nanos) {
+		overheadNanos.add(nanos);
+	}
+
+	void addTransaction(long nanos) {
+		transactionNanos.add(nanos);
+		long now = System.nanoTime();
+		long start = windowStart.get();
+		if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+			adjust();
+		}
+	}
+
+	/**
+	 * Only sampled transactions are measured, so at rate r the overhead is
+	 * r * overhead / time of all transaction time and the budget is met at
+	 * r = budget * time / overhead. The rate moves halfway there each window
+	 * to ride out noisy windows.
+	 */
+	void adjust() {
+		long overhead = overheadNanos.sumThenReset();
+		long time = transactionNanos.sumThenReset();
+		if (overhead <= 0 || time <= 0) {
+			return;
+		}
+		double target = Math.max(minRate, Math.min(1, budget * time / overhead));
+		double current = rate;
+		rate = Math.max(minRate, Math.min(1, current + (target - current) / 2));
+	}
+
+}
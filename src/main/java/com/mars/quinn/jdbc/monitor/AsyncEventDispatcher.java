@@ -0,0 +1,248 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Hands transaction events from the committing threads to one consumer thread
+ * that runs the listeners. Events pass through a bounded ring of preallocated
+ * slots: producers claim a slot with a CAS on the claim sequence and mark it
+ * published with the slot's round, so any number of threads can publish
+ * without a lock. Shutting down sets a bit in the claim sequence, so no slot
+ * can be claimed after the consumer's last one.
+ */
+public class AsyncEventDispatcher {
+
+	/**
+	 * How the consumer waits for events.
+	 */
+	public enum WaitStrategy {
+		/** Park until a producer wakes it. Costs producers an unpark when idle. */
+		BLOCKING,
+		/** Spin, then yield, then park for short periods. */
+		SLEEPING,
+		/** Yield the CPU between checks. */
+		YIELDING,
+		/** Spin on the ring. Lowest latency, burns a core. */
+		BUSY_SPIN
+	}
+
+	/**
+	 * What a producer does when the ring is full.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the event and count it. */
+		DROP,
+		/**
+		 * Wait for the consumer to free a slot, spinning, then yielding, then
+		 * parking for growing periods up to 100 microseconds.
+		 */
+		BLOCK
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(AsyncEventDispatcher.class);
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Added to the claim sequence on shutdown.
+	 */
+	private static final long CLOSED = 1L << 62;
+
+	private final DataSourceMonitor dataSource;
+
+	private final int mask;
+
+	private final int shift;
+
+	private final TransactionInfo[] transactions;
+
+	private final EventType[] types;
+
+	private final AtomicIntegerArray rounds;
+
+	private final AtomicLong claimed = new AtomicLong();
+
+	private final AtomicLong consumed = new AtomicLong();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final WaitStrategy waitStrategy;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final Thread consumer;
+
+	private volatile boolean consumerWaiting;
+
+	private volatile boolean running = true;
+
+	AsyncEventDispatcher(DataSourceMonitor dataSource, int capacity, WaitStrategy waitStrategy,
+			OverflowPolicy overflowPolicy) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		this.dataSource = dataSource;
+		this.mask = capacity - 1;
+		this.shift = Integer.numberOfTrailingZeros(capacity);
+		this.transactions = new TransactionInfo[capacity];
+		this.types = new EventType[capacity];
+		this.rounds = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			rounds.set(i, -1);
+		}
+		this.waitStrategy = waitStrategy;
+		this.overflowPolicy = overflowPolicy;
+		this.consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "jdbc-monitor-dispatcher");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	/**
+	 * @return false if the event was dropped or the dispatcher is shut down
+	 */
+	boolean publish(TransactionInfo transaction, EventType type) {
+		long sequence;
+		int full = 0;
+		while (true) {
+			sequence = claimed.get();
+			if (sequence >= CLOSED) {
+				return false;
+			}
+			if (sequence - consumed.get() > mask) {
+				if (overflowPolicy == OverflowPolicy.DROP) {
+					dropped.increment();
+					return false;
+				}
+				full = backOff(full);
+				continue;
+			}
+			if (claimed.compareAndSet(sequence, sequence + 1)) {
+				break;
+			}
+		}
+		int index = (int) sequence & mask;
+		transactions[index] = transaction;
+		types[index] = type;
+		rounds.set(index, (int) (sequence >>> shift));
+		if (consumerWaiting) {
+			LockSupport.unpark(consumer);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits a little longer each time a producer finds the ring full.
+	 */
+	private static int backOff(int full) {
+		if (full < SPIN_TRIES) {
+			return full + 1;
+		}
+		if (full < SPIN_TRIES * 2) {
+			Thread.yield();
+			return full + 1;
+		}
+		int doublings = full - SPIN_TRIES * 2;
+		LockSupport.parkNanos(Math.min(SLEEP_NANOS, 1000L << doublings));
+		return doublings < 7 ? full + 1 : full;
+	}
+
+	private void consume() {
+		long sequence = 0;
+		int idle = 0;
+		while (true) {
+			int index = (int) sequence & mask;
+			if (rounds.get(index) == (int) (sequence >>> shift)) {
+				TransactionInfo transaction = transactions[index];
+				EventType type = types[index];
+				transactions[index] = null;
+				types[index] = null;
+				consumed.lazySet(++sequence);
+				idle = 0;
+				try {
+					dataSource.deliverQueued(transaction, type);
+				} catch (RuntimeException e) {
+					logger.error("Transaction listener failed on " + type + " of " + transaction.getId(), e);
+				}
+			} else if (claimed.get() == (sequence | CLOSED)) {
+				return;
+			} else {
+				idle = await(sequence, idle);
+			}
+		}
+	}
+
+	private int await(long sequence, int idle) {
+		switch (waitStrategy) {
+		case BUSY_SPIN:
+			return idle;
+		case YIELDING:
+			Thread.yield();
+			return idle;
+		case SLEEPING:
+			if (idle < SPIN_TRIES) {
+				return idle + 1;
+			}
+			if (idle < SPIN_TRIES * 2) {
+				Thread.yield();
+				return idle + 1;
+			}
+			LockSupport.parkNanos(SLEEP_NANOS);
+			return idle;
+		default:
+			consumerWaiting = true;
+			if (running && rounds.get((int) sequence & mask) != (int) (sequence >>> shift)) {
+				LockSupport.parkNanos(this, SLEEP_NANOS * 10);
+			}
+			consumerWaiting = false;
+			return idle;
+		}
+	}
+
+	/**
+	 * @return events dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return events published but not yet delivered
+	 */
+	public long getBacklog() {
+		return (claimed.get() & ~CLOSED) - consumed.get();
+	}
+
+	public boolean isShutdown() {
+		return claimed.get() >= CLOSED;
+	}
+
+	/**
+	 * Stops accepting events, delivers what is queued and stops the consumer
+	 * thread. Producers waiting for space give up.
+	 */
+	public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		long sequence;
+		do {
+			sequence = claimed.get();
+		} while (sequence < CLOSED && !claimed.compareAndSet(sequence, sequence | CLOSED));
+		running = false;
+		LockSupport.unpark(consumer);
+		consumer.join(unit.toMillis(timeout));
+	}
+
+}
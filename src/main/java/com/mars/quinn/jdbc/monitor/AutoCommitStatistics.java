@@ -0,0 +1,43 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals for statements run in auto-commit mode. Each of them is its own
+ * implicit transaction and is only counted here and in the latency
+ * histograms, without a {@link TransactionInfo}.
+ */
+public final class AutoCommitStatistics {
+
+	private final LongAdder count = new LongAdder();
+
+	private final LongAdder failureCount = new LongAdder();
+
+	private final LongAdder totalNanos = new LongAdder();
+
+	void record(long elapsedNanos, boolean failed) {
+		count.increment();
+		totalNanos.add(elapsedNanos);
+		if (failed) {
+			failureCount.increment();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getFailureCount() {
+		return failureCount.sum();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", failures=" + getFailureCount() + ", total=" + getTotalNanos() + "ns";
+	}
+
+}
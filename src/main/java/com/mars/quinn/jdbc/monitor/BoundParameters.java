@@ -0,0 +1,234 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.math.BigDecimal;
+
+/**
+ * The parameters a prepared statement was executed with, copied from its
+ * {@link ParameterBuffer}. Values are kept in their compact form and only
+ * turned into text by {@link #render()}.
+ */
+public final class BoundParameters {
+
+	static final byte UNSET = 0;
+
+	static final byte NULL = 1;
+
+	static final byte BOOLEAN = 2;
+
+	static final byte INTEGER = 3;
+
+	static final byte FLOAT = 4;
+
+	static final byte DOUBLE = 5;
+
+	static final byte DECIMAL = 6;
+
+	static final byte STRING = 7;
+
+	static final byte BYTES = 8;
+
+	static final byte DATE = 9;
+
+	static final byte TIME = 10;
+
+	static final byte TIMESTAMP = 11;
+
+	static final byte STREAM = 12;
+
+	static final byte LOB = 13;
+
+	static final byte OBJECT = 14;
+
+	private final String sql;
+
+	private final byte[] types;
+
+	private final long[] bits;
+
+	private final Object[] refs;
+
+	BoundParameters(String sql, byte[] types, long[] bits, Object[] refs) {
+		this.sql = sql;
+		this.types = types;
+		this.bits = bits;
+		this.refs = refs;
+	}
+
+	/**
+	 * @return the statement as prepared, with its placeholders
+	 */
+	public String getSql() {
+		return sql;
+	}
+
+	public int size() {
+		return types.length;
+	}
+
+	/**
+	 * @param index
+	 *            the JDBC parameter index, starting at 1
+	 * @return the value as a SQL literal, or "?" when it was not set
+	 */
+	public String valueAt(int index) {
+		StringBuilder out = new StringBuilder();
+		appendValue(out, index - 1);
+		return out.toString();
+	}
+
+	/**
+	 * @return the statement with each placeholder replaced by its value
+	 */
+	public String render() {
+		StringBuilder out = new StringBuilder(sql.length() + types.length * 8);
+		int parameter = 0;
+		int length = sql.length();
+		for (int i = 0; i < length; i++) {
+			char c = sql.charAt(i);
+			if (c == '\'' || c == '"') {
+				int end = endOfQuoted(sql, i);
+				out.append(sql, i, end + 1);
+				i = end;
+			} else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+				int end = sql.indexOf('\n', i);
+				end = end < 0 ? length - 1 : end;
+				out.append(sql, i, end + 1);
+				i = end;
+			} else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+				int end = sql.indexOf("*/", i + 2);
+				end = end < 0 ? length - 1 : end + 1;
+				out.append(sql, i, end + 1);
+				i = end;
+			} else if (c == '?') {
+				appendValue(out, parameter++);
+			} else {
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the index of the quote closing the literal that starts at
+	 *         {@code start}, skipping backslash-escaped characters, or the last
+	 *         index when it is not closed
+	 */
+	private static int endOfQuoted(String sql, int start) {
+		char quote = sql.charAt(start);
+		int length = sql.length();
+		for (int i = start + 1; i < length; i++) {
+			char c = sql.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == quote) {
+				return i;
+			}
+		}
+		return length - 1;
+	}
+
+	private void appendValue(StringBuilder out, int i) {
+		byte type = i < types.length ? types[i] : UNSET;
+		switch (type) {
+		case NULL:
+			out.append("NULL");
+			break;
+		case BOOLEAN:
+			out.append(bits[i] != 0);
+			break;
+		case INTEGER:
+			out.append(bits[i]);
+			break;
+		case FLOAT:
+			out.append(Float.intBitsToFloat((int) bits[i]));
+			break;
+		case DOUBLE:
+			out.append(Double.longBitsToDouble(bits[i]));
+			break;
+		case DECIMAL:
+			out.append(((BigDecimal) refs[i]).toPlainString());
+			break;
+		case STRING:
+			appendString(out, (String) refs[i], bits[i]);
+			break;
+		case BYTES:
+			appendBytes(out, (byte[]) refs[i], bits[i]);
+			break;
+		case DATE:
+			out.append('\'').append(new java.sql.Date(bits[i])).append('\'');
+			break;
+		case TIME:
+			out.append('\'').append(new java.sql.Time(bits[i])).append('\'');
+			break;
+		case TIMESTAMP:
+			out.append('\'').append(new java.sql.Timestamp(bits[i])).append('\'');
+			break;
+		case STREAM:
+		case LOB:
+			out.append('<').append(refs[i]);
+			if (bits[i] >= 0) {
+				out.append(", ").append(bits[i]);
+			}
+			out.append('>');
+			break;
+		case OBJECT:
+			out.append('<').append(refs[i]).append('>');
+			break;
+		default:
+			out.append('?');
+		}
+	}
+
+	/**
+	 * Quotes a string the way MySQL Connector/J does when it inlines a string
+	 * parameter: quotes, backslashes and control characters are
+	 * backslash-escaped.
+	 */
+	private static void appendString(StringBuilder out, String value, long length) {
+		out.append('\'');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case 0:
+				out.append("\\0");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\u001a':
+				out.append("\\Z");
+				break;
+			case '\\':
+			case '\'':
+			case '"':
+				out.append('\\').append(c);
+				break;
+			default:
+				out.append(c);
+			}
+		}
+		out.append('\'');
+		if (length > value.length()) {
+			out.append("...(").append(length).append(" chars)");
+		}
+	}
+
+	private static void appendBytes(StringBuilder out, byte[] value, long length) {
+		out.append("0x");
+		for (byte b : value) {
+			out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		if (length > value.length) {
+			out.append("...(").append(length).append(" bytes)");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return render();
+	}
+
+}
@@ -0,0 +1,37 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.mars.quinn.jdbc.monitor.support.LazyStackTrace;
+
+/**
+ * Names the application frame that called into the monitor.
+ */
+final class CallSites {
+
+	static final String UNKNOWN = "unknown";
+
+	private static final Set<String> MONITOR_CLASSES = new HashSet<>(Arrays.asList(
+			LazyStackTrace.class.getName(), TransactionInfo.class.getName(), ConnectionMonitor.class.getName(),
+			StatementMonitor.class.getName(), PreparedStatementMonitor.class.getName(),
+			CallableStatementMonitor.class.getName(), DataSourceMonitor.class.getName()));
+
+	private CallSites() {
+	}
+
+	/**
+	 * @return the first frame outside the monitor, or {@link #UNKNOWN} when
+	 *         the trace has none
+	 */
+	static String of(StackTraceElement[] trace) {
+		for (StackTraceElement element : trace) {
+			if (!MONITOR_CLASSES.contains(element.getClassName())) {
+				return element.toString();
+			}
+		}
+		return UNKNOWN;
+	}
+
+}
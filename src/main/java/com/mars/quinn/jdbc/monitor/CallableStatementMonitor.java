@@ -19,14 +19,13 @@ import java.sql.Timestamp;
 import java.util.Calendar;
 import java.util.Map;
 
-import com.mars.quinn.jdbc.monitor.ConnectionMonitor.TransactionInfo;
 
 public class CallableStatementMonitor extends PreparedStatementMonitor implements CallableStatement {
 
 	private final CallableStatement callableStatement;
 	
-	public CallableStatementMonitor(CallableStatement callableStatement, TransactionInfo transaction) {
-		super(callableStatement, transaction);
+	public CallableStatementMonitor(CallableStatement callableStatement, ConnectionMonitor connection, String sql) {
+		super(callableStatement, connection, sql);
 		this.callableStatement = callableStatement;
 	}
 
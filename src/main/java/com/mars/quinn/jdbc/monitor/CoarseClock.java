@@ -0,0 +1,78 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link MonitorClock} whose readings are cached by a daemon thread once per
+ * tick, so reading it is a single volatile load. Durations shorter than the
+ * tick are reported as zero. Once closed, the clock stops its thread and reads
+ * the system clock directly, so connections still holding it keep valid
+ * timings.
+ */
+public class CoarseClock implements MonitorClock {
+
+	private final long tickNanos;
+
+	private volatile long nanoTime = System.nanoTime();
+
+	private volatile long currentTimeMillis = System.currentTimeMillis();
+
+	private volatile boolean running = true;
+
+	private final Thread ticker;
+
+	public CoarseClock() {
+		this(1, TimeUnit.MILLISECONDS);
+	}
+
+	public CoarseClock(long tick, TimeUnit unit) {
+		if (tick <= 0) {
+			throw new IllegalArgumentException("tick must be positive: " + tick);
+		}
+		this.tickNanos = unit.toNanos(tick);
+		this.ticker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					LockSupport.parkNanos(tickNanos);
+					nanoTime = System.nanoTime();
+					currentTimeMillis = System.currentTimeMillis();
+				}
+			}
+		}, "jdbc-monitor-clock");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	@Override
+	public long nanoTime() {
+		return running ? nanoTime : System.nanoTime();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return running ? currentTimeMillis : System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the interval at which the cached readings are refreshed
+	 */
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	public boolean isClosed() {
+		return !running;
+	}
+
+	/**
+	 * Stops the ticker thread. {@link DataSourceMonitor} closes its clock when
+	 * it is replaced or shut down.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(ticker);
+	}
+
+}
@@ -15,20 +15,16 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
-import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
+import com.mars.quinn.jdbc.monitor.stat.LatencyHistograms;
+import com.mars.quinn.jdbc.monitor.support.LazyStackTrace;
 
 public class ConnectionMonitor implements Connection {
 
@@ -36,11 +32,43 @@ public class ConnectionMonitor implements Connection {
 
 	private DataSourceMonitor dataSource;
 
-	private List<TransactionInfo> current = new LinkedList<>();
+	private final TransactionStack current = new TransactionStack();
 
-	private List<TransactionInfo> history = new LinkedList<>();
+	private final TransactionHistory history;
 
-	private Lock lock = new ReentrantLock();
+	private int registrySlot = -1;
+
+	private final MonitorClock clock;
+
+	private volatile boolean autoCommit;
+
+	/**
+	 * Open statements created without a call site.
+	 */
+	private final AtomicInteger openStatements = new AtomicInteger();
+
+	/**
+	 * Open statements that captured the call site that created them.
+	 */
+	private final Set<StatementMonitor> tracedStatements = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Set while a transaction that was not sampled is open. Such a
+	 * transaction has no {@link TransactionInfo}.
+	 */
+	private volatile boolean unsampled;
+
+	/**
+	 * Set when auto-commit was switched off and the transaction has not
+	 * begun yet; it begins, with this start time, at its first statement.
+	 * The start time is written before the flag and read after it, so a
+	 * thread that sees the flag sees the time.
+	 */
+	private volatile boolean beginPending;
+
+	private volatile long pendingBeginNanos;
+
+	private volatile long pendingBeginMillis;
 
 	private static final Savepoint EMPTY_SAVEPOINT = new Savepoint() {
 
@@ -56,9 +84,159 @@ public class ConnectionMonitor implements Connection {
 
 	};
 
-	public ConnectionMonitor(Connection connection, DataSourceMonitor dataSource) {
+	/**
+	 * @throws SQLException
+	 *             when the driver cannot report the connection's auto-commit
+	 *             mode, which decides whether statements are tracked as
+	 *             transactions
+	 */
+	public ConnectionMonitor(Connection connection, DataSourceMonitor dataSource) throws SQLException {
 		this.connection = connection;
 		this.dataSource = dataSource;
+		this.history = new TransactionHistory(dataSource.getConnectionHistoryCapacity());
+		this.clock = dataSource.getClock();
+		this.autoCommit = connection.getAutoCommit();
+	}
+
+	int getRegistrySlot() {
+		return registrySlot;
+	}
+
+	void setRegistrySlot(int registrySlot) {
+		this.registrySlot = registrySlot;
+	}
+
+	/**
+	 * @return the innermost open transaction or savepoint, or null
+	 */
+	TransactionInfo currentTransaction() {
+		return current.peek();
+	}
+
+	MonitorClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return a buffer for a new prepared statement's parameters, or null when
+	 *         capture is disabled
+	 */
+	ParameterBuffer newParameterBuffer() {
+		DataSourceMonitor monitor = dataSource;
+		if (monitor == null || !monitor.isCaptureParameters()) {
+			return null;
+		}
+		return new ParameterBuffer(monitor.getMaxParameterLength());
+	}
+
+	/**
+	 * @return the call site creating the statement, when the data source
+	 *         captures statement call sites
+	 */
+	LazyStackTrace statementOpened(StatementMonitor statement) {
+		DataSourceMonitor monitor = dataSource;
+		if (monitor != null && monitor.isCaptureStatementCallSites()) {
+			tracedStatements.add(statement);
+			return new LazyStackTrace();
+		}
+		openStatements.incrementAndGet();
+		return null;
+	}
+
+	void statementClosed(StatementMonitor statement) {
+		if (statement.getCreateTrace() != null) {
+			tracedStatements.remove(statement);
+		} else {
+			openStatements.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Resolves the shape of a statement about to run. Every statement is
+	 * interned, sampled or not, so that its latency reaches the histogram of
+	 * its shape; a statement run before is found in the dictionary's raw-SQL
+	 * cache without being normalized again.
+	 */
+	int shapeOf(String sql) {
+		return SqlShapeDictionary.global().intern(sql);
+	}
+
+	/**
+	 * @return whether the statement running now is recorded into a
+	 *         transaction
+	 */
+	boolean isRecording() {
+		return !autoCommit && dataSource != null && current.peek() != null;
+	}
+
+	/**
+	 * Begins a transaction for the statement about to run unless the
+	 * connection is in auto-commit mode.
+	 * 
+	 * @return the statement start time
+	 */
+	long beginStatement(int shapeId) {
+		if (!autoCommit && dataSource != null) {
+			maybeTransaction(shapeId);
+		}
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Records a statement that has just run. In auto-commit mode it is only
+	 * counted as an implicit transaction and no listener sees it; otherwise it
+	 * is added to the open transaction.
+	 */
+	void recordStatement(StatementMonitor statement, int shapeId, long startNanos, long elapsedNanos, long rows,
+			boolean failed, ParameterBuffer parameters, String sql) {
+		DataSourceMonitor monitor = dataSource;
+		if (monitor == null) {
+			// the connection has been closed
+		} else if (autoCommit) {
+			monitor.getAutoCommitStatistics().record(elapsedNanos, failed);
+		} else {
+			TransactionInfo transaction = maybeTransaction(shapeId);
+			if (transaction == null) {
+				monitor.getSamplingStatistics().unsampledStatement();
+			} else {
+				int index = transaction.recordStatement(shapeId, startNanos, elapsedNanos, rows, failed,
+						parameters == null ? null : parameters.snapshot(sql));
+				statement.recorded(transaction.log(), index);
+			}
+		}
+		if (shapeId >= 0) {
+			LatencyHistograms.global().record(shapeId, elapsedNanos);
+		}
+	}
+
+	/**
+	 * Records an executed batch of {@code batchSize} statements as one entry.
+	 */
+	void recordBatch(int shapeId, long startNanos, long elapsedNanos, long rows, boolean failed, int batchSize,
+			int[] updateCounts) {
+		DataSourceMonitor monitor = dataSource;
+		if (monitor == null) {
+			// the connection has been closed
+		} else if (autoCommit) {
+			monitor.getAutoCommitStatistics().record(elapsedNanos, failed);
+		} else {
+			TransactionInfo transaction = maybeTransaction(shapeId);
+			if (transaction == null) {
+				monitor.getSamplingStatistics().unsampledStatement();
+			} else {
+				transaction.recordBatch(shapeId, startNanos, elapsedNanos, rows, failed, batchSize, updateCounts);
+			}
+		}
+		if (shapeId >= 0) {
+			LatencyHistograms.global().record(shapeId, elapsedNanos);
+		}
+	}
+
+	/**
+	 * @return the transactions recently completed on this connection
+	 */
+	public TransactionHistory getHistory() {
+		return history;
 	}
 
 	/**
@@ -89,7 +267,7 @@ public class ConnectionMonitor implements Connection {
 	public Statement createStatement() throws SQLException {
 		Statement statement = connection.createStatement();
 		if (!(statement instanceof StatementMonitor)) {
-			statement = new StatementMonitor(statement, maybeTransaction());
+			statement = new StatementMonitor(statement, this);
 		}
 		return statement;
 	}
@@ -103,9 +281,7 @@ public class ConnectionMonitor implements Connection {
 	public PreparedStatement prepareStatement(String sql) throws SQLException {
 		PreparedStatement prepareStatement = connection.prepareStatement(sql);
 		if (!(prepareStatement instanceof PreparedStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			prepareStatement = new PreparedStatementMonitor(prepareStatement, transaction);
+			prepareStatement = new PreparedStatementMonitor(prepareStatement, this, sql);
 		}
 		return prepareStatement;
 	}
@@ -119,9 +295,7 @@ public class ConnectionMonitor implements Connection {
 	public CallableStatement prepareCall(String sql) throws SQLException {
 		CallableStatement callableStatement = connection.prepareCall(sql);
 		if (!(callableStatement instanceof CallableStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			callableStatement = new CallableStatementMonitor(callableStatement, transaction);
+			callableStatement = new CallableStatementMonitor(callableStatement, this, sql);
 		}
 		return callableStatement;
 	}
@@ -137,12 +311,30 @@ public class ConnectionMonitor implements Connection {
 	}
 
 	/**
+	 * Switching auto-commit off begins a tracked transaction; switching it on
+	 * commits the open one. Statements run while auto-commit is on are not
+	 * published to transaction listeners.
+	 * 
 	 * @param autoCommit
 	 * @throws SQLException
 	 * @see java.sql.Connection#setAutoCommit(boolean)
 	 */
 	public void setAutoCommit(boolean autoCommit) throws SQLException {
 		connection.setAutoCommit(autoCommit);
+		boolean previous = this.autoCommit;
+		this.autoCommit = autoCommit;
+		if (autoCommit && !previous) {
+			// switching auto-commit on commits the open transaction
+			TransactionInfo transaction = transactionComplete(EMPTY_SAVEPOINT, TransactionState.COMMIT);
+			if (transaction != null) {
+				transaction.publishCommitEvent();
+				transaction.release();
+			}
+		} else if (!autoCommit && previous) {
+			pendingBeginNanos = clock.nanoTime();
+			pendingBeginMillis = clock.currentTimeMillis();
+			beginPending = true;
+		}
 	}
 
 	/**
@@ -159,10 +351,16 @@ public class ConnectionMonitor implements Connection {
 	 * @see java.sql.Connection#commit()
 	 */
 	public void commit() throws SQLException {
-		connection.commit();
+		try {
+			connection.commit();
+		} catch (SQLException e) {
+			failed();
+			throw e;
+		}
 		TransactionInfo transaction = transactionComplete(EMPTY_SAVEPOINT, TransactionState.COMMIT);
 		if (transaction != null) {
 			transaction.publishCommitEvent();
+			transaction.release();
 		}
 	}
 
@@ -171,10 +369,28 @@ public class ConnectionMonitor implements Connection {
 	 * @see java.sql.Connection#rollback()
 	 */
 	public void rollback() throws SQLException {
-		connection.rollback();
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			failed();
+			throw e;
+		}
 		TransactionInfo transaction = transactionComplete(EMPTY_SAVEPOINT, TransactionState.ROLLBACK);
-		if (transaction != null)
+		if (transaction != null) {
 			transaction.publishRollbackEvent();
+			transaction.release();
+		}
+	}
+
+	/**
+	 * Completes the open transaction after commit or rollback threw.
+	 */
+	private void failed() {
+		TransactionInfo transaction = transactionComplete(EMPTY_SAVEPOINT, TransactionState.FAILED);
+		if (transaction != null) {
+			transaction.publishFailedEvent();
+			transaction.release();
+		}
 	}
 
 	/**
@@ -183,9 +399,29 @@ public class ConnectionMonitor implements Connection {
 	 */
 	public void close() throws SQLException {
 		connection.close();
-		dataSource.removeConnection(this);
+		DataSourceMonitor monitor = dataSource;
+		if (monitor == null) {
+			return;
+		}
+		TransactionInfo transaction = transactionComplete(EMPTY_SAVEPOINT, TransactionState.ABANDONED);
+		LeakStatistics leaks = monitor.getLeakStatistics();
+		if (transaction != null) {
+			leaks.abandonedTransaction(transaction.getCallSite());
+			transaction.publishAbandonedEvent();
+			transaction.release();
+		}
+		int statements = openStatements.getAndSet(0);
+		if (statements > 0) {
+			leaks.unclosedStatements(CallSites.UNKNOWN, statements);
+		}
+		for (StatementMonitor statement : tracedStatements) {
+			if (tracedStatements.remove(statement)) {
+				leaks.unclosedStatements(CallSites.of(statement.getCreateTrace().getElements()), 1);
+			}
+		}
+		monitor.removeConnection(this);
 		dataSource = null;
-		current = null;
+		current.clear();
 	}
 
 	/**
@@ -286,8 +522,8 @@ public class ConnectionMonitor implements Connection {
 	 */
 	public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
 		Statement statement = connection.createStatement(resultSetType, resultSetConcurrency);
-		if (statement instanceof StatementMonitor) {
-			statement = new StatementMonitor(statement, maybeTransaction());
+		if (!(statement instanceof StatementMonitor)) {
+			statement = new StatementMonitor(statement, this);
 		}
 		return statement;
 	}
@@ -304,9 +540,7 @@ public class ConnectionMonitor implements Connection {
 			throws SQLException {
 		PreparedStatement prepareStatement = connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
 		if (!(prepareStatement instanceof PreparedStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			prepareStatement = new PreparedStatementMonitor(prepareStatement, transaction);
+			prepareStatement = new PreparedStatementMonitor(prepareStatement, this, sql);
 		}
 		return prepareStatement;
 	}
@@ -322,9 +556,7 @@ public class ConnectionMonitor implements Connection {
 	public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
 		CallableStatement callableStatement = connection.prepareCall(sql, resultSetType, resultSetConcurrency);
 		if (!(callableStatement instanceof CallableStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			callableStatement = new CallableStatementMonitor(callableStatement, transaction);
+			callableStatement = new CallableStatementMonitor(callableStatement, this, sql);
 		}
 		return callableStatement;
 	}
@@ -389,14 +621,21 @@ public class ConnectionMonitor implements Connection {
 	}
 
 	private TransactionInfo newTransaction(Savepoint savepoint) {
-		lock.lock();
-		TransactionInfo transaction = null;
-		try {
-			transaction = new TransactionInfo(savepoint);
-			current.add(0, transaction);
-		} finally {
-			lock.unlock();
+		TransactionInfo transaction;
+		DataSourceMonitor monitor = dataSource;
+		if (monitor == null) {
+			return null;
 		}
+		if (current.peek() != null) {
+			transaction = monitor.newTransaction(savepoint, clock);
+			transaction.markNested();
+		} else {
+			transaction = begin(savepoint, -1);
+			if (transaction == null) {
+				return null;
+			}
+		}
+		current.push(transaction);
 		transaction.publishBeginEvent();
 		return transaction;
 	}
@@ -409,46 +648,36 @@ public class ConnectionMonitor implements Connection {
 	public void rollback(Savepoint savepoint) throws SQLException {
 		connection.rollback(savepoint);
 		TransactionInfo transaction = transactionComplete(savepoint, TransactionState.ROLLBACK);
-		if (transaction != null)
+		if (transaction != null) {
 			transaction.publishRollbackEvent();
+			transaction.release();
+		}
 	}
 
+	/**
+	 * @return the completed transaction, still referenced for the caller to
+	 *         publish and release, or null
+	 */
 	private TransactionInfo transactionComplete(Savepoint savepoint, TransactionState state) {
-		lock.lock();
-		try {
-			if (!current.isEmpty()) {
-				addSqlsToMain(removeDisableTransaction(savepoint));
-				TransactionInfo first = current.remove(0);
-				if (first != null && !first.isComplete()) {
-					first.complete(state);
-					addToHistory(first);
-				}
-				return first;
-			}
+		if (savepoint == EMPTY_SAVEPOINT) {
+			unsampled = false;
+			beginPending = false;
+		}
+		TransactionInfo transaction = current.unwindTo(savepoint);
+		if (transaction == null || transaction.isComplete()) {
 			return null;
-		} finally {
-			lock.unlock();
 		}
-	}
-
-	private List<TransactionInfo> removeDisableTransaction(Savepoint savepoint) {
-		List<TransactionInfo> disableList = new LinkedList<>();
-		for (TransactionInfo transactionInfo : current) {
-			if (transactionInfo.isSameTransaction(savepoint)) {
-				break;
-			}
-			disableList.add(transactionInfo);
+		DataSourceMonitor monitor = dataSource;
+		long start = monitor == null ? 0 : monitor.overheadStart();
+		transaction.complete(state);
+		if (transaction.isRetained()) {
+			addToHistory(transaction);
 		}
-		current.removeAll(disableList);
-		return disableList;
-	}
-	
-	private void addSqlsToMain(List<TransactionInfo> transactions) {
-//		transactions.stream().
-		for (int i = transactions.size() - 1; i > -1; i--) {
-			TransactionInfo transaction = transactions.get(i);
-			current.get(0).addAll(transaction.sqls());
+		if (monitor != null) {
+			monitor.overheadEnd(start);
+			monitor.transactionCompleted(transaction);
 		}
+		return transaction;
 	}
 
 	/**
@@ -458,12 +687,7 @@ public class ConnectionMonitor implements Connection {
 	 */
 	public void releaseSavepoint(Savepoint savepoint) throws SQLException {
 		connection.releaseSavepoint(savepoint);
-		lock.lock();
-		try {
-			removeDisableTransaction(savepoint);
-		} finally {
-			lock.unlock();
-		}
+		current.unwindAbove(savepoint);
 	}
 
 	/**
@@ -477,8 +701,8 @@ public class ConnectionMonitor implements Connection {
 	public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability)
 			throws SQLException {
 		Statement statement = connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
-		if (statement instanceof StatementMonitor) {
-			statement = new StatementMonitor(statement, maybeTransaction());
+		if (!(statement instanceof StatementMonitor)) {
+			statement = new StatementMonitor(statement, this);
 		}
 		return statement;
 	}
@@ -497,9 +721,7 @@ public class ConnectionMonitor implements Connection {
 			int resultSetHoldability) throws SQLException {
 		PreparedStatement prepareStatement = connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
 		if (!(prepareStatement instanceof PreparedStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			prepareStatement = new PreparedStatementMonitor(prepareStatement, transaction);
+			prepareStatement = new PreparedStatementMonitor(prepareStatement, this, sql);
 		}
 		return prepareStatement;
 	}
@@ -517,9 +739,7 @@ public class ConnectionMonitor implements Connection {
 			int resultSetHoldability) throws SQLException {
 		CallableStatement callableStatement = connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
 		if (!(callableStatement instanceof CallableStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			callableStatement = new CallableStatementMonitor(callableStatement, transaction);
+			callableStatement = new CallableStatementMonitor(callableStatement, this, sql);
 		}
 		return callableStatement;
 	}
@@ -534,9 +754,7 @@ public class ConnectionMonitor implements Connection {
 	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
 		PreparedStatement prepareStatement = connection.prepareStatement(sql, autoGeneratedKeys);
 		if (!(prepareStatement instanceof PreparedStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			prepareStatement = new PreparedStatementMonitor(prepareStatement, transaction);
+			prepareStatement = new PreparedStatementMonitor(prepareStatement, this, sql);
 		}
 		return prepareStatement;
 	}
@@ -551,9 +769,7 @@ public class ConnectionMonitor implements Connection {
 	public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
 		PreparedStatement prepareStatement = connection.prepareStatement(sql, columnIndexes);
 		if (!(prepareStatement instanceof PreparedStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			prepareStatement = new PreparedStatementMonitor(prepareStatement, transaction);
+			prepareStatement = new PreparedStatementMonitor(prepareStatement, this, sql);
 		}
 		return prepareStatement;
 	}
@@ -569,9 +785,7 @@ public class ConnectionMonitor implements Connection {
 	public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
 		PreparedStatement prepareStatement = connection.prepareStatement(sql, columnNames);
 		if (!(prepareStatement instanceof PreparedStatementMonitor)) {
-			TransactionInfo transaction = maybeTransaction();
-			transaction.addSql(sql);
-			prepareStatement = new PreparedStatementMonitor(prepareStatement, transaction);
+			prepareStatement = new PreparedStatementMonitor(prepareStatement, this, sql);
 		}
 		return prepareStatement;
 	}
@@ -733,143 +947,59 @@ public class ConnectionMonitor implements Connection {
 	}
 
 	private void addToHistory(TransactionInfo transaction) {
-		if (history.size() > 10) {
-			history.remove(0);
-		}
 		history.add(transaction);
-	}
-
-	private TransactionInfo maybeTransaction() {
-		lock.lock();
-		TransactionInfo transaction = null;
-		boolean isTransaction = false;
-		try {
-			if (current.isEmpty()) {
-				transaction = new TransactionInfo();
-				current.add(0, transaction);
-				isTransaction = true;
-			}
-			transaction = current.get(0);
-		} finally {
-			lock.unlock();
+		DataSourceMonitor monitor = dataSource;
+		if (monitor != null) {
+			monitor.getHistory().add(transaction);
 		}
-		if (isTransaction)
-			transaction.publishBeginEvent();
-		return transaction;
 	}
 
-	private enum TransactionState {
-		COMMIT, ROLLBACK, RUNNING
-	}
-
-	public class TransactionInfo {
-
-		private List<String> sqls = new CopyOnWriteArrayList<>();
-
-		private final long beginTime = System.currentTimeMillis();
-
-		private final String id = UUID.randomUUID().toString();
-		
-		private volatile TransactionState state;
-
-		private long endTime;
-
-		private final Savepoint savepoint;
-		
-		private final StackTraceElement[] startTrace = Thread.currentThread().getStackTrace();
-
-		private StackTraceElement[] completeTrace;
-		
-		public TransactionInfo() {
-			this(EMPTY_SAVEPOINT);
-		}
-		
-		public String getId() {
-			return id;
-		}
-
-		public TransactionInfo(Savepoint savepoint) {
-			this.savepoint = savepoint;
-			this.state = TransactionState.RUNNING;
-		}
-		
-		public String[] sqls() {
-			return sqls.toArray(new String[]{});
-		}
-
-		public void addSql(String sql) {
-			sqls.add(sql);
-		}
-		
-		void addAll(String... sqls) {
-			this.sqls.addAll(Arrays.asList(sqls));
-		}
-		
-		public void removeSqls(String... sqls) {
-			this.sqls.removeAll(Arrays.asList(sqls));
-		}
-
-		public boolean isComplete() {
-			return state == TransactionState.COMMIT || state == TransactionState.ROLLBACK;
-		}
-
-		public long getCost() {
-			if (isComplete())
-				return endTime - beginTime;
-			return System.currentTimeMillis() - beginTime;
-		}
-
-		public void complete(TransactionState state) {
-			if (!isComplete()) {
-				endTime = System.currentTimeMillis();
-				completeTrace = Thread.currentThread().getStackTrace();
-				this.state = state;
-			}
+	/**
+	 * @return the open transaction, begun for the statement of shape
+	 *         {@code shapeId} if there is none, or null when it is not
+	 *         sampled
+	 */
+	private TransactionInfo maybeTransaction(int shapeId) {
+		TransactionInfo transaction = current.peek();
+		if (transaction != null) {
+			return transaction;
 		}
-		
-		public StackTraceElement[] getStartTrace() {
-			return startTrace;
+		transaction = begin(EMPTY_SAVEPOINT, shapeId);
+		if (transaction == null) {
+			return null;
 		}
-		
-		public StackTraceElement[] getCompleteTrace() {
-			if (isComplete())
-				return completeTrace;
-			throw new RuntimeException("There is no completeTrace when transaction has not bean completed.");
+		TransactionInfo existing = current.pushIfEmpty(transaction);
+		if (existing != null) {
+			transaction.release();
+			return existing;
 		}
+		transaction.publishBeginEvent();
+		return transaction;
+	}
 
-		public boolean isSameTransaction(Savepoint savepoint) {
-			return this.savepoint == savepoint;
-		}
-		
-		public void publishBeginEvent() {
-			if (dataSource != null) {
-				Iterator<TransactionListener> it = dataSource.getTransactionListeners();
-				while (it.hasNext()) {
-					TransactionListener listener = (TransactionListener) it.next();
-					listener.onBegin(new TransactionEvent(this));
-				}
-			}
-		}
-		
-		public void publishCommitEvent() {
-			if (dataSource != null) {
-				Iterator<TransactionListener> it = dataSource.getTransactionListeners();
-				while (it.hasNext()) {
-					TransactionListener listener = (TransactionListener) it.next();
-					listener.onCommit(new TransactionEvent(this));
-				}
-			}
+	/**
+	 * Makes the sampling decision for a transaction about to begin. Nothing
+	 * is allocated when the transaction is not sampled.
+	 * 
+	 * @return the new transaction, or null when it is not sampled
+	 */
+	private TransactionInfo begin(Savepoint savepoint, int shapeId) {
+		DataSourceMonitor monitor = dataSource;
+		if (unsampled || monitor == null) {
+			return null;
 		}
-		
-		public void publishRollbackEvent() {
-			if (dataSource != null) {
-				Iterator<TransactionListener> it = dataSource.getTransactionListeners();
-				while (it.hasNext()) {
-					TransactionListener listener = (TransactionListener) it.next();
-					listener.onRollback(new TransactionEvent(this));
-				}
-			}
+		boolean pending = beginPending;
+		beginPending = false;
+		if (!monitor.sample(shapeId)) {
+			unsampled = true;
+			return null;
 		}
+		long start = monitor.overheadStart();
+		TransactionInfo transaction = pending
+				? monitor.newTransaction(savepoint, clock, pendingBeginNanos, pendingBeginMillis)
+				: monitor.newTransaction(savepoint, clock);
+		monitor.overheadEnd(start);
+		return transaction;
 	}
 
 }
@@ -0,0 +1,145 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Live connections, each held in a numbered slot. Slots live in fixed-size
+ * segments that are never moved, and freed slot numbers are recycled through a
+ * lock-free stack, so registering and unregistering are O(1).
+ */
+public final class ConnectionRegistry {
+
+	private static final int SEGMENT_SHIFT = 8;
+
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private static final class Segment {
+
+		final AtomicReferenceArray<ConnectionMonitor> connections = new AtomicReferenceArray<>(SEGMENT_SIZE);
+
+		/** Next free slot + 1 for slots on the free stack. */
+		final AtomicIntegerArray nextFree = new AtomicIntegerArray(SEGMENT_SIZE);
+
+	}
+
+	private volatile Segment[] segments = new Segment[] { new Segment() };
+
+	private final AtomicInteger highWater = new AtomicInteger();
+
+	/** Tag in the high 32 bits against ABA, top free slot + 1 in the low. */
+	private final AtomicLong freeHead = new AtomicLong();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	void register(ConnectionMonitor connection) {
+		int slot = popFree();
+		if (slot < 0) {
+			slot = highWater.getAndIncrement();
+		}
+		segment(slot).connections.set(slot & SEGMENT_MASK, connection);
+		connection.setRegistrySlot(slot);
+		size.incrementAndGet();
+	}
+
+	void unregister(ConnectionMonitor connection) {
+		int slot = connection.getRegistrySlot();
+		if (slot < 0) {
+			return;
+		}
+		if (segment(slot).connections.compareAndSet(slot & SEGMENT_MASK, connection, null)) {
+			connection.setRegistrySlot(-1);
+			size.decrementAndGet();
+			pushFree(slot);
+		}
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the state of every live connection, each read once
+	 */
+	public List<ConnectionSnapshot> snapshot() {
+		int limit = highWater.get();
+		Segment[] current = segments;
+		List<ConnectionSnapshot> snapshots = new ArrayList<>(size());
+		for (int slot = 0; slot < limit && (slot >>> SEGMENT_SHIFT) < current.length; slot++) {
+			ConnectionMonitor connection = current[slot >>> SEGMENT_SHIFT].connections.get(slot & SEGMENT_MASK);
+			if (connection == null) {
+				continue;
+			}
+			TransactionInfo transaction = connection.currentTransaction();
+			if (transaction == null || !transaction.tryRetain()) {
+				snapshots.add(new ConnectionSnapshot(slot, null, 0, 0));
+			} else {
+				try {
+					snapshots.add(new ConnectionSnapshot(slot, transaction.getId(), transaction.getCostNanos(),
+							transaction.getSqlLog().size()));
+				} finally {
+					transaction.release();
+				}
+			}
+		}
+		return snapshots;
+	}
+
+	private Segment segment(int slot) {
+		int index = slot >>> SEGMENT_SHIFT;
+		Segment[] current = segments;
+		if (index < current.length) {
+			return current[index];
+		}
+		return grow(index);
+	}
+
+	private synchronized Segment grow(int index) {
+		Segment[] current = segments;
+		if (index >= current.length) {
+			int length = current.length;
+			current = Arrays.copyOf(current, Math.max(length << 1, index + 1));
+			for (int i = length; i < current.length; i++) {
+				current[i] = new Segment();
+			}
+			segments = current;
+		}
+		return current[index];
+	}
+
+	private int popFree() {
+		while (true) {
+			long head = freeHead.get();
+			int top = (int) head - 1;
+			if (top < 0) {
+				return -1;
+			}
+			int next = segment(top).nextFree.get(top & SEGMENT_MASK);
+			long update = (head & 0xFFFFFFFF00000000L) + (1L << 32) | (next & 0xFFFFFFFFL);
+			if (freeHead.compareAndSet(head, update)) {
+				return top;
+			}
+		}
+	}
+
+	private void pushFree(int slot) {
+		Segment segment = segment(slot);
+		while (true) {
+			long head = freeHead.get();
+			segment.nextFree.set(slot & SEGMENT_MASK, (int) head);
+			long update = (head & 0xFFFFFFFF00000000L) + (1L << 32) | ((slot + 1) & 0xFFFFFFFFL);
+			if (freeHead.compareAndSet(head, update)) {
+				return;
+			}
+		}
+	}
+
+}
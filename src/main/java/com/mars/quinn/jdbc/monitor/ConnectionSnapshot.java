@@ -0,0 +1,53 @@
+package com.mars.quinn.jdbc.monitor;
+
+/**
+ * State of one live connection at the time of a
+ * {@link ConnectionRegistry#snapshot()}.
+ */
+public final class ConnectionSnapshot {
+
+	private final int slot;
+
+	private final String transactionId;
+
+	private final long transactionAgeNanos;
+
+	private final int statementCount;
+
+	ConnectionSnapshot(int slot, String transactionId, long transactionAgeNanos, int statementCount) {
+		this.slot = slot;
+		this.transactionId = transactionId;
+		this.transactionAgeNanos = transactionAgeNanos;
+		this.statementCount = statementCount;
+	}
+
+	public int getSlot() {
+		return slot;
+	}
+
+	public boolean isInTransaction() {
+		return transactionId != null;
+	}
+
+	/**
+	 * @return the open transaction, or null when there is none
+	 */
+	public String getTransactionId() {
+		return transactionId;
+	}
+
+	public long getTransactionAgeNanos() {
+		return transactionAgeNanos;
+	}
+
+	public int getStatementCount() {
+		return statementCount;
+	}
+
+	@Override
+	public String toString() {
+		return "slot=" + slot + ", transaction=" + transactionId + ", age=" + transactionAgeNanos + "ns, statements="
+				+ statementCount;
+	}
+
+}
@@ -3,38 +3,171 @@ package com.mars.quinn.jdbc.monitor;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
+import org.slf4j.LoggerFactory;
+
+import com.mars.quinn.jdbc.monitor.event.BatchTransactionListener;
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
 import com.mars.quinn.jdbc.monitor.event.TransactionListener;
 
 public class DataSourceMonitor implements DataSource {
 	
+	private static final org.slf4j.Logger logger = LoggerFactory.getLogger(DataSourceMonitor.class);
+	
 	private final DataSource dataSource;
 	
 	private final List<TransactionListener> transactionListeners = new CopyOnWriteArrayList<>();
 	
-	private Queue<Connection> connectionQueue = new ConcurrentLinkedQueue<>();
+	private volatile ListenerEndpoint[] listenerEndpoints = new ListenerEndpoint[0];
+	
+	private ScheduledExecutorService batchFlusher;
+	
+	private final ConnectionRegistry connections = new ConnectionRegistry();
+	
+	private volatile StackTracePolicy stackTracePolicy = StackTracePolicy.eager();
+	
+	private volatile TransactionIdGenerator idGenerator = new SequenceIdGenerator();
+	
+	private volatile MonitorClock clock = MonitorClock.PRECISE;
+	
+	private volatile int maxSqlsPerTransaction = Integer.MAX_VALUE;
+	
+	private volatile SamplingPolicy samplingPolicy = SamplingPolicy.always();
+
+	private volatile RetentionPolicy retentionPolicy = RetentionPolicy.all();
+
+	private volatile TransactionPool transactionPool;
+
+	private volatile int transactionPoolSize;
+	
+	private volatile boolean captureParameters;
+	
+	private volatile boolean captureStatementCallSites;
+	
+	private volatile int maxParameterLength = 64;
+	
+	private volatile AsyncEventDispatcher asyncDispatcher;
+	
+	private volatile LongTransactionWatchdog watchdog;
+	
+	private final TransactionHistory history;
+	
+	private final int connectionHistoryCapacity;
+	
+	private final AutoCommitStatistics autoCommitStatistics = new AutoCommitStatistics();
+	
+	private final LeakStatistics leakStatistics = new LeakStatistics();
+	
+	private final SamplingStatistics samplingStatistics = new SamplingStatistics();
+
+	private final RetentionStatistics retentionStatistics = new RetentionStatistics();
 	
 	public DataSourceMonitor(DataSource dataSource) {
+		this(dataSource, 1024, 10);
+	}
+	
+	/**
+	 * @param historyCapacity
+	 *            completed transactions kept across all connections
+	 * @param connectionHistoryCapacity
+	 *            completed transactions kept by each connection
+	 */
+	public DataSourceMonitor(DataSource dataSource, int historyCapacity, int connectionHistoryCapacity) {
+		if (connectionHistoryCapacity < 0) {
+			throw new IllegalArgumentException("connectionHistoryCapacity must not be negative: "
+					+ connectionHistoryCapacity);
+		}
 		this.dataSource = dataSource;
+		this.history = new TransactionHistory(historyCapacity);
+		this.connectionHistoryCapacity = connectionHistoryCapacity;
+	}
+	
+	/**
+	 * @return the transactions recently completed on any connection
+	 */
+	public TransactionHistory getHistory() {
+		return history;
+	}
+	
+	public int getConnectionHistoryCapacity() {
+		return connectionHistoryCapacity;
+	}
+	
+	/**
+	 * @return totals for statements run outside an explicit transaction
+	 */
+	public AutoCommitStatistics getAutoCommitStatistics() {
+		return autoCommitStatistics;
+	}
+	
+	/**
+	 * @return what connections still had open when they were closed
+	 */
+	public LeakStatistics getLeakStatistics() {
+		return leakStatistics;
 	}
 	
 	public void setTransactionListeners(TransactionListener... listeners) {
 		if (listeners != null) {
 			for (TransactionListener transactionListener : listeners) {
 				transactionListeners.add(transactionListener);
+				addEndpoint(new ListenerEndpoint.Single(transactionListener));
 			}
 		}
 	}
 	
+	private synchronized void addEndpoint(ListenerEndpoint endpoint) {
+		ListenerEndpoint[] endpoints = Arrays.copyOf(listenerEndpoints, listenerEndpoints.length + 1);
+		endpoints[endpoints.length - 1] = endpoint;
+		listenerEndpoints = endpoints;
+	}
+
+	/**
+	 * Registers a listener that receives completed transactions in batches of
+	 * up to {@code maxBatchSize}. A smaller batch is delivered once its oldest
+	 * transaction has waited {@code maxAge}.
+	 */
+	public synchronized void addBatchTransactionListener(BatchTransactionListener listener, int maxBatchSize,
+			long maxAge, TimeUnit unit) {
+		final ListenerEndpoint.Batching endpoint = new ListenerEndpoint.Batching(listener, maxBatchSize,
+				unit.toNanos(maxAge));
+		addEndpoint(endpoint);
+		if (batchFlusher == null) {
+			batchFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "jdbc-monitor-batch-flusher");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		long period = Math.max(endpoint.getMaxAgeNanos() / 2, TimeUnit.MILLISECONDS.toNanos(1));
+		batchFlusher.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					endpoint.flushAged(System.nanoTime());
+				} catch (RuntimeException e) {
+					logger.error("Batch transaction listener failed", e);
+				}
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
 	/**
 	 * @return the transactionListeners
 	 */
@@ -42,6 +175,383 @@ public class DataSourceMonitor implements DataSource {
 		return transactionListeners.iterator();
 	}
 
+	public StackTracePolicy getStackTracePolicy() {
+		return stackTracePolicy;
+	}
+
+	public void setStackTracePolicy(StackTracePolicy stackTracePolicy) {
+		if (stackTracePolicy == null) {
+			throw new IllegalArgumentException("stackTracePolicy must not be null");
+		}
+		this.stackTracePolicy = stackTracePolicy;
+	}
+
+	public TransactionIdGenerator getIdGenerator() {
+		return idGenerator;
+	}
+
+	public void setIdGenerator(TransactionIdGenerator idGenerator) {
+		if (idGenerator == null) {
+			throw new IllegalArgumentException("idGenerator must not be null");
+		}
+		this.idGenerator = idGenerator;
+	}
+
+	public MonitorClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets the clock for connections opened from now on; a connection keeps
+	 * the clock it was opened with, so that all of its timings come from one
+	 * source. A {@link CoarseClock} being replaced is closed.
+	 */
+	public void setClock(MonitorClock clock) {
+		if (clock == null) {
+			throw new IllegalArgumentException("clock must not be null");
+		}
+		MonitorClock previous = this.clock;
+		this.clock = clock;
+		if (previous != clock && previous instanceof CoarseClock) {
+			((CoarseClock) previous).close();
+		}
+	}
+
+	public int getMaxSqlsPerTransaction() {
+		return maxSqlsPerTransaction;
+	}
+
+	/**
+	 * @param maxSqlsPerTransaction
+	 *            statements a transaction keeps before it only counts them
+	 */
+	public void setMaxSqlsPerTransaction(int maxSqlsPerTransaction) {
+		if (maxSqlsPerTransaction < 0) {
+			throw new IllegalArgumentException("maxSqlsPerTransaction must not be negative: " + maxSqlsPerTransaction);
+		}
+		this.maxSqlsPerTransaction = maxSqlsPerTransaction;
+	}
+
+	public SamplingPolicy getSamplingPolicy() {
+		return samplingPolicy;
+	}
+
+	public void setSamplingPolicy(SamplingPolicy samplingPolicy) {
+		if (samplingPolicy == null) {
+			throw new IllegalArgumentException("samplingPolicy must not be null");
+		}
+		this.samplingPolicy = samplingPolicy;
+	}
+
+	/**
+	 * @return the sampling decisions made so far
+	 */
+	public SamplingStatistics getSamplingStatistics() {
+		return samplingStatistics;
+	}
+
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		if (retentionPolicy == null) {
+			throw new IllegalArgumentException("retentionPolicy must not be null");
+		}
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	/**
+	 * @return the completed transactions kept and discarded so far
+	 */
+	public RetentionStatistics getRetentionStatistics() {
+		return retentionStatistics;
+	}
+
+	/**
+	 * @return released transaction records kept for reuse, or 0 when records
+	 *         are not pooled
+	 */
+	public int getTransactionPoolSize() {
+		return transactionPoolSize;
+	}
+
+	/**
+	 * Reuses up to {@code size} released transaction records instead of
+	 * allocating one per transaction; 0 turns pooling off. With pooling on, a
+	 * listener that keeps a {@link TransactionEvent} past its callback must
+	 * {@link TransactionEvent#retain()} it, and
+	 * {@link TransactionHistory#snapshot()} returns copies.
+	 */
+	public synchronized void setTransactionPoolSize(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size must not be negative: " + size);
+		}
+		transactionPool = size == 0 ? null : new TransactionPool(size);
+		transactionPoolSize = size;
+	}
+
+	/**
+	 * @return records allocated by the current pool, or 0 without one
+	 */
+	public long getCreatedTransactionCount() {
+		TransactionPool pool = transactionPool;
+		return pool == null ? 0 : pool.getCreatedCount();
+	}
+
+	/**
+	 * @return records the current pool handed out again, or 0 without one
+	 */
+	public long getReusedTransactionCount() {
+		TransactionPool pool = transactionPool;
+		return pool == null ? 0 : pool.getReusedCount();
+	}
+
+	TransactionInfo newTransaction(Savepoint savepoint) {
+		return newTransaction(savepoint, clock);
+	}
+
+	TransactionInfo newTransaction(Savepoint savepoint, MonitorClock clock) {
+		return newTransaction(savepoint, clock, clock.nanoTime(), clock.currentTimeMillis());
+	}
+
+	/**
+	 * @param clock
+	 *            the clock of the connection running the transaction, which
+	 *            also timed {@code beginTime} and its statements
+	 * @return a running transaction holding one reference for the caller
+	 */
+	TransactionInfo newTransaction(Savepoint savepoint, MonitorClock clock, long beginTime, long beginTimeMillis) {
+		TransactionPool pool = transactionPool;
+		TransactionInfo transaction = pool == null ? new TransactionInfo(null) : pool.acquire();
+		transaction.init(this, clock, savepoint, beginTime, beginTimeMillis);
+		return transaction;
+	}
+
+	/**
+	 * Decides whether a transaction about to begin is tracked.
+	 */
+	boolean sample(int shapeId) {
+		boolean sampled = samplingPolicy.sample(shapeId, clock);
+		samplingStatistics.record(sampled);
+		return sampled;
+	}
+
+	/**
+	 * @return the share of transactions currently sampled: the adaptive
+	 *         controller's rate, or else the share sampled so far
+	 */
+	public double getEffectiveSampleRate() {
+		double rate = samplingPolicy.getRate();
+		if (rate >= 0) {
+			return rate;
+		}
+		long sampled = samplingStatistics.getSampledCount();
+		long total = sampled + samplingStatistics.getUnsampledCount();
+		return total == 0 ? 1 : (double) sampled / total;
+	}
+
+	/**
+	 * @return the start of a stretch of monitoring work to measure, or 0 when
+	 *         the sampling policy does not measure overhead
+	 */
+	long overheadStart() {
+		return samplingPolicy.getAdaptiveSampler() == null ? 0 : System.nanoTime();
+	}
+
+	void overheadEnd(long start) {
+		if (start != 0) {
+			AdaptiveSampler sampler = samplingPolicy.getAdaptiveSampler();
+			if (sampler != null) {
+				sampler.addOverhead(System.nanoTime() - start);
+			}
+		}
+	}
+
+	void transactionCompleted(TransactionInfo transaction) {
+		AdaptiveSampler sampler = samplingPolicy.getAdaptiveSampler();
+		if (sampler != null) {
+			sampler.addTransaction(transaction.getCostNanos());
+		}
+	}
+
+	public boolean isCaptureParameters() {
+		return captureParameters;
+	}
+
+	/**
+	 * Records the parameters bound to prepared statements with each
+	 * execution, see {@link SqlLog#renderAt(int)}. Applies to statements
+	 * prepared afterwards.
+	 */
+	public void setCaptureParameters(boolean captureParameters) {
+		this.captureParameters = captureParameters;
+	}
+
+	public boolean isCaptureStatementCallSites() {
+		return captureStatementCallSites;
+	}
+
+	/**
+	 * Captures where each statement is created, so that statements left open
+	 * when their connection closes are counted by that site in
+	 * {@link LeakStatistics}. Costs a stack capture per statement; when off,
+	 * unclosed statements are only counted, under "unknown". Applies to
+	 * statements created afterwards.
+	 */
+	public void setCaptureStatementCallSites(boolean captureStatementCallSites) {
+		this.captureStatementCallSites = captureStatementCallSites;
+	}
+
+	public int getMaxParameterLength() {
+		return maxParameterLength;
+	}
+
+	/**
+	 * @param maxParameterLength
+	 *            characters of a string, or bytes of a byte array, kept per
+	 *            captured parameter
+	 */
+	public void setMaxParameterLength(int maxParameterLength) {
+		if (maxParameterLength < 0) {
+			throw new IllegalArgumentException("maxParameterLength must not be negative: " + maxParameterLength);
+		}
+		this.maxParameterLength = maxParameterLength;
+	}
+
+	/**
+	 * Runs the listeners on a dedicated thread instead of the committing one.
+	 * 
+	 * @param capacity
+	 *            events the ring holds, a power of two
+	 */
+	public synchronized void enableAsyncDispatch(int capacity, AsyncEventDispatcher.WaitStrategy waitStrategy,
+			AsyncEventDispatcher.OverflowPolicy overflowPolicy) throws InterruptedException {
+		AsyncEventDispatcher previous = asyncDispatcher;
+		asyncDispatcher = new AsyncEventDispatcher(this, capacity, waitStrategy, overflowPolicy);
+		if (previous != null) {
+			previous.shutdown(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * @return the async dispatcher, or null when listeners run synchronously
+	 */
+	public AsyncEventDispatcher getAsyncDispatcher() {
+		return asyncDispatcher;
+	}
+
+	/**
+	 * Starts a watchdog thread that calls
+	 * {@link TransactionListener#onLongRunning} once for each threshold an
+	 * open transaction passes. Transactions already open are not watched, and
+	 * savepoints are watched as part of their transaction only.
+	 * 
+	 * @param tick
+	 *            how often the watchdog checks, and so how late it may report
+	 */
+	public synchronized void enableLongTransactionDetection(long tick, TimeUnit unit, long... thresholds) {
+		long[] thresholdNanos = new long[thresholds.length];
+		for (int i = 0; i < thresholds.length; i++) {
+			thresholdNanos[i] = unit.toNanos(thresholds[i]);
+		}
+		LongTransactionWatchdog previous = watchdog;
+		watchdog = new LongTransactionWatchdog(this, unit.toNanos(tick), thresholdNanos);
+		if (previous != null) {
+			previous.stop();
+		}
+	}
+
+	public synchronized void disableLongTransactionDetection() {
+		LongTransactionWatchdog previous = watchdog;
+		watchdog = null;
+		if (previous != null) {
+			previous.stop();
+		}
+	}
+
+	/**
+	 * Delivers the queued events and goes back to running listeners
+	 * synchronously.
+	 */
+	public synchronized void shutdown() throws InterruptedException {
+		disableLongTransactionDetection();
+		AsyncEventDispatcher previous = asyncDispatcher;
+		asyncDispatcher = null;
+		if (previous != null) {
+			previous.shutdown(1, TimeUnit.MINUTES);
+		}
+		if (batchFlusher != null) {
+			batchFlusher.shutdown();
+			batchFlusher = null;
+		}
+		for (ListenerEndpoint endpoint : listenerEndpoints) {
+			endpoint.flush();
+		}
+		if (clock instanceof CoarseClock) {
+			((CoarseClock) clock).close();
+		}
+	}
+
+	void publish(TransactionInfo transaction, EventType type) {
+		long start = overheadStart();
+		LongTransactionWatchdog currentWatchdog = watchdog;
+		if (currentWatchdog != null && type == EventType.BEGIN && !transaction.isNested()) {
+			currentWatchdog.watch(transaction);
+		}
+		AsyncEventDispatcher dispatcher = asyncDispatcher;
+		if (type == EventType.BEGIN ? transaction.isBuffered() : !transaction.isRetained()) {
+			// the outcome decides whether listeners see this transaction
+		} else if (dispatcher == null) {
+			deliver(transaction, type);
+		} else {
+			transaction.retain();
+			if (!dispatcher.publish(transaction, type)) {
+				transaction.release();
+				if (dispatcher.isShutdown()) {
+					// the dispatcher was replaced or stopped after it was read
+					deliver(transaction, type);
+				}
+			}
+		}
+		overheadEnd(start);
+	}
+
+	/**
+	 * Delivers an event taken from the async dispatcher's ring and gives back
+	 * the reference taken when it was published.
+	 */
+	void deliverQueued(TransactionInfo transaction, EventType type) {
+		long start = overheadStart();
+		try {
+			deliver(transaction, type);
+		} finally {
+			transaction.release();
+			overheadEnd(start);
+		}
+	}
+
+	void deliver(TransactionInfo transaction, EventType type) {
+		TransactionEvent event = transaction.getEvent();
+		ListenerEndpoint[] endpoints = listenerEndpoints;
+		for (int i = 0; i < endpoints.length; i++) {
+			ListenerEndpoint endpoint = endpoints[i];
+			if (type == EventType.BEGIN) {
+				endpoint.begin(event);
+			} else {
+				endpoint.complete(event);
+			}
+		}
+	}
+
+	void deliverLongRunning(TransactionInfo transaction, long thresholdNanos) {
+		TransactionEvent event = transaction.getEvent();
+		ListenerEndpoint[] endpoints = listenerEndpoints;
+		for (int i = 0; i < endpoints.length; i++) {
+			endpoints[i].longRunning(event, thresholdNanos);
+		}
+	}
+
 	@Override
 	public PrintWriter getLogWriter() throws SQLException {
 		return dataSource.getLogWriter();
@@ -81,8 +591,9 @@ public class DataSourceMonitor implements DataSource {
 	public Connection getConnection() throws SQLException {
 		Connection connection = dataSource.getConnection();
 		if (!(connection instanceof ConnectionMonitor)) {
-			connection = new ConnectionMonitor(connection, this);
-			connectionQueue.add(connection);
+			ConnectionMonitor monitor = new ConnectionMonitor(connection, this);
+			connections.register(monitor);
+			connection = monitor;
 		}
 		return connection;
 	}
@@ -91,14 +602,24 @@ public class DataSourceMonitor implements DataSource {
 	public Connection getConnection(String username, String password) throws SQLException {
 		Connection connection = dataSource.getConnection(username, password);
 		if (!(connection instanceof ConnectionMonitor)) {
-			connection = new ConnectionMonitor(connection, this);
-			connectionQueue.add(connection);
+			ConnectionMonitor monitor = new ConnectionMonitor(connection, this);
+			connections.register(monitor);
+			connection = monitor;
 		}
 		return connection;
 	}
 	
 	public void removeConnection(Connection connection) {
-		connectionQueue.remove(connection);
+		if (connection instanceof ConnectionMonitor) {
+			connections.unregister((ConnectionMonitor) connection);
+		}
+	}
+
+	/**
+	 * @return the connections handed out and not yet closed
+	 */
+	public ConnectionRegistry getConnections() {
+		return connections;
 	}
 
 }
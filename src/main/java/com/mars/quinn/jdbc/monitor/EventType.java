@@ -0,0 +1,5 @@
+package com.mars.quinn.jdbc.monitor;
+
+enum EventType {
+	BEGIN, COMMIT, ROLLBACK, ABANDON, FAIL
+}
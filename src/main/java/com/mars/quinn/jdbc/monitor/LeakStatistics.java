@@ -0,0 +1,80 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what connections still had open when they were closed, by the call
+ * site that opened it: transactions that were neither committed nor rolled
+ * back, and statements that were never closed.
+ */
+public final class LeakStatistics {
+
+	private final ConcurrentMap<String, LongAdder> abandonedTransactions = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, LongAdder> unclosedStatements = new ConcurrentHashMap<>();
+
+	void abandonedTransaction(String callSite) {
+		counter(abandonedTransactions, callSite).increment();
+	}
+
+	void unclosedStatements(String callSite, int count) {
+		counter(unclosedStatements, callSite).add(count);
+	}
+
+	private static LongAdder counter(ConcurrentMap<String, LongAdder> counters, String callSite) {
+		LongAdder counter = counters.get(callSite);
+		if (counter == null) {
+			counter = new LongAdder();
+			LongAdder existing = counters.putIfAbsent(callSite, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return abandoned transactions by the call site that began them
+	 */
+	public Map<String, Long> getAbandonedTransactions() {
+		return snapshot(abandonedTransactions);
+	}
+
+	/**
+	 * @return statements left open by the call site that created them, or
+	 *         under "unknown" when statement call sites were not captured, see
+	 *         {@link DataSourceMonitor#setCaptureStatementCallSites(boolean)}
+	 */
+	public Map<String, Long> getUnclosedStatements() {
+		return snapshot(unclosedStatements);
+	}
+
+	public long getAbandonedTransactionCount() {
+		return total(abandonedTransactions);
+	}
+
+	public long getUnclosedStatementCount() {
+		return total(unclosedStatements);
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentMap<String, LongAdder> counters) {
+		Map<String, Long> result = new TreeMap<>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	private static long total(ConcurrentMap<String, LongAdder> counters) {
+		long total = 0;
+		for (LongAdder counter : counters.values()) {
+			total += counter.sum();
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,168 @@
+package com.mars.quinn.jdbc.monitor;
+
+import com.mars.quinn.jdbc.monitor.event.BatchTransactionListener;
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+
+/**
+ * Adapts one registered listener, of either kind, to the way
+ * {@link DataSourceMonitor} delivers events.
+ */
+abstract class ListenerEndpoint {
+
+	abstract void begin(TransactionEvent event);
+
+	abstract void complete(TransactionEvent event);
+
+	void longRunning(TransactionEvent event, long thresholdNanos) {
+	}
+
+	/**
+	 * Delivers a pending batch whose oldest event was added at least the age
+	 * limit before {@code now}.
+	 */
+	void flushAged(long now) {
+	}
+
+	void flush() {
+	}
+
+	static final class Single extends ListenerEndpoint {
+
+		private final TransactionListener listener;
+
+		Single(TransactionListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		void begin(TransactionEvent event) {
+			listener.onBegin(event);
+		}
+
+		@Override
+		void complete(TransactionEvent event) {
+			TransactionState state = event.getState();
+			if (state == TransactionState.COMMIT) {
+				listener.onCommit(event);
+			} else if (state == TransactionState.ABANDONED) {
+				listener.onAbandoned(event);
+			} else if (state == TransactionState.FAILED) {
+				listener.onFailed(event);
+			} else {
+				listener.onRollback(event);
+			}
+		}
+
+		@Override
+		void longRunning(TransactionEvent event, long thresholdNanos) {
+			listener.onLongRunning(event, thresholdNanos);
+		}
+
+	}
+
+	/**
+	 * Collects events into a buffer and hands the full buffer to the listener.
+	 * The listener runs under {@code flushLock} only, with a spare buffer
+	 * swapped in, so adders wait for the listener only when the spare is full
+	 * too.
+	 */
+	static final class Batching extends ListenerEndpoint {
+
+		private final BatchTransactionListener listener;
+
+		private final int maxBatchSize;
+
+		private final long maxAgeNanos;
+
+		private final Object flushLock = new Object();
+
+		private TransactionEvent[] buffer;
+
+		private TransactionEvent[] spare;
+
+		private int count;
+
+		private long firstAdded;
+
+		Batching(BatchTransactionListener listener, int maxBatchSize, long maxAgeNanos) {
+			if (maxBatchSize < 1) {
+				throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+			}
+			this.listener = listener;
+			this.maxBatchSize = maxBatchSize;
+			this.maxAgeNanos = maxAgeNanos;
+			this.buffer = new TransactionEvent[maxBatchSize];
+			this.spare = new TransactionEvent[maxBatchSize];
+		}
+
+		long getMaxAgeNanos() {
+			return maxAgeNanos;
+		}
+
+		@Override
+		void begin(TransactionEvent event) {
+		}
+
+		@Override
+		void complete(TransactionEvent event) {
+			while (true) {
+				synchronized (this) {
+					if (count < maxBatchSize) {
+						if (count == 0) {
+							firstAdded = System.nanoTime();
+						}
+						event.retain();
+						buffer[count++] = event;
+						if (count < maxBatchSize) {
+							return;
+						}
+						break;
+					}
+				}
+				flush();
+			}
+			flush();
+		}
+
+		@Override
+		void flushAged(long now) {
+			synchronized (this) {
+				if (count == 0 || now - firstAdded < maxAgeNanos) {
+					return;
+				}
+			}
+			flush();
+		}
+
+		@Override
+		void flush() {
+			synchronized (flushLock) {
+				TransactionEvent[] batch;
+				int size;
+				synchronized (this) {
+					if (count == 0) {
+						return;
+					}
+					batch = buffer;
+					size = count;
+					buffer = spare;
+					count = 0;
+				}
+				try {
+					listener.onBatch(batch, size);
+				} finally {
+					for (int i = 0; i < size; i++) {
+						batch[i].release();
+						batch[i] = null;
+					}
+					synchronized (this) {
+						spare = batch;
+					}
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,75 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.mars.quinn.jdbc.monitor.support.HashedTimingWheel;
+import com.mars.quinn.jdbc.monitor.support.HashedTimingWheel.Timeout;
+
+/**
+ * Reports transactions that stay open past configured thresholds while they
+ * are still running. Each open transaction holds one timeout on a
+ * {@link HashedTimingWheel} for its next threshold, and a reference to the
+ * transaction until the timeout fires or is cancelled.
+ */
+final class LongTransactionWatchdog {
+
+	private final DataSourceMonitor dataSource;
+
+	private final HashedTimingWheel wheel;
+
+	private final long[] thresholdNanos;
+
+	LongTransactionWatchdog(DataSourceMonitor dataSource, long tickNanos, long[] thresholdNanos) {
+		if (thresholdNanos.length == 0) {
+			throw new IllegalArgumentException("At least one threshold is required");
+		}
+		this.dataSource = dataSource;
+		this.thresholdNanos = thresholdNanos.clone();
+		Arrays.sort(this.thresholdNanos);
+		this.wheel = new HashedTimingWheel("jdbc-monitor-watchdog", tickNanos, TimeUnit.NANOSECONDS, 512);
+	}
+
+	void watch(TransactionInfo transaction) {
+		schedule(transaction, 0);
+	}
+
+	private void schedule(TransactionInfo transaction, int threshold) {
+		long delay = thresholdNanos[threshold] - transaction.getCostNanos();
+		transaction.retain();
+		transaction.setWatchdogTimeout(wheel.schedule(new Watch(transaction, threshold), delay, TimeUnit.NANOSECONDS));
+	}
+
+	void stop() {
+		wheel.stop();
+	}
+
+	private final class Watch implements HashedTimingWheel.Task {
+
+		private final TransactionInfo transaction;
+
+		private final int threshold;
+
+		Watch(TransactionInfo transaction, int threshold) {
+			this.transaction = transaction;
+			this.threshold = threshold;
+		}
+
+		@Override
+		public void expired(Timeout timeout) {
+			try {
+				if (transaction.isComplete()) {
+					return;
+				}
+				if (threshold + 1 < thresholdNanos.length) {
+					schedule(transaction, threshold + 1);
+				}
+				dataSource.deliverLongRunning(transaction, thresholdNanos[threshold]);
+			} finally {
+				transaction.release();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,40 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A deterministic {@link MonitorClock} that only moves when told to.
+ */
+public class ManualClock implements MonitorClock {
+
+	private final long originMillis;
+
+	private final AtomicLong nanoTime = new AtomicLong();
+
+	public ManualClock() {
+		this(0);
+	}
+
+	public ManualClock(long originMillis) {
+		this.originMillis = originMillis;
+	}
+
+	@Override
+	public long nanoTime() {
+		return nanoTime.get();
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return originMillis + TimeUnit.NANOSECONDS.toMillis(nanoTime.get());
+	}
+
+	public void advance(long time, TimeUnit unit) {
+		if (time < 0) {
+			throw new IllegalArgumentException("A clock cannot go backwards: " + time);
+		}
+		nanoTime.addAndGet(unit.toNanos(time));
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.mars.quinn.jdbc.monitor;
+
+/**
+ * Time source used for transaction and statement timing.
+ */
+public interface MonitorClock {
+
+	/**
+	 * Backed by {@link System#nanoTime()} and {@link System#currentTimeMillis()}.
+	 */
+	MonitorClock PRECISE = new MonitorClock() {
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+	};
+
+	/**
+	 * @return a monotonic timestamp in nanoseconds, only meaningful as a
+	 *         difference between two calls
+	 */
+	long nanoTime();
+
+	/**
+	 * @return the wall clock time in milliseconds
+	 */
+	long currentTimeMillis();
+
+}
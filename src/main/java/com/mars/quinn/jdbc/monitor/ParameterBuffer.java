@@ -0,0 +1,172 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.math.BigDecimal;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+/**
+ * The parameters currently set on one prepared statement. Primitives are
+ * stored unboxed, strings and byte arrays are cut to a maximum length, and
+ * streams and LOBs are kept only as their length.
+ */
+final class ParameterBuffer {
+
+	private final int maxLength;
+
+	private byte[] types = new byte[8];
+
+	private long[] bits = new long[8];
+
+	private Object[] refs = new Object[8];
+
+	/**
+	 * One past the highest parameter index set since the last clear.
+	 */
+	private int count;
+
+	ParameterBuffer(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	private int slot(int parameterIndex, byte type) {
+		int i = parameterIndex - 1;
+		if (i >= types.length) {
+			int length = Math.max(types.length << 1, i + 1);
+			types = Arrays.copyOf(types, length);
+			bits = Arrays.copyOf(bits, length);
+			refs = Arrays.copyOf(refs, length);
+		}
+		if (i >= count) {
+			count = i + 1;
+		}
+		types[i] = type;
+		refs[i] = null;
+		return i;
+	}
+
+	void setNull(int parameterIndex) {
+		if (parameterIndex > 0) {
+			slot(parameterIndex, BoundParameters.NULL);
+		}
+	}
+
+	void setBoolean(int parameterIndex, boolean x) {
+		if (parameterIndex > 0) {
+			bits[slot(parameterIndex, BoundParameters.BOOLEAN)] = x ? 1 : 0;
+		}
+	}
+
+	void setLong(int parameterIndex, long x) {
+		if (parameterIndex > 0) {
+			bits[slot(parameterIndex, BoundParameters.INTEGER)] = x;
+		}
+	}
+
+	void setFloat(int parameterIndex, float x) {
+		if (parameterIndex > 0) {
+			bits[slot(parameterIndex, BoundParameters.FLOAT)] = Float.floatToRawIntBits(x);
+		}
+	}
+
+	void setDouble(int parameterIndex, double x) {
+		if (parameterIndex > 0) {
+			bits[slot(parameterIndex, BoundParameters.DOUBLE)] = Double.doubleToRawLongBits(x);
+		}
+	}
+
+	void setDecimal(int parameterIndex, BigDecimal x) {
+		if (x == null) {
+			setNull(parameterIndex);
+		} else if (parameterIndex > 0) {
+			refs[slot(parameterIndex, BoundParameters.DECIMAL)] = x;
+		}
+	}
+
+	void setString(int parameterIndex, String x) {
+		if (x == null) {
+			setNull(parameterIndex);
+		} else if (parameterIndex > 0) {
+			int i = slot(parameterIndex, BoundParameters.STRING);
+			bits[i] = x.length();
+			refs[i] = x.length() > maxLength ? x.substring(0, maxLength) : x;
+		}
+	}
+
+	void setBytes(int parameterIndex, byte[] x) {
+		if (x == null) {
+			setNull(parameterIndex);
+		} else if (parameterIndex > 0) {
+			int i = slot(parameterIndex, BoundParameters.BYTES);
+			bits[i] = x.length;
+			refs[i] = Arrays.copyOf(x, Math.min(x.length, maxLength));
+		}
+	}
+
+	/**
+	 * @param type
+	 *            {@link BoundParameters#DATE}, {@code TIME} or
+	 *            {@code TIMESTAMP}
+	 */
+	void setTemporal(int parameterIndex, byte type, java.util.Date x) {
+		if (x == null) {
+			setNull(parameterIndex);
+		} else if (parameterIndex > 0) {
+			bits[slot(parameterIndex, type)] = x.getTime();
+		}
+	}
+
+	/**
+	 * Records a stream or LOB by its kind and length, -1 when unknown.
+	 * 
+	 * @param type
+	 *            {@link BoundParameters#STREAM} or {@code LOB}
+	 */
+	void setOpaque(int parameterIndex, byte type, String kind, long length) {
+		if (parameterIndex > 0) {
+			int i = slot(parameterIndex, type);
+			bits[i] = length;
+			refs[i] = kind;
+		}
+	}
+
+	void setObject(int parameterIndex, Object x) {
+		if (x == null) {
+			setNull(parameterIndex);
+		} else if (x instanceof String) {
+			setString(parameterIndex, (String) x);
+		} else if (x instanceof Integer || x instanceof Long || x instanceof Short || x instanceof Byte) {
+			setLong(parameterIndex, ((Number) x).longValue());
+		} else if (x instanceof Double) {
+			setDouble(parameterIndex, (Double) x);
+		} else if (x instanceof Float) {
+			setFloat(parameterIndex, (Float) x);
+		} else if (x instanceof BigDecimal) {
+			setDecimal(parameterIndex, (BigDecimal) x);
+		} else if (x instanceof Boolean) {
+			setBoolean(parameterIndex, (Boolean) x);
+		} else if (x instanceof byte[]) {
+			setBytes(parameterIndex, (byte[]) x);
+		} else if (x instanceof Timestamp) {
+			setTemporal(parameterIndex, BoundParameters.TIMESTAMP, (Timestamp) x);
+		} else if (x instanceof Time) {
+			setTemporal(parameterIndex, BoundParameters.TIME, (Time) x);
+		} else if (x instanceof java.util.Date) {
+			setTemporal(parameterIndex, BoundParameters.DATE, (java.util.Date) x);
+		} else if (parameterIndex > 0) {
+			refs[slot(parameterIndex, BoundParameters.OBJECT)] = x.getClass().getSimpleName();
+		}
+	}
+
+	void clear() {
+		Arrays.fill(types, 0, count, BoundParameters.UNSET);
+		Arrays.fill(refs, 0, count, null);
+		count = 0;
+	}
+
+	BoundParameters snapshot(String sql) {
+		return new BoundParameters(sql, Arrays.copyOf(types, count), Arrays.copyOf(bits, count),
+				Arrays.copyOf(refs, count));
+	}
+
+}
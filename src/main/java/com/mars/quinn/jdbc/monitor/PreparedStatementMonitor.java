@@ -21,161 +21,296 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.Calendar;
 
-import com.mars.quinn.jdbc.monitor.ConnectionMonitor.TransactionInfo;
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
 
 public class PreparedStatementMonitor extends StatementMonitor implements PreparedStatement {
 
 	private final PreparedStatement preparedStatement;
 	
-	public PreparedStatementMonitor(PreparedStatement preparedStatement, TransactionInfo transaction) {
-		super(preparedStatement, transaction);
+	private final int shapeId;
+	
+	private final String sql;
+	
+	/**
+	 * Null unless parameter capture was enabled when the statement was
+	 * prepared.
+	 */
+	private final ParameterBuffer parameters;
+	
+	public PreparedStatementMonitor(PreparedStatement preparedStatement, ConnectionMonitor connection, String sql) {
+		super(preparedStatement, connection);
 		this.preparedStatement = preparedStatement;
+		this.shapeId = SqlShapeDictionary.global().intern(sql);
+		this.sql = sql;
+		this.parameters = connection.newParameterBuffer();
+	}
+
+	@Override
+	int statementShapeId() {
+		return shapeId;
 	}
 
 	@Override
 	public ResultSet executeQuery() throws SQLException {
-		return preparedStatement.executeQuery();
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			ResultSet resultSet = preparedStatement.executeQuery();
+			failed = false;
+			return monitor(resultSet);
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed, parameters, sql);
+		}
 	}
 
 	@Override
 	public int executeUpdate() throws SQLException {
-		return preparedStatement.executeUpdate();
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			int count = preparedStatement.executeUpdate();
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed, parameters, sql);
+		}
+	}
+
+	@Override
+	public long executeLargeUpdate() throws SQLException {
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			long count = preparedStatement.executeLargeUpdate();
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed, parameters, sql);
+		}
 	}
 
 	@Override
 	public void setNull(int parameterIndex, int sqlType) throws SQLException {
 		preparedStatement.setNull(parameterIndex, sqlType);
+		if (parameters != null) {
+			parameters.setNull(parameterIndex);
+		}
 	}
 
 	@Override
 	public void setBoolean(int parameterIndex, boolean x) throws SQLException {
 		preparedStatement.setBoolean(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setBoolean(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setByte(int parameterIndex, byte x) throws SQLException {
 		preparedStatement.setByte(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setLong(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setShort(int parameterIndex, short x) throws SQLException {
 		preparedStatement.setShort(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setLong(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setInt(int parameterIndex, int x) throws SQLException {
 		preparedStatement.setInt(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setLong(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setLong(int parameterIndex, long x) throws SQLException {
 		preparedStatement.setLong(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setLong(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setFloat(int parameterIndex, float x) throws SQLException {
 		preparedStatement.setFloat(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setFloat(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setDouble(int parameterIndex, double x) throws SQLException {
 		preparedStatement.setDouble(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setDouble(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
 		preparedStatement.setBigDecimal(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setDecimal(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setString(int parameterIndex, String x) throws SQLException {
 		preparedStatement.setString(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setString(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setBytes(int parameterIndex, byte[] x) throws SQLException {
-		preparedStatement.setBytes(parameterIndex, x);		
+		preparedStatement.setBytes(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setBytes(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setDate(int parameterIndex, Date x) throws SQLException {
-		preparedStatement.setDate(parameterIndex, x);		
+		preparedStatement.setDate(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setTemporal(parameterIndex, BoundParameters.DATE, x);
+		}
 	}
 
 	@Override
 	public void setTime(int parameterIndex, Time x) throws SQLException {
-		preparedStatement.setTime(parameterIndex, x);		
+		preparedStatement.setTime(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setTemporal(parameterIndex, BoundParameters.TIME, x);
+		}
 	}
 
 	@Override
 	public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
-		preparedStatement.setTimestamp(parameterIndex, x);		
+		preparedStatement.setTimestamp(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setTemporal(parameterIndex, BoundParameters.TIMESTAMP, x);
+		}
 	}
 
 	@Override
 	public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
-		preparedStatement.setAsciiStream(parameterIndex, x, length);		
+		preparedStatement.setAsciiStream(parameterIndex, x, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "ascii stream", length);
+		}
 	}
 
 	@SuppressWarnings("deprecation")
 	@Override
 	public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
 		preparedStatement.setUnicodeStream(parameterIndex, x, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "unicode stream", length);
+		}
 	}
 
 	@Override
 	public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
 		preparedStatement.setBinaryStream(parameterIndex, x, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "binary stream", length);
+		}
 	}
 
 	@Override
 	public void clearParameters() throws SQLException {
-		preparedStatement.clearParameters();		
+		preparedStatement.clearParameters();
+		if (parameters != null) {
+			parameters.clear();
+		}
 	}
 
 	@Override
 	public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
-		preparedStatement.setObject(parameterIndex, x, targetSqlType);		
+		preparedStatement.setObject(parameterIndex, x, targetSqlType);
+		if (parameters != null) {
+			parameters.setObject(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setObject(int parameterIndex, Object x) throws SQLException {
-		preparedStatement.setObject(parameterIndex, x);		
+		preparedStatement.setObject(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setObject(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public boolean execute() throws SQLException {
-		return preparedStatement.execute();
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			boolean result = preparedStatement.execute();
+			failed = false;
+			return result;
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed, parameters, sql);
+		}
 	}
 
 	@Override
 	public void addBatch() throws SQLException {
 		preparedStatement.addBatch();
+		addBatchRow();
 	}
 
 	@Override
 	public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
-		preparedStatement.setCharacterStream(parameterIndex, reader, length);		
+		preparedStatement.setCharacterStream(parameterIndex, reader, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "character stream", length);
+		}
 	}
 
 	@Override
 	public void setRef(int parameterIndex, Ref x) throws SQLException {
-		preparedStatement.setRef(parameterIndex, x);		
+		preparedStatement.setRef(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setObject(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setBlob(int parameterIndex, Blob x) throws SQLException {
-		preparedStatement.setBlob(parameterIndex, x);		
+		preparedStatement.setBlob(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "blob", lengthOf(x));
+		}
 	}
 
 	@Override
 	public void setClob(int parameterIndex, Clob x) throws SQLException {
 		preparedStatement.setClob(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "clob", lengthOf(x));
+		}
 	}
 
 	@Override
 	public void setArray(int parameterIndex, Array x) throws SQLException {
-		preparedStatement.setArray(parameterIndex, x);		
+		preparedStatement.setArray(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setObject(parameterIndex, x);
+		}
 	}
 
 	@Override
@@ -185,27 +320,42 @@ public class PreparedStatementMonitor extends StatementMonitor implements Prepar
 
 	@Override
 	public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
-		preparedStatement.setDate(parameterIndex, x, cal);		
+		preparedStatement.setDate(parameterIndex, x, cal);
+		if (parameters != null) {
+			parameters.setTemporal(parameterIndex, BoundParameters.DATE, x);
+		}
 	}
 
 	@Override
 	public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
-		preparedStatement.setTime(parameterIndex, x, cal);		
+		preparedStatement.setTime(parameterIndex, x, cal);
+		if (parameters != null) {
+			parameters.setTemporal(parameterIndex, BoundParameters.TIME, x);
+		}
 	}
 
 	@Override
 	public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
-		preparedStatement.setTimestamp(parameterIndex, x, cal);		
+		preparedStatement.setTimestamp(parameterIndex, x, cal);
+		if (parameters != null) {
+			parameters.setTemporal(parameterIndex, BoundParameters.TIMESTAMP, x);
+		}
 	}
 
 	@Override
 	public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
-		preparedStatement.setNull(parameterIndex, sqlType, typeName);		
+		preparedStatement.setNull(parameterIndex, sqlType, typeName);
+		if (parameters != null) {
+			parameters.setNull(parameterIndex);
+		}
 	}
 
 	@Override
 	public void setURL(int parameterIndex, URL x) throws SQLException {
-		preparedStatement.setURL(parameterIndex, x);		
+		preparedStatement.setURL(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setString(parameterIndex, x == null ? null : x.toString());
+		}
 	}
 
 	@Override
@@ -215,97 +365,174 @@ public class PreparedStatementMonitor extends StatementMonitor implements Prepar
 
 	@Override
 	public void setRowId(int parameterIndex, RowId x) throws SQLException {
-		preparedStatement.setRowId(parameterIndex, x);		
+		preparedStatement.setRowId(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setObject(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setNString(int parameterIndex, String value) throws SQLException {
-		preparedStatement.setNString(parameterIndex, value);		
+		preparedStatement.setNString(parameterIndex, value);
+		if (parameters != null) {
+			parameters.setString(parameterIndex, value);
+		}
 	}
 
 	@Override
 	public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
-		preparedStatement.setNCharacterStream(parameterIndex, value, length);		
+		preparedStatement.setNCharacterStream(parameterIndex, value, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "character stream", length);
+		}
 	}
 
 	@Override
 	public void setNClob(int parameterIndex, NClob value) throws SQLException {
-		preparedStatement.setNClob(parameterIndex, value);		
+		preparedStatement.setNClob(parameterIndex, value);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "nclob", lengthOf(value));
+		}
 	}
 
 	@Override
 	public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
-		preparedStatement.setClob(parameterIndex, reader, length);		
+		preparedStatement.setClob(parameterIndex, reader, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "clob", length);
+		}
 	}
 
 	@Override
 	public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
-		preparedStatement.setBlob(parameterIndex, inputStream, length);		
+		preparedStatement.setBlob(parameterIndex, inputStream, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "blob", length);
+		}
 	}
 
 	@Override
 	public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
-		preparedStatement.setNClob(parameterIndex, reader, length);		
+		preparedStatement.setNClob(parameterIndex, reader, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "nclob", length);
+		}
 	}
 
 	@Override
 	public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
-		preparedStatement.setSQLXML(parameterIndex, xmlObject);		
+		preparedStatement.setSQLXML(parameterIndex, xmlObject);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "sqlxml", -1);
+		}
 	}
 
 	@Override
 	public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
-		preparedStatement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);		
+		preparedStatement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+		if (parameters != null) {
+			parameters.setObject(parameterIndex, x);
+		}
 	}
 
 	@Override
 	public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
-		preparedStatement.setAsciiStream(parameterIndex, x, length);		
+		preparedStatement.setAsciiStream(parameterIndex, x, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "ascii stream", length);
+		}
 	}
 
 	@Override
 	public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
-		preparedStatement.setBinaryStream(parameterIndex, x, length);		
+		preparedStatement.setBinaryStream(parameterIndex, x, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "binary stream", length);
+		}
 	}
 
 	@Override
 	public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
-		preparedStatement.setCharacterStream(parameterIndex, reader, length);		
+		preparedStatement.setCharacterStream(parameterIndex, reader, length);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "character stream", length);
+		}
 	}
 
 	@Override
 	public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
-		preparedStatement.setAsciiStream(parameterIndex, x);		
+		preparedStatement.setAsciiStream(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "ascii stream", -1);
+		}
 	}
 
 	@Override
 	public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
-		preparedStatement.setBinaryStream(parameterIndex, x);		
+		preparedStatement.setBinaryStream(parameterIndex, x);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "binary stream", -1);
+		}
 	}
 
 	@Override
 	public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
-		preparedStatement.setCharacterStream(parameterIndex, reader);		
+		preparedStatement.setCharacterStream(parameterIndex, reader);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "character stream", -1);
+		}
 	}
 
 	@Override
 	public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
-		preparedStatement.setNCharacterStream(parameterIndex, value);		
+		preparedStatement.setNCharacterStream(parameterIndex, value);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.STREAM, "character stream", -1);
+		}
 	}
 
 	@Override
 	public void setClob(int parameterIndex, Reader reader) throws SQLException {
-		preparedStatement.setClob(parameterIndex, reader);		
+		preparedStatement.setClob(parameterIndex, reader);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "clob", -1);
+		}
 	}
 
 	@Override
 	public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
-		preparedStatement.setBlob(parameterIndex, inputStream);		
+		preparedStatement.setBlob(parameterIndex, inputStream);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "blob", -1);
+		}
 	}
 
 	@Override
 	public void setNClob(int parameterIndex, Reader reader) throws SQLException {
-		preparedStatement.setNClob(parameterIndex, reader);		
+		preparedStatement.setNClob(parameterIndex, reader);
+		if (parameters != null) {
+			parameters.setOpaque(parameterIndex, BoundParameters.LOB, "nclob", -1);
+		}
+	}
+
+	/**
+	 * @return the length of a LOB, which drivers keep at hand, or -1 when it
+	 *         is null or no longer readable
+	 */
+	private static long lengthOf(Blob x) {
+		try {
+			return x == null ? -1 : x.length();
+		} catch (SQLException e) {
+			return -1;
+		}
+	}
+
+	private static long lengthOf(Clob x) {
+		try {
+			return x == null ? -1 : x.length();
+		} catch (SQLException e) {
+			return -1;
+		}
 	}
 
 }
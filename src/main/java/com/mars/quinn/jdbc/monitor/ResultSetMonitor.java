@@ -0,0 +1,1167 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.Map;
+
+/**
+ * Counts the rows read from a result set, the time spent in {@link #next()}
+ * and the approximate bytes returned by the getters. The counters are plain
+ * fields, as a result set is read by one thread, and are handed to the
+ * owning statement when the result set is closed.
+ */
+public class ResultSetMonitor implements ResultSet {
+
+	private final ResultSet resultSet;
+
+	private final StatementMonitor statement;
+
+	private final MonitorClock clock;
+
+	private long rows;
+
+	private long fetchNanos;
+
+	private long bytes;
+
+	private SqlLog target;
+
+	private int targetIndex = -1;
+
+	private int targetGeneration;
+
+	private boolean flushed;
+
+	ResultSetMonitor(ResultSet resultSet, StatementMonitor statement, MonitorClock clock) {
+		this.resultSet = resultSet;
+		this.statement = statement;
+		this.clock = clock;
+	}
+
+	ResultSet getDelegate() {
+		return resultSet;
+	}
+
+	/**
+	 * @param index
+	 *            the entry of {@code log} for the execution that produced this
+	 *            result set, or -1 when it was not recorded
+	 * @param generation
+	 *            the {@link SqlLog#generation()} the entry was appended in
+	 */
+	void attach(SqlLog log, int index, int generation) {
+		this.target = log;
+		this.targetIndex = index;
+		this.targetGeneration = generation;
+	}
+
+	/**
+	 * Adds the counters to the statement's entry, once.
+	 */
+	void flush() {
+		if (!flushed) {
+			flushed = true;
+			if (target != null && targetIndex >= 0) {
+				target.addFetch(targetIndex, targetGeneration, rows, fetchNanos, bytes);
+			}
+		}
+	}
+
+	/**
+	 * @return a rough size of a value read through {@code getObject}
+	 */
+	private static long sizeOf(Object value) {
+		if (value == null) {
+			return 0;
+		}
+		if (value instanceof String) {
+			return ((String) value).length();
+		}
+		if (value instanceof byte[]) {
+			return ((byte[]) value).length;
+		}
+		if (value instanceof Integer || value instanceof Float) {
+			return 4;
+		}
+		if (value instanceof Number || value instanceof java.util.Date) {
+			return value instanceof BigDecimal ? 16 : 8;
+		}
+		if (value instanceof Boolean) {
+			return 1;
+		}
+		return 0;
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		return resultSet.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return resultSet.isWrapperFor(iface);
+	}
+
+	@Override
+	public boolean next() throws SQLException {
+		long start = clock.nanoTime();
+		boolean hasRow = resultSet.next();
+		fetchNanos += clock.nanoTime() - start;
+		if (hasRow) {
+			rows++;
+		}
+		return hasRow;
+	}
+
+	@Override
+	public void close() throws SQLException {
+		resultSet.close();
+		flush();
+		statement.resultSetClosed(this);
+	}
+
+	@Override
+	public boolean wasNull() throws SQLException {
+		return resultSet.wasNull();
+	}
+
+	@Override
+	public String getString(int columnIndex) throws SQLException {
+		String value = resultSet.getString(columnIndex);
+		if (value != null) {
+			bytes += value.length();
+		}
+		return value;
+	}
+
+	@Override
+	public boolean getBoolean(int columnIndex) throws SQLException {
+		bytes += 1;
+		return resultSet.getBoolean(columnIndex);
+	}
+
+	@Override
+	public byte getByte(int columnIndex) throws SQLException {
+		bytes += 1;
+		return resultSet.getByte(columnIndex);
+	}
+
+	@Override
+	public short getShort(int columnIndex) throws SQLException {
+		bytes += 2;
+		return resultSet.getShort(columnIndex);
+	}
+
+	@Override
+	public int getInt(int columnIndex) throws SQLException {
+		bytes += 4;
+		return resultSet.getInt(columnIndex);
+	}
+
+	@Override
+	public long getLong(int columnIndex) throws SQLException {
+		bytes += 8;
+		return resultSet.getLong(columnIndex);
+	}
+
+	@Override
+	public float getFloat(int columnIndex) throws SQLException {
+		bytes += 4;
+		return resultSet.getFloat(columnIndex);
+	}
+
+	@Override
+	public double getDouble(int columnIndex) throws SQLException {
+		bytes += 8;
+		return resultSet.getDouble(columnIndex);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public BigDecimal getBigDecimal(int columnIndex, int scale) throws SQLException {
+		bytes += 16;
+		return resultSet.getBigDecimal(columnIndex, scale);
+	}
+
+	@Override
+	public byte[] getBytes(int columnIndex) throws SQLException {
+		byte[] value = resultSet.getBytes(columnIndex);
+		if (value != null) {
+			bytes += value.length;
+		}
+		return value;
+	}
+
+	@Override
+	public Date getDate(int columnIndex) throws SQLException {
+		bytes += 8;
+		return resultSet.getDate(columnIndex);
+	}
+
+	@Override
+	public Time getTime(int columnIndex) throws SQLException {
+		bytes += 8;
+		return resultSet.getTime(columnIndex);
+	}
+
+	@Override
+	public Timestamp getTimestamp(int columnIndex) throws SQLException {
+		bytes += 8;
+		return resultSet.getTimestamp(columnIndex);
+	}
+
+	@Override
+	public InputStream getAsciiStream(int columnIndex) throws SQLException {
+		return resultSet.getAsciiStream(columnIndex);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public InputStream getUnicodeStream(int columnIndex) throws SQLException {
+		return resultSet.getUnicodeStream(columnIndex);
+	}
+
+	@Override
+	public InputStream getBinaryStream(int columnIndex) throws SQLException {
+		return resultSet.getBinaryStream(columnIndex);
+	}
+
+	@Override
+	public String getString(String columnLabel) throws SQLException {
+		String value = resultSet.getString(columnLabel);
+		if (value != null) {
+			bytes += value.length();
+		}
+		return value;
+	}
+
+	@Override
+	public boolean getBoolean(String columnLabel) throws SQLException {
+		bytes += 1;
+		return resultSet.getBoolean(columnLabel);
+	}
+
+	@Override
+	public byte getByte(String columnLabel) throws SQLException {
+		bytes += 1;
+		return resultSet.getByte(columnLabel);
+	}
+
+	@Override
+	public short getShort(String columnLabel) throws SQLException {
+		bytes += 2;
+		return resultSet.getShort(columnLabel);
+	}
+
+	@Override
+	public int getInt(String columnLabel) throws SQLException {
+		bytes += 4;
+		return resultSet.getInt(columnLabel);
+	}
+
+	@Override
+	public long getLong(String columnLabel) throws SQLException {
+		bytes += 8;
+		return resultSet.getLong(columnLabel);
+	}
+
+	@Override
+	public float getFloat(String columnLabel) throws SQLException {
+		bytes += 4;
+		return resultSet.getFloat(columnLabel);
+	}
+
+	@Override
+	public double getDouble(String columnLabel) throws SQLException {
+		bytes += 8;
+		return resultSet.getDouble(columnLabel);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public BigDecimal getBigDecimal(String columnLabel, int scale) throws SQLException {
+		bytes += 16;
+		return resultSet.getBigDecimal(columnLabel, scale);
+	}
+
+	@Override
+	public byte[] getBytes(String columnLabel) throws SQLException {
+		byte[] value = resultSet.getBytes(columnLabel);
+		if (value != null) {
+			bytes += value.length;
+		}
+		return value;
+	}
+
+	@Override
+	public Date getDate(String columnLabel) throws SQLException {
+		bytes += 8;
+		return resultSet.getDate(columnLabel);
+	}
+
+	@Override
+	public Time getTime(String columnLabel) throws SQLException {
+		bytes += 8;
+		return resultSet.getTime(columnLabel);
+	}
+
+	@Override
+	public Timestamp getTimestamp(String columnLabel) throws SQLException {
+		bytes += 8;
+		return resultSet.getTimestamp(columnLabel);
+	}
+
+	@Override
+	public InputStream getAsciiStream(String columnLabel) throws SQLException {
+		return resultSet.getAsciiStream(columnLabel);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Override
+	public InputStream getUnicodeStream(String columnLabel) throws SQLException {
+		return resultSet.getUnicodeStream(columnLabel);
+	}
+
+	@Override
+	public InputStream getBinaryStream(String columnLabel) throws SQLException {
+		return resultSet.getBinaryStream(columnLabel);
+	}
+
+	@Override
+	public SQLWarning getWarnings() throws SQLException {
+		return resultSet.getWarnings();
+	}
+
+	@Override
+	public void clearWarnings() throws SQLException {
+		resultSet.clearWarnings();
+	}
+
+	@Override
+	public String getCursorName() throws SQLException {
+		return resultSet.getCursorName();
+	}
+
+	@Override
+	public ResultSetMetaData getMetaData() throws SQLException {
+		return resultSet.getMetaData();
+	}
+
+	@Override
+	public Object getObject(int columnIndex) throws SQLException {
+		Object value = resultSet.getObject(columnIndex);
+		bytes += sizeOf(value);
+		return value;
+	}
+
+	@Override
+	public Object getObject(String columnLabel) throws SQLException {
+		Object value = resultSet.getObject(columnLabel);
+		bytes += sizeOf(value);
+		return value;
+	}
+
+	@Override
+	public int findColumn(String columnLabel) throws SQLException {
+		return resultSet.findColumn(columnLabel);
+	}
+
+	@Override
+	public Reader getCharacterStream(int columnIndex) throws SQLException {
+		return resultSet.getCharacterStream(columnIndex);
+	}
+
+	@Override
+	public Reader getCharacterStream(String columnLabel) throws SQLException {
+		return resultSet.getCharacterStream(columnLabel);
+	}
+
+	@Override
+	public BigDecimal getBigDecimal(int columnIndex) throws SQLException {
+		bytes += 16;
+		return resultSet.getBigDecimal(columnIndex);
+	}
+
+	@Override
+	public BigDecimal getBigDecimal(String columnLabel) throws SQLException {
+		bytes += 16;
+		return resultSet.getBigDecimal(columnLabel);
+	}
+
+	@Override
+	public boolean isBeforeFirst() throws SQLException {
+		return resultSet.isBeforeFirst();
+	}
+
+	@Override
+	public boolean isAfterLast() throws SQLException {
+		return resultSet.isAfterLast();
+	}
+
+	@Override
+	public boolean isFirst() throws SQLException {
+		return resultSet.isFirst();
+	}
+
+	@Override
+	public boolean isLast() throws SQLException {
+		return resultSet.isLast();
+	}
+
+	@Override
+	public void beforeFirst() throws SQLException {
+		resultSet.beforeFirst();
+	}
+
+	@Override
+	public void afterLast() throws SQLException {
+		resultSet.afterLast();
+	}
+
+	@Override
+	public boolean first() throws SQLException {
+		return resultSet.first();
+	}
+
+	@Override
+	public boolean last() throws SQLException {
+		return resultSet.last();
+	}
+
+	@Override
+	public int getRow() throws SQLException {
+		return resultSet.getRow();
+	}
+
+	@Override
+	public boolean absolute(int row) throws SQLException {
+		return resultSet.absolute(row);
+	}
+
+	@Override
+	public boolean relative(int rows) throws SQLException {
+		return resultSet.relative(rows);
+	}
+
+	@Override
+	public boolean previous() throws SQLException {
+		return resultSet.previous();
+	}
+
+	@Override
+	public void setFetchDirection(int direction) throws SQLException {
+		resultSet.setFetchDirection(direction);
+	}
+
+	@Override
+	public int getFetchDirection() throws SQLException {
+		return resultSet.getFetchDirection();
+	}
+
+	@Override
+	public void setFetchSize(int rows) throws SQLException {
+		resultSet.setFetchSize(rows);
+	}
+
+	@Override
+	public int getFetchSize() throws SQLException {
+		return resultSet.getFetchSize();
+	}
+
+	@Override
+	public int getType() throws SQLException {
+		return resultSet.getType();
+	}
+
+	@Override
+	public int getConcurrency() throws SQLException {
+		return resultSet.getConcurrency();
+	}
+
+	@Override
+	public boolean rowUpdated() throws SQLException {
+		return resultSet.rowUpdated();
+	}
+
+	@Override
+	public boolean rowInserted() throws SQLException {
+		return resultSet.rowInserted();
+	}
+
+	@Override
+	public boolean rowDeleted() throws SQLException {
+		return resultSet.rowDeleted();
+	}
+
+	@Override
+	public void updateNull(int columnIndex) throws SQLException {
+		resultSet.updateNull(columnIndex);
+	}
+
+	@Override
+	public void updateBoolean(int columnIndex, boolean x) throws SQLException {
+		resultSet.updateBoolean(columnIndex, x);
+	}
+
+	@Override
+	public void updateByte(int columnIndex, byte x) throws SQLException {
+		resultSet.updateByte(columnIndex, x);
+	}
+
+	@Override
+	public void updateShort(int columnIndex, short x) throws SQLException {
+		resultSet.updateShort(columnIndex, x);
+	}
+
+	@Override
+	public void updateInt(int columnIndex, int x) throws SQLException {
+		resultSet.updateInt(columnIndex, x);
+	}
+
+	@Override
+	public void updateLong(int columnIndex, long x) throws SQLException {
+		resultSet.updateLong(columnIndex, x);
+	}
+
+	@Override
+	public void updateFloat(int columnIndex, float x) throws SQLException {
+		resultSet.updateFloat(columnIndex, x);
+	}
+
+	@Override
+	public void updateDouble(int columnIndex, double x) throws SQLException {
+		resultSet.updateDouble(columnIndex, x);
+	}
+
+	@Override
+	public void updateBigDecimal(int columnIndex, BigDecimal x) throws SQLException {
+		resultSet.updateBigDecimal(columnIndex, x);
+	}
+
+	@Override
+	public void updateString(int columnIndex, String x) throws SQLException {
+		resultSet.updateString(columnIndex, x);
+	}
+
+	@Override
+	public void updateBytes(int columnIndex, byte[] x) throws SQLException {
+		resultSet.updateBytes(columnIndex, x);
+	}
+
+	@Override
+	public void updateDate(int columnIndex, Date x) throws SQLException {
+		resultSet.updateDate(columnIndex, x);
+	}
+
+	@Override
+	public void updateTime(int columnIndex, Time x) throws SQLException {
+		resultSet.updateTime(columnIndex, x);
+	}
+
+	@Override
+	public void updateTimestamp(int columnIndex, Timestamp x) throws SQLException {
+		resultSet.updateTimestamp(columnIndex, x);
+	}
+
+	@Override
+	public void updateAsciiStream(int columnIndex, InputStream x, int length) throws SQLException {
+		resultSet.updateAsciiStream(columnIndex, x, length);
+	}
+
+	@Override
+	public void updateBinaryStream(int columnIndex, InputStream x, int length) throws SQLException {
+		resultSet.updateBinaryStream(columnIndex, x, length);
+	}
+
+	@Override
+	public void updateCharacterStream(int columnIndex, Reader reader, int length) throws SQLException {
+		resultSet.updateCharacterStream(columnIndex, reader, length);
+	}
+
+	@Override
+	public void updateObject(int columnIndex, Object x, int scaleOrLength) throws SQLException {
+		resultSet.updateObject(columnIndex, x, scaleOrLength);
+	}
+
+	@Override
+	public void updateObject(int columnIndex, Object x) throws SQLException {
+		resultSet.updateObject(columnIndex, x);
+	}
+
+	@Override
+	public void updateNull(String columnLabel) throws SQLException {
+		resultSet.updateNull(columnLabel);
+	}
+
+	@Override
+	public void updateBoolean(String columnLabel, boolean x) throws SQLException {
+		resultSet.updateBoolean(columnLabel, x);
+	}
+
+	@Override
+	public void updateByte(String columnLabel, byte x) throws SQLException {
+		resultSet.updateByte(columnLabel, x);
+	}
+
+	@Override
+	public void updateShort(String columnLabel, short x) throws SQLException {
+		resultSet.updateShort(columnLabel, x);
+	}
+
+	@Override
+	public void updateInt(String columnLabel, int x) throws SQLException {
+		resultSet.updateInt(columnLabel, x);
+	}
+
+	@Override
+	public void updateLong(String columnLabel, long x) throws SQLException {
+		resultSet.updateLong(columnLabel, x);
+	}
+
+	@Override
+	public void updateFloat(String columnLabel, float x) throws SQLException {
+		resultSet.updateFloat(columnLabel, x);
+	}
+
+	@Override
+	public void updateDouble(String columnLabel, double x) throws SQLException {
+		resultSet.updateDouble(columnLabel, x);
+	}
+
+	@Override
+	public void updateBigDecimal(String columnLabel, BigDecimal x) throws SQLException {
+		resultSet.updateBigDecimal(columnLabel, x);
+	}
+
+	@Override
+	public void updateString(String columnLabel, String x) throws SQLException {
+		resultSet.updateString(columnLabel, x);
+	}
+
+	@Override
+	public void updateBytes(String columnLabel, byte[] x) throws SQLException {
+		resultSet.updateBytes(columnLabel, x);
+	}
+
+	@Override
+	public void updateDate(String columnLabel, Date x) throws SQLException {
+		resultSet.updateDate(columnLabel, x);
+	}
+
+	@Override
+	public void updateTime(String columnLabel, Time x) throws SQLException {
+		resultSet.updateTime(columnLabel, x);
+	}
+
+	@Override
+	public void updateTimestamp(String columnLabel, Timestamp x) throws SQLException {
+		resultSet.updateTimestamp(columnLabel, x);
+	}
+
+	@Override
+	public void updateAsciiStream(String columnLabel, InputStream x, int length) throws SQLException {
+		resultSet.updateAsciiStream(columnLabel, x, length);
+	}
+
+	@Override
+	public void updateBinaryStream(String columnLabel, InputStream x, int length) throws SQLException {
+		resultSet.updateBinaryStream(columnLabel, x, length);
+	}
+
+	@Override
+	public void updateCharacterStream(String columnLabel, Reader reader, int length) throws SQLException {
+		resultSet.updateCharacterStream(columnLabel, reader, length);
+	}
+
+	@Override
+	public void updateObject(String columnLabel, Object x, int scaleOrLength) throws SQLException {
+		resultSet.updateObject(columnLabel, x, scaleOrLength);
+	}
+
+	@Override
+	public void updateObject(String columnLabel, Object x) throws SQLException {
+		resultSet.updateObject(columnLabel, x);
+	}
+
+	@Override
+	public void insertRow() throws SQLException {
+		resultSet.insertRow();
+	}
+
+	@Override
+	public void updateRow() throws SQLException {
+		resultSet.updateRow();
+	}
+
+	@Override
+	public void deleteRow() throws SQLException {
+		resultSet.deleteRow();
+	}
+
+	@Override
+	public void refreshRow() throws SQLException {
+		resultSet.refreshRow();
+	}
+
+	@Override
+	public void cancelRowUpdates() throws SQLException {
+		resultSet.cancelRowUpdates();
+	}
+
+	@Override
+	public void moveToInsertRow() throws SQLException {
+		resultSet.moveToInsertRow();
+	}
+
+	@Override
+	public void moveToCurrentRow() throws SQLException {
+		resultSet.moveToCurrentRow();
+	}
+
+	@Override
+	public Statement getStatement() throws SQLException {
+		return statement;
+	}
+
+	@Override
+	public Object getObject(int columnIndex, Map<String, Class<?>> map) throws SQLException {
+		Object value = resultSet.getObject(columnIndex, map);
+		bytes += sizeOf(value);
+		return value;
+	}
+
+	@Override
+	public Ref getRef(int columnIndex) throws SQLException {
+		return resultSet.getRef(columnIndex);
+	}
+
+	@Override
+	public Blob getBlob(int columnIndex) throws SQLException {
+		return resultSet.getBlob(columnIndex);
+	}
+
+	@Override
+	public Clob getClob(int columnIndex) throws SQLException {
+		return resultSet.getClob(columnIndex);
+	}
+
+	@Override
+	public Array getArray(int columnIndex) throws SQLException {
+		return resultSet.getArray(columnIndex);
+	}
+
+	@Override
+	public Object getObject(String columnLabel, Map<String, Class<?>> map) throws SQLException {
+		Object value = resultSet.getObject(columnLabel, map);
+		bytes += sizeOf(value);
+		return value;
+	}
+
+	@Override
+	public Ref getRef(String columnLabel) throws SQLException {
+		return resultSet.getRef(columnLabel);
+	}
+
+	@Override
+	public Blob getBlob(String columnLabel) throws SQLException {
+		return resultSet.getBlob(columnLabel);
+	}
+
+	@Override
+	public Clob getClob(String columnLabel) throws SQLException {
+		return resultSet.getClob(columnLabel);
+	}
+
+	@Override
+	public Array getArray(String columnLabel) throws SQLException {
+		return resultSet.getArray(columnLabel);
+	}
+
+	@Override
+	public Date getDate(int columnIndex, Calendar cal) throws SQLException {
+		bytes += 8;
+		return resultSet.getDate(columnIndex, cal);
+	}
+
+	@Override
+	public Date getDate(String columnLabel, Calendar cal) throws SQLException {
+		bytes += 8;
+		return resultSet.getDate(columnLabel, cal);
+	}
+
+	@Override
+	public Time getTime(int columnIndex, Calendar cal) throws SQLException {
+		bytes += 8;
+		return resultSet.getTime(columnIndex, cal);
+	}
+
+	@Override
+	public Time getTime(String columnLabel, Calendar cal) throws SQLException {
+		bytes += 8;
+		return resultSet.getTime(columnLabel, cal);
+	}
+
+	@Override
+	public Timestamp getTimestamp(int columnIndex, Calendar cal) throws SQLException {
+		bytes += 8;
+		return resultSet.getTimestamp(columnIndex, cal);
+	}
+
+	@Override
+	public Timestamp getTimestamp(String columnLabel, Calendar cal) throws SQLException {
+		bytes += 8;
+		return resultSet.getTimestamp(columnLabel, cal);
+	}
+
+	@Override
+	public URL getURL(int columnIndex) throws SQLException {
+		return resultSet.getURL(columnIndex);
+	}
+
+	@Override
+	public URL getURL(String columnLabel) throws SQLException {
+		return resultSet.getURL(columnLabel);
+	}
+
+	@Override
+	public void updateRef(int columnIndex, Ref x) throws SQLException {
+		resultSet.updateRef(columnIndex, x);
+	}
+
+	@Override
+	public void updateRef(String columnLabel, Ref x) throws SQLException {
+		resultSet.updateRef(columnLabel, x);
+	}
+
+	@Override
+	public void updateBlob(int columnIndex, Blob x) throws SQLException {
+		resultSet.updateBlob(columnIndex, x);
+	}
+
+	@Override
+	public void updateBlob(String columnLabel, Blob x) throws SQLException {
+		resultSet.updateBlob(columnLabel, x);
+	}
+
+	@Override
+	public void updateClob(int columnIndex, Clob x) throws SQLException {
+		resultSet.updateClob(columnIndex, x);
+	}
+
+	@Override
+	public void updateClob(String columnLabel, Clob x) throws SQLException {
+		resultSet.updateClob(columnLabel, x);
+	}
+
+	@Override
+	public void updateArray(int columnIndex, Array x) throws SQLException {
+		resultSet.updateArray(columnIndex, x);
+	}
+
+	@Override
+	public void updateArray(String columnLabel, Array x) throws SQLException {
+		resultSet.updateArray(columnLabel, x);
+	}
+
+	@Override
+	public RowId getRowId(int columnIndex) throws SQLException {
+		return resultSet.getRowId(columnIndex);
+	}
+
+	@Override
+	public RowId getRowId(String columnLabel) throws SQLException {
+		return resultSet.getRowId(columnLabel);
+	}
+
+	@Override
+	public void updateRowId(int columnIndex, RowId x) throws SQLException {
+		resultSet.updateRowId(columnIndex, x);
+	}
+
+	@Override
+	public void updateRowId(String columnLabel, RowId x) throws SQLException {
+		resultSet.updateRowId(columnLabel, x);
+	}
+
+	@Override
+	public int getHoldability() throws SQLException {
+		return resultSet.getHoldability();
+	}
+
+	@Override
+	public boolean isClosed() throws SQLException {
+		return resultSet.isClosed();
+	}
+
+	@Override
+	public void updateNString(int columnIndex, String x) throws SQLException {
+		resultSet.updateNString(columnIndex, x);
+	}
+
+	@Override
+	public void updateNString(String columnLabel, String x) throws SQLException {
+		resultSet.updateNString(columnLabel, x);
+	}
+
+	@Override
+	public void updateNClob(int columnIndex, NClob x) throws SQLException {
+		resultSet.updateNClob(columnIndex, x);
+	}
+
+	@Override
+	public void updateNClob(String columnLabel, NClob x) throws SQLException {
+		resultSet.updateNClob(columnLabel, x);
+	}
+
+	@Override
+	public NClob getNClob(int columnIndex) throws SQLException {
+		return resultSet.getNClob(columnIndex);
+	}
+
+	@Override
+	public NClob getNClob(String columnLabel) throws SQLException {
+		return resultSet.getNClob(columnLabel);
+	}
+
+	@Override
+	public SQLXML getSQLXML(int columnIndex) throws SQLException {
+		return resultSet.getSQLXML(columnIndex);
+	}
+
+	@Override
+	public SQLXML getSQLXML(String columnLabel) throws SQLException {
+		return resultSet.getSQLXML(columnLabel);
+	}
+
+	@Override
+	public void updateSQLXML(int columnIndex, SQLXML x) throws SQLException {
+		resultSet.updateSQLXML(columnIndex, x);
+	}
+
+	@Override
+	public void updateSQLXML(String columnLabel, SQLXML x) throws SQLException {
+		resultSet.updateSQLXML(columnLabel, x);
+	}
+
+	@Override
+	public String getNString(int columnIndex) throws SQLException {
+		String value = resultSet.getNString(columnIndex);
+		if (value != null) {
+			bytes += value.length();
+		}
+		return value;
+	}
+
+	@Override
+	public String getNString(String columnLabel) throws SQLException {
+		String value = resultSet.getNString(columnLabel);
+		if (value != null) {
+			bytes += value.length();
+		}
+		return value;
+	}
+
+	@Override
+	public Reader getNCharacterStream(int columnIndex) throws SQLException {
+		return resultSet.getNCharacterStream(columnIndex);
+	}
+
+	@Override
+	public Reader getNCharacterStream(String columnLabel) throws SQLException {
+		return resultSet.getNCharacterStream(columnLabel);
+	}
+
+	@Override
+	public void updateNCharacterStream(int columnIndex, Reader reader, long length) throws SQLException {
+		resultSet.updateNCharacterStream(columnIndex, reader, length);
+	}
+
+	@Override
+	public void updateNCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+		resultSet.updateNCharacterStream(columnLabel, reader, length);
+	}
+
+	@Override
+	public void updateAsciiStream(int columnIndex, InputStream x, long length) throws SQLException {
+		resultSet.updateAsciiStream(columnIndex, x, length);
+	}
+
+	@Override
+	public void updateBinaryStream(int columnIndex, InputStream x, long length) throws SQLException {
+		resultSet.updateBinaryStream(columnIndex, x, length);
+	}
+
+	@Override
+	public void updateCharacterStream(int columnIndex, Reader reader, long length) throws SQLException {
+		resultSet.updateCharacterStream(columnIndex, reader, length);
+	}
+
+	@Override
+	public void updateAsciiStream(String columnLabel, InputStream x, long length) throws SQLException {
+		resultSet.updateAsciiStream(columnLabel, x, length);
+	}
+
+	@Override
+	public void updateBinaryStream(String columnLabel, InputStream x, long length) throws SQLException {
+		resultSet.updateBinaryStream(columnLabel, x, length);
+	}
+
+	@Override
+	public void updateCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+		resultSet.updateCharacterStream(columnLabel, reader, length);
+	}
+
+	@Override
+	public void updateBlob(int columnIndex, InputStream inputStream, long length) throws SQLException {
+		resultSet.updateBlob(columnIndex, inputStream, length);
+	}
+
+	@Override
+	public void updateBlob(String columnLabel, InputStream inputStream, long length) throws SQLException {
+		resultSet.updateBlob(columnLabel, inputStream, length);
+	}
+
+	@Override
+	public void updateClob(int columnIndex, Reader reader, long length) throws SQLException {
+		resultSet.updateClob(columnIndex, reader, length);
+	}
+
+	@Override
+	public void updateClob(String columnLabel, Reader reader, long length) throws SQLException {
+		resultSet.updateClob(columnLabel, reader, length);
+	}
+
+	@Override
+	public void updateNClob(int columnIndex, Reader reader, long length) throws SQLException {
+		resultSet.updateNClob(columnIndex, reader, length);
+	}
+
+	@Override
+	public void updateNClob(String columnLabel, Reader reader, long length) throws SQLException {
+		resultSet.updateNClob(columnLabel, reader, length);
+	}
+
+	@Override
+	public void updateNCharacterStream(int columnIndex, Reader reader) throws SQLException {
+		resultSet.updateNCharacterStream(columnIndex, reader);
+	}
+
+	@Override
+	public void updateNCharacterStream(String columnLabel, Reader reader) throws SQLException {
+		resultSet.updateNCharacterStream(columnLabel, reader);
+	}
+
+	@Override
+	public void updateAsciiStream(int columnIndex, InputStream x) throws SQLException {
+		resultSet.updateAsciiStream(columnIndex, x);
+	}
+
+	@Override
+	public void updateBinaryStream(int columnIndex, InputStream x) throws SQLException {
+		resultSet.updateBinaryStream(columnIndex, x);
+	}
+
+	@Override
+	public void updateCharacterStream(int columnIndex, Reader reader) throws SQLException {
+		resultSet.updateCharacterStream(columnIndex, reader);
+	}
+
+	@Override
+	public void updateAsciiStream(String columnLabel, InputStream x) throws SQLException {
+		resultSet.updateAsciiStream(columnLabel, x);
+	}
+
+	@Override
+	public void updateBinaryStream(String columnLabel, InputStream x) throws SQLException {
+		resultSet.updateBinaryStream(columnLabel, x);
+	}
+
+	@Override
+	public void updateCharacterStream(String columnLabel, Reader reader) throws SQLException {
+		resultSet.updateCharacterStream(columnLabel, reader);
+	}
+
+	@Override
+	public void updateBlob(int columnIndex, InputStream inputStream) throws SQLException {
+		resultSet.updateBlob(columnIndex, inputStream);
+	}
+
+	@Override
+	public void updateBlob(String columnLabel, InputStream inputStream) throws SQLException {
+		resultSet.updateBlob(columnLabel, inputStream);
+	}
+
+	@Override
+	public void updateClob(int columnIndex, Reader reader) throws SQLException {
+		resultSet.updateClob(columnIndex, reader);
+	}
+
+	@Override
+	public void updateClob(String columnLabel, Reader reader) throws SQLException {
+		resultSet.updateClob(columnLabel, reader);
+	}
+
+	@Override
+	public void updateNClob(int columnIndex, Reader reader) throws SQLException {
+		resultSet.updateNClob(columnIndex, reader);
+	}
+
+	@Override
+	public void updateNClob(String columnLabel, Reader reader) throws SQLException {
+		resultSet.updateNClob(columnLabel, reader);
+	}
+
+	@Override
+	public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
+		T value = resultSet.getObject(columnIndex, type);
+		bytes += sizeOf(value);
+		return value;
+	}
+
+	@Override
+	public <T> T getObject(String columnLabel, Class<T> type) throws SQLException {
+		T value = resultSet.getObject(columnLabel, type);
+		bytes += sizeOf(value);
+		return value;
+	}
+
+	@Override
+	public void updateObject(int columnIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+		resultSet.updateObject(columnIndex, x, targetSqlType, scaleOrLength);
+	}
+
+	@Override
+	public void updateObject(String columnLabel, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException {
+		resultSet.updateObject(columnLabel, x, targetSqlType, scaleOrLength);
+	}
+
+	@Override
+	public void updateObject(int columnIndex, Object x, SQLType targetSqlType) throws SQLException {
+		resultSet.updateObject(columnIndex, x, targetSqlType);
+	}
+
+	@Override
+	public void updateObject(String columnLabel, Object x, SQLType targetSqlType) throws SQLException {
+		resultSet.updateObject(columnLabel, x, targetSqlType);
+	}
+
+}
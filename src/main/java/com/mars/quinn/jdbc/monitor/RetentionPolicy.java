@@ -0,0 +1,56 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which completed transactions keep their detail and reach the
+ * listeners and histories.
+ */
+public final class RetentionPolicy {
+
+	public enum Mode {
+		ALL, TAIL
+	}
+
+	private static final RetentionPolicy ALL = new RetentionPolicy(Mode.ALL, 0);
+
+	private final Mode mode;
+
+	private final long slowNanos;
+
+	private RetentionPolicy(Mode mode, long slowNanos) {
+		this.mode = mode;
+		this.slowNanos = slowNanos;
+	}
+
+	public static RetentionPolicy all() {
+		return ALL;
+	}
+
+	/**
+	 * Keeps only transactions that ran at least {@code slowTime} or did not
+	 * commit. Their statements are buffered in per-thread scratch logs, copied
+	 * out when the transaction is kept and reused otherwise, and no begin
+	 * events are delivered since the outcome is not known yet. Nor are begin
+	 * stack traces captured; a kept transaction captures its complete trace.
+	 */
+	public static RetentionPolicy tail(long slowTime, TimeUnit unit) {
+		if (slowTime < 0) {
+			throw new IllegalArgumentException("Slow time must not be negative: " + slowTime);
+		}
+		return new RetentionPolicy(Mode.TAIL, unit.toNanos(slowTime));
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	boolean isTail() {
+		return mode == Mode.TAIL;
+	}
+
+	boolean retain(TransactionState state, long costNanos) {
+		return mode == Mode.ALL || state != TransactionState.COMMIT || costNanos >= slowNanos;
+	}
+
+}
@@ -0,0 +1,35 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the transactions a {@link RetentionPolicy} kept and discarded.
+ */
+public final class RetentionStatistics {
+
+	private final LongAdder retained = new LongAdder();
+
+	private final LongAdder discarded = new LongAdder();
+
+	void record(boolean wasRetained) {
+		if (wasRetained) {
+			retained.increment();
+		} else {
+			discarded.increment();
+		}
+	}
+
+	public long getRetainedCount() {
+		return retained.sum();
+	}
+
+	public long getDiscardedCount() {
+		return discarded.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "retained=" + getRetainedCount() + ", discarded=" + getDiscardedCount();
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides, when a transaction begins, whether it is tracked in full. An
+ * unsampled transaction is only counted in {@link SamplingStatistics}.
+ */
+public final class SamplingPolicy {
+
+	public enum Mode {
+		ALWAYS, RATE, PER_SHAPE, ADAPTIVE
+	}
+
+	/**
+	 * Token buckets kept by a {@link Mode#PER_SHAPE} policy for shapes. Shapes
+	 * beyond this share buckets; transactions not begun by a statement have
+	 * one more bucket of their own.
+	 */
+	static final int SHAPE_BUCKETS = 4096;
+
+	private static final long EMPTY = Long.MIN_VALUE;
+
+	private static final SamplingPolicy ALWAYS = new SamplingPolicy(Mode.ALWAYS, 1, 0, 0);
+
+	private final Mode mode;
+
+	private final double rate;
+
+	private final long intervalNanos;
+
+	private final long toleranceNanos;
+
+	/**
+	 * Per bucket, the time at which it is next full again (the theoretical
+	 * arrival time of the generic cell rate algorithm).
+	 */
+	private final AtomicLongArray arrivals;
+
+	private final AdaptiveSampler adaptive;
+
+	private SamplingPolicy(Mode mode, double rate, long intervalNanos, long toleranceNanos) {
+		this(mode, rate, intervalNanos, toleranceNanos, null);
+	}
+
+	private SamplingPolicy(Mode mode, double rate, long intervalNanos, long toleranceNanos,
+			AdaptiveSampler adaptive) {
+		this.mode = mode;
+		this.adaptive = adaptive;
+		this.rate = rate;
+		this.intervalNanos = intervalNanos;
+		this.toleranceNanos = toleranceNanos;
+		if (mode == Mode.PER_SHAPE) {
+			arrivals = new AtomicLongArray(SHAPE_BUCKETS + 1);
+			for (int i = 0; i <= SHAPE_BUCKETS; i++) {
+				arrivals.set(i, EMPTY);
+			}
+		} else {
+			arrivals = null;
+		}
+	}
+
+	public static SamplingPolicy always() {
+		return ALWAYS;
+	}
+
+	/**
+	 * Tracks each transaction with probability {@code rate}.
+	 */
+	public static SamplingPolicy rate(double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1: " + rate);
+		}
+		return rate == 1 ? ALWAYS : new SamplingPolicy(Mode.RATE, rate, 0, 0);
+	}
+
+	/**
+	 * Tracks up to {@code permits} transactions per {@code unit} begun by
+	 * each statement shape, with bursts of up to {@code burst}. The shape of
+	 * the first statement stands in for the call site, which would take a
+	 * stack walk to find. Transactions begun without a statement, by a
+	 * savepoint or by switching auto-commit off, share one bucket.
+	 */
+	public static SamplingPolicy perShape(long permits, TimeUnit unit, int burst) {
+		if (permits < 1) {
+			throw new IllegalArgumentException("Permits must be positive: " + permits);
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("Burst must be positive: " + burst);
+		}
+		long intervalNanos = Math.max(1, unit.toNanos(1) / permits);
+		return new SamplingPolicy(Mode.PER_SHAPE, 0, intervalNanos, intervalNanos * (burst - 1));
+	}
+
+	/**
+	 * Adjusts the sample rate so that the monitor's own work, building
+	 * transactions, capturing stacks and running listeners, stays within
+	 * {@code budget} of the time spent in transactions, for example 0.01 for
+	 * 1%. At least {@code minRate} of the transactions are always sampled.
+	 */
+	public static SamplingPolicy adaptive(double budget, double minRate) {
+		if (!(budget > 0)) {
+			throw new IllegalArgumentException("Overhead budget must be positive: " + budget);
+		}
+		if (!(minRate >= 0 && minRate <= 1)) {
+			throw new IllegalArgumentException("Minimum rate must be between 0 and 1: " + minRate);
+		}
+		return new SamplingPolicy(Mode.ADAPTIVE, 0, 0, 0, new AdaptiveSampler(budget, minRate));
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the configured rate, the adaptive controller's current rate, or
+	 *         -1 for a per-shape policy whose rate depends on the traffic
+	 */
+	public double getRate() {
+		switch (mode) {
+		case ALWAYS:
+			return 1;
+		case RATE:
+			return rate;
+		case ADAPTIVE:
+			return adaptive.getRate();
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the controller when this policy measures its overhead, or null
+	 */
+	AdaptiveSampler getAdaptiveSampler() {
+		return adaptive;
+	}
+
+	/**
+	 * @param shapeId
+	 *            the shape of the statement beginning the transaction, or -1
+	 *            when it was not begun by a statement
+	 */
+	boolean sample(int shapeId, MonitorClock clock) {
+		switch (mode) {
+		case RATE:
+			return ThreadLocalRandom.current().nextDouble() < rate;
+		case PER_SHAPE:
+			return acquire(shapeId < 0 ? SHAPE_BUCKETS : shapeId & (SHAPE_BUCKETS - 1), clock.nanoTime());
+		case ADAPTIVE:
+			return adaptive.sample();
+		default:
+			return true;
+		}
+	}
+
+	private boolean acquire(int bucket, long now) {
+		while (true) {
+			long arrival = arrivals.get(bucket);
+			long next;
+			if (arrival == EMPTY || arrival - now <= 0) {
+				next = now + intervalNanos;
+			} else if (arrival - now <= toleranceNanos) {
+				next = arrival + intervalNanos;
+			} else {
+				return false;
+			}
+			if (arrivals.compareAndSet(bucket, arrival, next)) {
+				return true;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the sampling decisions of a {@link SamplingPolicy}, and the
+ * statements run by transactions that were not sampled.
+ */
+public final class SamplingStatistics {
+
+	private final LongAdder sampled = new LongAdder();
+
+	private final LongAdder unsampled = new LongAdder();
+
+	private final LongAdder unsampledStatements = new LongAdder();
+
+	void record(boolean wasSampled) {
+		if (wasSampled) {
+			sampled.increment();
+		} else {
+			unsampled.increment();
+		}
+	}
+
+	void unsampledStatement() {
+		unsampledStatements.increment();
+	}
+
+	public long getSampledCount() {
+		return sampled.sum();
+	}
+
+	public long getUnsampledCount() {
+		return unsampled.sum();
+	}
+
+	public long getUnsampledStatementCount() {
+		return unsampledStatements.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "sampled=" + getSampledCount() + ", unsampled=" + getUnsampledCount() + ", unsampledStatements="
+				+ getUnsampledStatementCount();
+	}
+
+}
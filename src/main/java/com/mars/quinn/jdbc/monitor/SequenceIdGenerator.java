@@ -0,0 +1,41 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Default {@link TransactionIdGenerator}. Sequences come from one shared
+ * counter, so they increase in the order transactions begin across all
+ * threads.
+ */
+public class SequenceIdGenerator implements TransactionIdGenerator {
+
+	private final long node;
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	public SequenceIdGenerator() {
+		this(defaultNode());
+	}
+
+	public SequenceIdGenerator(long node) {
+		this.node = node;
+	}
+
+	@Override
+	public long node() {
+		return node;
+	}
+
+	@Override
+	public long nextSequence() {
+		return sequence.getAndIncrement();
+	}
+
+	private static long defaultNode() {
+		String runtime = ManagementFactory.getRuntimeMXBean().getName();
+		long hash = runtime.hashCode() & 0xFFFFFFFFL;
+		return hash << 32 | (System.currentTimeMillis() / 1000 & 0xFFFFFFFFL);
+	}
+
+}
@@ -0,0 +1,426 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
+
+/**
+ * Append-only list of the statements run by one transaction. Each entry holds
+ * the shape ID from the {@link SqlShapeDictionary} together with its start
+ * time, elapsed time, affected rows and outcome. A batch is one entry that
+ * also holds its size and update counts. Entries are stored in
+ * fixed-size chunks of primitive columns, so appending never copies earlier
+ * entries, and readers iterate the chunks in place. Appends beyond the
+ * capacity are only counted.
+ */
+public final class SqlLog implements Iterable<String> {
+
+	/**
+	 * Rows value of a statement whose row count is not known.
+	 */
+	public static final long UNKNOWN_ROWS = -1;
+
+	private static final int CHUNK_SHIFT = 6;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final int capacity;
+
+	/**
+	 * Whether the log comes from the {@link SqlLogPool} and may be reset and
+	 * reused while a reader still holds it.
+	 */
+	private final boolean scratch;
+
+	private Chunk[] chunks = new Chunk[4];
+
+	private volatile int size;
+
+	private volatile long overflowCount;
+
+	private volatile long fetchedRows;
+
+	private volatile long fetchNanos;
+
+	private volatile long fetchedBytes;
+
+	/**
+	 * Bumped by {@link #reset()} so that result sets of an earlier use do not
+	 * add to the entries of a later one.
+	 */
+	private volatile int generation;
+
+	/**
+	 * Handed out by transactions whose detail was discarded.
+	 */
+	static final SqlLog EMPTY = new SqlLog(0);
+
+	SqlLog(int capacity) {
+		this(capacity, false);
+	}
+
+	SqlLog(int capacity, boolean scratch) {
+		this.capacity = capacity;
+		this.scratch = scratch;
+	}
+
+	boolean isScratch() {
+		return scratch;
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	int generation() {
+		return generation;
+	}
+
+	int append(int shapeId, long startNanos, long elapsedNanos, long rows, boolean failed,
+			BoundParameters parameters) {
+		return append(shapeId, startNanos, elapsedNanos, rows, failed, parameters, 0, null);
+	}
+
+	/**
+	 * @param batchSize
+	 *            statements executed as one batch, or 0 for a single
+	 *            statement
+	 * @param updateCounts
+	 *            the batch's update counts, or null
+	 * @return the index of the entry, or -1 when the log is full
+	 */
+	synchronized int append(int shapeId, long startNanos, long elapsedNanos, long rows, boolean failed,
+			BoundParameters parameters, int batchSize, int[] updateCounts) {
+		int index = size;
+		if (index >= capacity) {
+			overflowCount++;
+			return -1;
+		}
+		int chunkIndex = index >>> CHUNK_SHIFT;
+		if (chunkIndex == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunkIndex << 1);
+		}
+		Chunk chunk = chunks[chunkIndex];
+		if (chunk == null) {
+			chunk = new Chunk();
+			chunks[chunkIndex] = chunk;
+		}
+		int offset = index & CHUNK_MASK;
+		chunk.shapeIds[offset] = shapeId;
+		chunk.startNanos[offset] = startNanos;
+		chunk.elapsedNanos[offset] = elapsedNanos;
+		chunk.rows[offset] = rows;
+		chunk.failed[offset] = failed;
+		if (parameters != null) {
+			if (chunk.parameters == null) {
+				chunk.parameters = new BoundParameters[CHUNK_SIZE];
+			}
+			chunk.parameters[offset] = parameters;
+		}
+		if (batchSize > 0) {
+			if (chunk.batchSizes == null) {
+				chunk.batchSizes = new int[CHUNK_SIZE];
+				chunk.updateCounts = new int[CHUNK_SIZE][];
+			}
+			chunk.batchSizes[offset] = batchSize;
+			chunk.updateCounts[offset] = updateCounts;
+		}
+		size = index + 1;
+		return index;
+	}
+
+	/**
+	 * Adds what was read from a result set of the statement at {@code index},
+	 * unless the log was reset since {@code generation}.
+	 */
+	synchronized void addFetch(int index, int generation, long rows, long nanos, long bytes) {
+		if (generation != this.generation || index >= size) {
+			return;
+		}
+		Chunk chunk = chunks[index >>> CHUNK_SHIFT];
+		if (chunk.fetchedRows == null) {
+			chunk.fetchedRows = new long[CHUNK_SIZE];
+			chunk.fetchNanos = new long[CHUNK_SIZE];
+			chunk.fetchedBytes = new long[CHUNK_SIZE];
+		}
+		int offset = index & CHUNK_MASK;
+		chunk.fetchedRows[offset] += rows;
+		chunk.fetchNanos[offset] += nanos;
+		chunk.fetchedBytes[offset] += bytes;
+		fetchedRows += rows;
+		fetchNanos += nanos;
+		fetchedBytes += bytes;
+	}
+
+	void appendAll(SqlLog other) {
+		int length = other.size;
+		Chunk[] source = other.chunks;
+		for (int i = 0; i < length; i++) {
+			Chunk chunk = source[i >>> CHUNK_SHIFT];
+			int offset = i & CHUNK_MASK;
+			boolean batch = chunk.batchSizes != null;
+			int index = append(chunk.shapeIds[offset], chunk.startNanos[offset], chunk.elapsedNanos[offset],
+					chunk.rows[offset], chunk.failed[offset], chunk.parameters == null ? null : chunk.parameters[offset],
+					batch ? chunk.batchSizes[offset] : 0, batch ? chunk.updateCounts[offset] : null);
+			if (index >= 0 && chunk.fetchedRows != null) {
+				addFetch(index, generation, chunk.fetchedRows[offset], chunk.fetchNanos[offset],
+						chunk.fetchedBytes[offset]);
+			}
+		}
+		long overflow = other.overflowCount;
+		if (overflow > 0) {
+			synchronized (this) {
+				overflowCount += overflow;
+			}
+		}
+	}
+
+	/**
+	 * @return a log holding the same entries, sized for them
+	 */
+	synchronized SqlLog copy() {
+		SqlLog copy = new SqlLog(capacity);
+		copy.appendAll(this);
+		return copy;
+	}
+
+	/**
+	 * Empties the log for reuse. The chunks are kept and the references they
+	 * hold are cleared.
+	 */
+	synchronized void reset() {
+		int length = size;
+		for (int i = 0; i < length; i += CHUNK_SIZE) {
+			Chunk chunk = chunks[i >>> CHUNK_SHIFT];
+			int used = Math.min(CHUNK_SIZE, length - i);
+			if (chunk.parameters != null) {
+				Arrays.fill(chunk.parameters, 0, used, null);
+			}
+			if (chunk.batchSizes != null) {
+				Arrays.fill(chunk.batchSizes, 0, used, 0);
+				Arrays.fill(chunk.updateCounts, 0, used, null);
+			}
+			if (chunk.fetchedRows != null) {
+				Arrays.fill(chunk.fetchedRows, 0, used, 0);
+				Arrays.fill(chunk.fetchNanos, 0, used, 0);
+				Arrays.fill(chunk.fetchedBytes, 0, used, 0);
+			}
+		}
+		size = 0;
+		overflowCount = 0;
+		fetchedRows = 0;
+		fetchNanos = 0;
+		fetchedBytes = 0;
+		generation++;
+	}
+
+	/**
+	 * @return the number of statements stored
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of statements dropped because the log was full
+	 */
+	public long getOverflowCount() {
+		return overflowCount;
+	}
+
+	/**
+	 * @return rows read from the result sets of all statements
+	 */
+	public long getFetchedRows() {
+		return fetchedRows;
+	}
+
+	/**
+	 * @return time spent in {@link java.sql.ResultSet#next()} for all
+	 *         statements
+	 */
+	public long getFetchNanos() {
+		return fetchNanos;
+	}
+
+	/**
+	 * @return approximate bytes returned by result set getters for all
+	 *         statements
+	 */
+	public long getFetchedBytes() {
+		return fetchedBytes;
+	}
+
+	public int shapeIdAt(int index) {
+		return chunk(index).shapeIds[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the {@link MonitorClock#nanoTime()} the statement started at
+	 */
+	public long startNanosAt(int index) {
+		return chunk(index).startNanos[index & CHUNK_MASK];
+	}
+
+	public long elapsedNanosAt(int index) {
+		return chunk(index).elapsedNanos[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the affected rows, or {@link #UNKNOWN_ROWS}
+	 */
+	public long rowsAt(int index) {
+		return chunk(index).rows[index & CHUNK_MASK];
+	}
+
+	public boolean isFailedAt(int index) {
+		return chunk(index).failed[index & CHUNK_MASK];
+	}
+
+	public String get(int index) {
+		return SqlShapeDictionary.global().shape(shapeIdAt(index));
+	}
+
+	/**
+	 * @return rows read from the statement's result sets, counted when they
+	 *         are closed
+	 */
+	public long fetchedRowsAt(int index) {
+		long[] fetchedRows = chunk(index).fetchedRows;
+		return fetchedRows == null ? 0 : fetchedRows[index & CHUNK_MASK];
+	}
+
+	public long fetchNanosAt(int index) {
+		long[] fetchNanos = chunk(index).fetchNanos;
+		return fetchNanos == null ? 0 : fetchNanos[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return approximate bytes returned by the getters of the statement's
+	 *         result sets; streams and LOBs are not counted
+	 */
+	public long fetchedBytesAt(int index) {
+		long[] fetchedBytes = chunk(index).fetchedBytes;
+		return fetchedBytes == null ? 0 : fetchedBytes[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the number of statements in the batch, or 0 for a statement
+	 *         executed on its own
+	 */
+	public int batchSizeAt(int index) {
+		int[] batchSizes = chunk(index).batchSizes;
+		return batchSizes == null ? 0 : batchSizes[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the update counts returned by the batch, or null when the entry
+	 *         is not a batch or the driver gave none; the array is shared
+	 */
+	public int[] updateCountsAt(int index) {
+		int[][] updateCounts = chunk(index).updateCounts;
+		return updateCounts == null ? null : updateCounts[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the parameters the statement ran with, or null when they were
+	 *         not captured
+	 */
+	public BoundParameters parametersAt(int index) {
+		BoundParameters[] parameters = chunk(index).parameters;
+		return parameters == null ? null : parameters[index & CHUNK_MASK];
+	}
+
+	/**
+	 * @return the statement with its captured parameters filled in, or its
+	 *         shape when none were captured
+	 */
+	public String renderAt(int index) {
+		BoundParameters parameters = parametersAt(index);
+		return parameters == null ? get(index) : parameters.render();
+	}
+
+	public String[] toArray() {
+		int length = size;
+		Chunk[] current = chunks;
+		SqlShapeDictionary dictionary = SqlShapeDictionary.global();
+		String[] result = new String[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = dictionary.shape(current[i >>> CHUNK_SHIFT].shapeIds[i & CHUNK_MASK]);
+		}
+		return result;
+	}
+
+	private Chunk chunk(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+		return chunks[index >>> CHUNK_SHIFT];
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		final int length = size;
+		final Chunk[] current = chunks;
+		return new Iterator<String>() {
+
+			private int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < length;
+			}
+
+			@Override
+			public String next() {
+				if (index >= length) {
+					throw new NoSuchElementException();
+				}
+				int shapeId = current[index >>> CHUNK_SHIFT].shapeIds[index & CHUNK_MASK];
+				index++;
+				return SqlShapeDictionary.global().shape(shapeId);
+			}
+
+		};
+	}
+
+	private static final class Chunk {
+
+		final int[] shapeIds = new int[CHUNK_SIZE];
+
+		final long[] startNanos = new long[CHUNK_SIZE];
+
+		final long[] elapsedNanos = new long[CHUNK_SIZE];
+
+		final long[] rows = new long[CHUNK_SIZE];
+
+		final boolean[] failed = new boolean[CHUNK_SIZE];
+
+		/**
+		 * Allocated with the first captured parameters.
+		 */
+		BoundParameters[] parameters;
+
+		/**
+		 * Allocated with the first batch.
+		 */
+		int[] batchSizes;
+
+		int[][] updateCounts;
+
+		/**
+		 * Allocated with the first closed result set.
+		 */
+		long[] fetchedRows;
+
+		long[] fetchNanos;
+
+		long[] fetchedBytes;
+
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.mars.quinn.jdbc.monitor;
+
+/**
+ * Per-thread pool of scratch {@link SqlLog}s for transactions whose detail
+ * may be discarded. A log keeps its chunks when it is reset, so a thread that
+ * runs fast transactions in a loop stops allocating once its logs have grown.
+ */
+final class SqlLogPool {
+
+	private static final int MAX_POOLED = 4;
+
+	private static final ThreadLocal<SqlLogPool> POOLS = new ThreadLocal<SqlLogPool>() {
+		@Override
+		protected SqlLogPool initialValue() {
+			return new SqlLogPool();
+		}
+	};
+
+	private final SqlLog[] logs = new SqlLog[MAX_POOLED];
+
+	private int count;
+
+	private SqlLogPool() {
+	}
+
+	static SqlLog acquire(int capacity) {
+		SqlLogPool pool = POOLS.get();
+		while (pool.count > 0) {
+			SqlLog log = pool.logs[--pool.count];
+			pool.logs[pool.count] = null;
+			if (log.getCapacity() == capacity) {
+				return log;
+			}
+		}
+		return new SqlLog(capacity, true);
+	}
+
+	/**
+	 * Empties {@code log} and keeps it for the current thread. The caller must
+	 * not hand the log out again.
+	 */
+	static void release(SqlLog log) {
+		log.reset();
+		SqlLogPool pool = POOLS.get();
+		if (pool.count < MAX_POOLED) {
+			pool.logs[pool.count++] = log;
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a transaction captures its begin and complete call sites.
+ */
+public final class StackTracePolicy {
+
+	public enum Mode {
+		NEVER, SAMPLED, THRESHOLD, EAGER
+	}
+
+	private static final StackTracePolicy NEVER = new StackTracePolicy(Mode.NEVER, 1, 0);
+
+	private static final StackTracePolicy EAGER = new StackTracePolicy(Mode.EAGER, 1, 0);
+
+	private final Mode mode;
+
+	private final int sampleEvery;
+
+	private final long thresholdNanos;
+
+	private StackTracePolicy(Mode mode, int sampleEvery, long thresholdNanos) {
+		this.mode = mode;
+		this.sampleEvery = sampleEvery;
+		this.thresholdNanos = thresholdNanos;
+	}
+
+	public static StackTracePolicy never() {
+		return NEVER;
+	}
+
+	public static StackTracePolicy eager() {
+		return EAGER;
+	}
+
+	/**
+	 * Captures both traces for roughly one transaction in {@code n}.
+	 */
+	public static StackTracePolicy sampled(int n) {
+		if (n < 1) {
+			throw new IllegalArgumentException("Sample rate must be positive: " + n);
+		}
+		return n == 1 ? EAGER : new StackTracePolicy(Mode.SAMPLED, n, 0);
+	}
+
+	/**
+	 * Captures a trace only for transactions that run at least {@code time},
+	 * when they complete. Nothing is captured at begin, so a fast transaction
+	 * costs no stack walk and the call site of a slow one is where it
+	 * completed.
+	 */
+	public static StackTracePolicy threshold(long time, TimeUnit unit) {
+		if (time < 0) {
+			throw new IllegalArgumentException("Threshold must not be negative: " + time);
+		}
+		return new StackTracePolicy(Mode.THRESHOLD, 1, unit.toNanos(time));
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	boolean captureOnBegin() {
+		switch (mode) {
+		case EAGER:
+			return true;
+		case SAMPLED:
+			return ThreadLocalRandom.current().nextInt(sampleEvery) == 0;
+		default:
+			return false;
+		}
+	}
+
+	boolean captureOnComplete(boolean capturedOnBegin, long costNanos) {
+		switch (mode) {
+		case EAGER:
+			return true;
+		case SAMPLED:
+			return capturedOnBegin;
+		case THRESHOLD:
+			return costNanos >= thresholdNanos;
+		default:
+			return false;
+		}
+	}
+
+}
@@ -1,26 +1,63 @@
 package com.mars.quinn.jdbc.monitor;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
-import com.mars.quinn.jdbc.monitor.ConnectionMonitor.TransactionInfo;
+import com.mars.quinn.jdbc.monitor.support.LazyStackTrace;
 
 public class StatementMonitor implements Statement {
 	
 	private final Statement statement;
 	
-	private volatile TransactionInfo transaction;
+	private final ConnectionMonitor connection;
+
+	/**
+	 * Where the statement was created, or null when it was not captured.
+	 */
+	private final LazyStackTrace createTrace;
+	
+	/**
+	 * The pending batch as runs of consecutive statements of one shape, a
+	 * shape ID followed by the length of its run. A prepared batch is one
+	 * run.
+	 */
+	private int[] batchRuns;
+
+	private int batchRunCount;
+	
+	private int batchSize;
+	
+	/**
+	 * The result set of the latest execution, until it is closed or
+	 * replaced.
+	 */
+	private ResultSetMonitor resultSet;
 	
-	private Queue<String> batch = new ConcurrentLinkedQueue<>();
+	private SqlLog lastLog;
 	
-	public StatementMonitor(Statement statement, TransactionInfo transaction) {
+	private int lastIndex = -1;
+
+	private int lastGeneration;
+	
+	private volatile int closed;
+	
+	private static final AtomicIntegerFieldUpdater<StatementMonitor> CLOSED = AtomicIntegerFieldUpdater
+			.newUpdater(StatementMonitor.class, "closed");
+	
+	public StatementMonitor(Statement statement, ConnectionMonitor connection) {
 		this.statement = statement;
-		this.transaction = transaction;
+		this.connection = connection;
+		this.createTrace = connection.statementOpened(this);
+	}
+
+	LazyStackTrace getCreateTrace() {
+		return createTrace;
 	}
 
 	/**
@@ -40,8 +77,16 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeQuery(java.lang.String)
 	 */
 	public ResultSet executeQuery(String sql) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeQuery(sql);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			ResultSet resultSet = statement.executeQuery(sql);
+			failed = false;
+			return monitor(resultSet);
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed);
+		}
 	}
 
 	/**
@@ -61,8 +106,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeUpdate(java.lang.String)
 	 */
 	public int executeUpdate(String sql) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeUpdate(sql);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			int count = statement.executeUpdate(sql);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -71,7 +126,10 @@ public class StatementMonitor implements Statement {
 	 */
 	public void close() throws SQLException {
 		statement.close();
-		transaction = null;
+		flushResultSet();
+		if (CLOSED.compareAndSet(this, 0, 1)) {
+			connection.statementClosed(this);
+		}
 	}
 
 	/**
@@ -178,8 +236,16 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#execute(java.lang.String)
 	 */
 	public boolean execute(String sql) throws SQLException {
-		transaction.addSql(sql);
-		return statement.execute(sql);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			boolean result = statement.execute(sql);
+			failed = false;
+			return result;
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed);
+		}
 	}
 
 	/**
@@ -188,7 +254,7 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#getResultSet()
 	 */
 	public ResultSet getResultSet() throws SQLException {
-		return statement.getResultSet();
+		return monitor(statement.getResultSet());
 	}
 
 	/**
@@ -206,6 +272,7 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#getMoreResults()
 	 */
 	public boolean getMoreResults() throws SQLException {
+		flushResultSet();
 		return statement.getMoreResults();
 	}
 
@@ -269,9 +336,35 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#addBatch(java.lang.String)
 	 */
 	public void addBatch(String sql) throws SQLException {
-		transaction.addSql(sql);
-		batch.add(sql);
 		statement.addBatch(sql);
+		addToBatch(connection.shapeOf(sql));
+	}
+
+	/**
+	 * Counts a row of a {@link java.sql.PreparedStatement} batch.
+	 */
+	void addBatchRow() {
+		addToBatch(statementShapeId());
+	}
+
+	private void addToBatch(int shapeId) {
+		int[] runs = batchRuns;
+		int last = (batchRunCount - 1) << 1;
+		if (batchRunCount > 0 && runs[last] == shapeId) {
+			runs[last + 1]++;
+		} else {
+			if (runs == null) {
+				runs = new int[4];
+				batchRuns = runs;
+			} else if (last + 2 == runs.length) {
+				runs = Arrays.copyOf(runs, runs.length << 1);
+				batchRuns = runs;
+			}
+			runs[last + 2] = shapeId;
+			runs[last + 3] = 1;
+			batchRunCount++;
+		}
+		batchSize++;
 	}
 
 	/**
@@ -280,8 +373,8 @@ public class StatementMonitor implements Statement {
 	 */
 	public void clearBatch() throws SQLException {
 		statement.clearBatch();
-		transaction.removeSqls(batch.toArray(new String[]{}));
-		batch.clear();
+		batchSize = 0;
+		batchRunCount = 0;
 	}
 
 	/**
@@ -290,7 +383,19 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeBatch()
 	 */
 	public int[] executeBatch() throws SQLException {
-		return statement.executeBatch();
+		long start = beginExecute(batchSize == 0 ? -1 : batchRuns[0]);
+		int[] counts = null;
+		boolean failed = true;
+		try {
+			counts = statement.executeBatch();
+			failed = false;
+			return counts;
+		} catch (BatchUpdateException e) {
+			counts = e.getUpdateCounts();
+			throw e;
+		} finally {
+			endBatch(start, counts == null || !connection.isRecording() ? null : counts.clone(), failed);
+		}
 	}
 
 	/**
@@ -299,7 +404,7 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#getConnection()
 	 */
 	public Connection getConnection() throws SQLException {
-		return statement.getConnection();
+		return connection;
 	}
 
 	/**
@@ -309,6 +414,12 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#getMoreResults(int)
 	 */
 	public boolean getMoreResults(int current) throws SQLException {
+		if (current == Statement.KEEP_CURRENT_RESULT) {
+			// the kept result set is flushed when it is closed
+			resultSet = null;
+		} else {
+			flushResultSet();
+		}
 		return statement.getMoreResults(current);
 	}
 
@@ -329,8 +440,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeUpdate(java.lang.String, int)
 	 */
 	public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeUpdate(sql, autoGeneratedKeys);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			int count = statement.executeUpdate(sql, autoGeneratedKeys);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -341,8 +462,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeUpdate(java.lang.String, int[])
 	 */
 	public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeUpdate(sql, columnIndexes);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			int count = statement.executeUpdate(sql, columnIndexes);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -353,8 +484,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeUpdate(java.lang.String, java.lang.String[])
 	 */
 	public int executeUpdate(String sql, String[] columnNames) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeUpdate(sql, columnNames);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			int count = statement.executeUpdate(sql, columnNames);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -365,8 +506,16 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#execute(java.lang.String, int)
 	 */
 	public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
-		transaction.addSql(sql);
-		return statement.execute(sql, autoGeneratedKeys);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			boolean result = statement.execute(sql, autoGeneratedKeys);
+			failed = false;
+			return result;
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed);
+		}
 	}
 
 	/**
@@ -377,8 +526,16 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#execute(java.lang.String, int[])
 	 */
 	public boolean execute(String sql, int[] columnIndexes) throws SQLException {
-		transaction.addSql(sql);
-		return statement.execute(sql, columnIndexes);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			boolean result = statement.execute(sql, columnIndexes);
+			failed = false;
+			return result;
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed);
+		}
 	}
 
 	/**
@@ -389,8 +546,16 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#execute(java.lang.String, java.lang.String[])
 	 */
 	public boolean execute(String sql, String[] columnNames) throws SQLException {
-		transaction.addSql(sql);
-		return statement.execute(sql, columnNames);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		boolean failed = true;
+		try {
+			boolean result = statement.execute(sql, columnNames);
+			failed = false;
+			return result;
+		} finally {
+			endExecute(shapeId, start, SqlLog.UNKNOWN_ROWS, failed);
+		}
 	}
 
 	/**
@@ -479,7 +644,158 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeLargeBatch()
 	 */
 	public long[] executeLargeBatch() throws SQLException {
-		return statement.executeLargeBatch();
+		long start = beginExecute(batchSize == 0 ? -1 : batchRuns[0]);
+		long[] counts = null;
+		boolean failed = true;
+		try {
+			counts = statement.executeLargeBatch();
+			failed = false;
+			return counts;
+		} catch (BatchUpdateException e) {
+			counts = e.getLargeUpdateCounts();
+			throw e;
+		} finally {
+			endBatch(start, counts == null || !connection.isRecording() ? null : narrow(counts), failed);
+		}
+	}
+
+	/**
+	 * The transaction is resolved when a statement runs rather than when it
+	 * is created, so a statement kept across commits records into the
+	 * transaction that is open at the time.
+	 * 
+	 * @param shapeId
+	 *            the statement about to run, which keys the sampling decision
+	 *            when it begins a transaction
+	 */
+	long beginExecute(int shapeId) {
+		// the driver closes the previous result set
+		flushResultSet();
+		lastLog = null;
+		lastIndex = -1;
+		return connection.beginStatement(shapeId);
+	}
+
+	/**
+	 * Called with the entry an execution was recorded as, or a null log when
+	 * it was not recorded.
+	 */
+	void recorded(SqlLog log, int index) {
+		lastLog = log;
+		lastIndex = index;
+		lastGeneration = log == null ? 0 : log.generation();
+		if (resultSet != null) {
+			resultSet.attach(log, index, lastGeneration);
+		}
+	}
+
+	/**
+	 * Wraps a result set to count what is fetched from it. A result set the
+	 * open transaction does not record is returned as it is.
+	 */
+	ResultSet monitor(ResultSet raw) {
+		if (raw == null || !connection.isRecording()) {
+			return raw;
+		}
+		ResultSetMonitor current = resultSet;
+		if (current == null || current.getDelegate() != raw) {
+			current = new ResultSetMonitor(raw, this, connection.getClock());
+			current.attach(lastLog, lastIndex, lastGeneration);
+			resultSet = current;
+		}
+		return current;
+	}
+
+	void resultSetClosed(ResultSetMonitor closed) {
+		if (resultSet == closed) {
+			resultSet = null;
+		}
+	}
+
+	private void flushResultSet() {
+		ResultSetMonitor current = resultSet;
+		if (current != null) {
+			current.flush();
+			resultSet = null;
+		}
+	}
+
+	void endExecute(int shapeId, long start, long rows, boolean failed) {
+		endExecute(shapeId, start, rows, failed, null, null);
+	}
+
+	/**
+	 * @param parameters
+	 *            the bound parameters to record, or null
+	 * @param sql
+	 *            the statement as prepared, when there are parameters
+	 */
+	void endExecute(int shapeId, long start, long rows, boolean failed, ParameterBuffer parameters, String sql) {
+		long elapsed = connection.getClock().nanoTime() - start;
+		connection.recordStatement(this, shapeId, start, elapsed, rows, failed, parameters, sql);
+	}
+
+	/**
+	 * Records the pending batch as one entry per run of statements of one
+	 * shape, each with its update counts and a share of the elapsed time in
+	 * proportion to its length, and starts a new batch.
+	 * 
+	 * @param counts
+	 *            the update counts, or null when the driver gave none
+	 */
+	private void endBatch(long start, int[] counts, boolean failed) {
+		int size = batchSize;
+		int runCount = batchRunCount;
+		batchSize = 0;
+		batchRunCount = 0;
+		if (size == 0) {
+			return;
+		}
+		long elapsed = connection.getClock().nanoTime() - start;
+		int[] runs = batchRuns;
+		int offset = 0;
+		for (int run = 0; run < runCount; run++) {
+			int shapeId = runs[run << 1];
+			int length = runs[(run << 1) + 1];
+			int[] runCounts = counts;
+			long runElapsed = elapsed;
+			if (runCount > 1) {
+				if (counts != null) {
+					// a failed batch may report fewer counts than statements
+					runCounts = Arrays.copyOfRange(counts, Math.min(offset, counts.length),
+							Math.min(offset + length, counts.length));
+				}
+				runElapsed = (long) ((double) elapsed * length / size);
+			}
+			connection.recordBatch(shapeId, start, runElapsed,
+					runCounts == null ? SqlLog.UNKNOWN_ROWS : sum(runCounts), failed, length, runCounts);
+			offset += length;
+		}
+	}
+
+	/**
+	 * @return the shape this statement was prepared with, or -1
+	 */
+	int statementShapeId() {
+		return -1;
+	}
+
+	private static long sum(int[] counts) {
+		long rows = SqlLog.UNKNOWN_ROWS;
+		for (int count : counts) {
+			if (count >= 0) {
+				rows = rows == SqlLog.UNKNOWN_ROWS ? count : rows + count;
+			}
+		}
+		return rows;
+	}
+
+	private static int[] narrow(long[] counts) {
+		int[] result = new int[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			result[i] = (int) Math.min(counts[i], Integer.MAX_VALUE);
+		}
+		return result;
 	}
 
 	/**
@@ -489,8 +805,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeLargeUpdate(java.lang.String)
 	 */
 	public long executeLargeUpdate(String sql) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeLargeUpdate(sql);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			long count = statement.executeLargeUpdate(sql);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -501,8 +827,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeLargeUpdate(java.lang.String, int)
 	 */
 	public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeLargeUpdate(sql, autoGeneratedKeys);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			long count = statement.executeLargeUpdate(sql, autoGeneratedKeys);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -513,8 +849,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeLargeUpdate(java.lang.String, int[])
 	 */
 	public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeLargeUpdate(sql, columnIndexes);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			long count = statement.executeLargeUpdate(sql, columnIndexes);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 	/**
@@ -525,8 +871,18 @@ public class StatementMonitor implements Statement {
 	 * @see java.sql.Statement#executeLargeUpdate(java.lang.String, java.lang.String[])
 	 */
 	public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
-		transaction.addSql(sql);
-		return statement.executeLargeUpdate(sql, columnNames);
+		int shapeId = connection.shapeOf(sql);
+		long start = beginExecute(shapeId);
+		long rows = SqlLog.UNKNOWN_ROWS;
+		boolean failed = true;
+		try {
+			long count = statement.executeLargeUpdate(sql, columnNames);
+			rows = count;
+			failed = false;
+			return count;
+		} finally {
+			endExecute(shapeId, start, rows, failed);
+		}
 	}
 
 }
@@ -0,0 +1,112 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+
+/**
+ * Fixed-capacity ring of the most recently completed transactions. Adding
+ * claims a sequence with a fetch-and-add and then the slot with a CAS on the
+ * slot's sequence, so two writers that wrap onto the same slot take turns and
+ * an older entry never replaces a newer one; a writer that finds a newer entry
+ * in its slot skips the add, since its entry would have been overwritten
+ * anyway. {@link #snapshot()} never waits for writers: each slot carries the
+ * sequence it was written under, and a slot overwritten while it is read is
+ * skipped. A slot holds a reference to its transaction until it is
+ * overwritten.
+ */
+public final class TransactionHistory {
+
+	private static final long EMPTY = -1;
+
+	private static final long WRITING = -2;
+
+	private final int capacity;
+
+	private final AtomicReferenceArray<TransactionInfo> transactions;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong cursor = new AtomicLong();
+
+	public TransactionHistory(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+		}
+		this.capacity = capacity;
+		this.transactions = new AtomicReferenceArray<>(capacity);
+		this.sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			sequences.set(i, EMPTY);
+		}
+	}
+
+	void add(TransactionInfo transaction) {
+		if (capacity == 0) {
+			return;
+		}
+		long sequence = cursor.getAndIncrement();
+		int index = (int) (sequence % capacity);
+		while (true) {
+			long current = sequences.get(index);
+			if (current > sequence) {
+				// a writer a full lap ahead got here first
+				return;
+			}
+			if (current != WRITING && sequences.compareAndSet(index, current, WRITING)) {
+				break;
+			}
+			Thread.yield();
+		}
+		transaction.retain();
+		TransactionInfo previous = transactions.getAndSet(index, transaction);
+		sequences.set(index, sequence);
+		if (previous != null) {
+			previous.release();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of transactions ever added
+	 */
+	public long getTotalCount() {
+		return cursor.get();
+	}
+
+	/**
+	 * @return the transactions still held, oldest first; pooled transactions
+	 *         are copied so that they stay valid after leaving the history
+	 */
+	public List<TransactionEvent> snapshot() {
+		long end = cursor.get();
+		long start = Math.max(0, end - capacity);
+		List<TransactionEvent> events = new ArrayList<>((int) (end - start));
+		for (long sequence = start; sequence < end; sequence++) {
+			int index = (int) (sequence % capacity);
+			if (sequences.get(index) != sequence) {
+				continue;
+			}
+			TransactionInfo transaction = transactions.get(index);
+			if (transaction == null || !transaction.tryRetain()) {
+				continue;
+			}
+			try {
+				if (sequences.get(index) == sequence && transactions.get(index) == transaction) {
+					events.add(transaction.isPooled() ? transaction.copy().getEvent() : transaction.getEvent());
+				}
+			} finally {
+				transaction.release();
+			}
+		}
+		return events;
+	}
+
+}
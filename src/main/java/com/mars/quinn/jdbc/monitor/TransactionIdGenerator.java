@@ -0,0 +1,18 @@
+package com.mars.quinn.jdbc.monitor;
+
+/**
+ * Supplies transaction IDs as a node prefix plus a sequence, both primitive.
+ */
+public interface TransactionIdGenerator {
+
+	/**
+	 * @return the prefix identifying this process
+	 */
+	long node();
+
+	/**
+	 * @return a sequence that is unique for {@link #node()}
+	 */
+	long nextSequence();
+
+}
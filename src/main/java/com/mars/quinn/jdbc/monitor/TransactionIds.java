@@ -0,0 +1,27 @@
+package com.mars.quinn.jdbc.monitor;
+
+/**
+ * Text form of a transaction ID: the node and the sequence as 16 hex digits
+ * each, joined by a dash.
+ */
+final class TransactionIds {
+
+	private TransactionIds() {
+	}
+
+	static String format(long node, long sequence) {
+		char[] chars = new char[33];
+		writeHex(chars, 0, node);
+		chars[16] = '-';
+		writeHex(chars, 17, sequence);
+		return new String(chars);
+	}
+
+	private static void writeHex(char[] chars, int offset, long value) {
+		for (int i = offset + 15; i >= offset; i--) {
+			chars[i] = Character.forDigit((int) (value & 0xF), 16);
+			value >>>= 4;
+		}
+	}
+
+}
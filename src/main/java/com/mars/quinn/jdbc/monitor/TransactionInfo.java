@@ -0,0 +1,463 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.sql.Savepoint;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
+import com.mars.quinn.jdbc.monitor.support.HashedTimingWheel.Timeout;
+import com.mars.quinn.jdbc.monitor.support.LazyStackTrace;
+
+/**
+ * One tracked transaction or savepoint. A record refers to its
+ * {@link DataSourceMonitor} only, so an event kept by a listener or a history
+ * does not pin the connection it ran on.
+ * <p>
+ * When the data source pools records, every holder of a record, the
+ * connection, the histories, the async dispatcher, batching listeners and the
+ * watchdog, takes a reference with {@link #retain()} and gives it back with
+ * {@link #release()}. The last release resets the record and returns it to
+ * its pool. Records that are not pooled skip the counting.
+ */
+public final class TransactionInfo {
+
+	private static final AtomicIntegerFieldUpdater<TransactionInfo> REFERENCES = AtomicIntegerFieldUpdater
+			.newUpdater(TransactionInfo.class, "references");
+
+	/**
+	 * The pool this record returns to, or null when it is not pooled.
+	 */
+	private final TransactionPool pool;
+
+	private final TransactionEvent event = new TransactionEvent(this);
+
+	private volatile int references;
+
+	private DataSourceMonitor dataSource;
+
+	private MonitorClock clock;
+
+	private StackTracePolicy stackTracePolicy;
+
+	private RetentionPolicy retentionPolicy;
+
+	/**
+	 * A scratch log from the {@link SqlLogPool} while an unpooled transaction
+	 * runs under a tail retention policy, replaced by a copy or by
+	 * {@link SqlLog#EMPTY} when it completes. A pooled record keeps its own
+	 * log and clears it when it is recycled.
+	 */
+	private volatile SqlLog sqls;
+
+	private boolean scratch;
+
+	private boolean buffered;
+
+	private boolean retained;
+
+	private boolean nested;
+
+	private long beginTime;
+
+	private long beginTimeMillis;
+
+	private long idNode;
+
+	private long idSequence;
+
+	private String id;
+
+	private volatile TransactionState state;
+
+	private long endTime;
+
+	private Savepoint savepoint;
+
+	private LazyStackTrace startTrace;
+
+	private LazyStackTrace completeTrace;
+
+	/**
+	 * The call site of a completed transaction, found once and shared by
+	 * every reader.
+	 */
+	private volatile String callSite;
+
+	private volatile Timeout watchdogTimeout;
+
+	TransactionInfo(TransactionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Starts the record for a new transaction, holding one reference for the
+	 * connection.
+	 */
+	void init(DataSourceMonitor dataSource, MonitorClock clock, Savepoint savepoint, long beginTime,
+			long beginTimeMillis) {
+		this.dataSource = dataSource;
+		this.clock = clock;
+		this.stackTracePolicy = dataSource.getStackTracePolicy();
+		this.retentionPolicy = dataSource.getRetentionPolicy();
+		this.beginTime = beginTime;
+		this.beginTimeMillis = beginTimeMillis;
+		TransactionIdGenerator idGenerator = dataSource.getIdGenerator();
+		this.idNode = idGenerator.node();
+		this.idSequence = idGenerator.nextSequence();
+		this.savepoint = savepoint;
+		this.retained = true;
+		this.nested = false;
+		this.buffered = retentionPolicy.isTail();
+		this.scratch = buffered && pool == null;
+		int capacity = dataSource.getMaxSqlsPerTransaction();
+		SqlLog log = sqls;
+		if (scratch) {
+			log = SqlLogPool.acquire(capacity);
+		} else if (log == null || log == SqlLog.EMPTY || log.getCapacity() != capacity) {
+			log = new SqlLog(capacity);
+		}
+		this.sqls = log;
+		// most buffered transactions are discarded, so they only capture
+		// their complete trace once they are retained
+		this.startTrace = !buffered && stackTracePolicy.captureOnBegin() ? new LazyStackTrace() : null;
+		this.callSite = null;
+		this.references = 1;
+		this.state = TransactionState.RUNNING;
+	}
+
+	public String getId() {
+		String result = id;
+		if (result == null) {
+			result = TransactionIds.format(idNode, idSequence);
+			id = result;
+		}
+		return result;
+	}
+
+	public long getIdNode() {
+		return idNode;
+	}
+
+	public long getIdSequence() {
+		return idSequence;
+	}
+
+	public String[] sqls() {
+		return getSqlLog().toArray();
+	}
+
+	/**
+	 * @return the statements; a copy while the transaction runs on a scratch
+	 *         log, which goes back to its pool when the transaction completes
+	 */
+	public SqlLog getSqlLog() {
+		SqlLog log = sqls;
+		if (!log.isScratch()) {
+			return log;
+		}
+		int generation = log.generation();
+		if (sqls != log) {
+			return sqls;
+		}
+		SqlLog copy = log.copy();
+		// the log was reset for reuse while it was copied
+		return log.generation() == generation ? copy : sqls;
+	}
+
+	/**
+	 * @return the log statements are recorded into, for the connection
+	 *         running the transaction only
+	 */
+	SqlLog log() {
+		return sqls;
+	}
+
+	public void addSql(String sql) {
+		sqls.append(SqlShapeDictionary.global().intern(sql), clock.nanoTime(), 0, SqlLog.UNKNOWN_ROWS, false, null);
+	}
+
+	int recordStatement(int shapeId, long startNanos, long elapsedNanos, long rows, boolean failed,
+			BoundParameters parameters) {
+		return sqls.append(shapeId, startNanos, elapsedNanos, rows, failed, parameters);
+	}
+
+	void recordBatch(int shapeId, long startNanos, long elapsedNanos, long rows, boolean failed, int batchSize,
+			int[] updateCounts) {
+		sqls.append(shapeId, startNanos, elapsedNanos, rows, failed, null, batchSize, updateCounts);
+	}
+
+	void setWatchdogTimeout(Timeout watchdogTimeout) {
+		this.watchdogTimeout = watchdogTimeout;
+	}
+
+	MonitorClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Takes over the statements of a savepoint released or rolled back with
+	 * an enclosing one, and the connection's reference to it.
+	 */
+	void addAll(TransactionInfo nested) {
+		sqls.appendAll(nested.sqls);
+		nested.cancelWatch();
+		if (nested.scratch) {
+			nested.scratch = false;
+			SqlLog log = nested.sqls;
+			nested.sqls = SqlLog.EMPTY;
+			SqlLogPool.release(log);
+		}
+		nested.release();
+	}
+
+	/**
+	 * Marks a savepoint opened inside a running transaction. Only the
+	 * enclosing transaction is watched for running long.
+	 */
+	void markNested() {
+		nested = true;
+	}
+
+	boolean isNested() {
+		return nested;
+	}
+
+	boolean isPooled() {
+		return pool != null;
+	}
+
+	/**
+	 * @return whether the transaction is only kept when its outcome calls for
+	 *         it
+	 */
+	boolean isBuffered() {
+		return buffered;
+	}
+
+	/**
+	 * @return false once the transaction completed and its detail was
+	 *         discarded by the retention policy
+	 */
+	boolean isRetained() {
+		return retained;
+	}
+
+	/**
+	 * Takes a reference to a pooled record. Listeners that keep an event past
+	 * their callback take one through {@link TransactionEvent#retain()}.
+	 */
+	public void retain() {
+		if (pool != null) {
+			REFERENCES.incrementAndGet(this);
+		}
+	}
+
+	/**
+	 * Takes a reference unless the record has already been released for
+	 * reuse.
+	 *
+	 * @return false if the record may already describe another transaction
+	 */
+	boolean tryRetain() {
+		if (pool == null) {
+			return true;
+		}
+		while (true) {
+			int current = references;
+			if (current <= 0) {
+				return false;
+			}
+			if (REFERENCES.compareAndSet(this, current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives back a reference. The record is reset and pooled after the last
+	 * one.
+	 */
+	public void release() {
+		if (pool == null) {
+			return;
+		}
+		int remaining = REFERENCES.decrementAndGet(this);
+		if (remaining == 0) {
+			recycle();
+		} else if (remaining < 0) {
+			throw new IllegalStateException("Transaction record released more often than retained");
+		}
+	}
+
+	private void recycle() {
+		SqlLog log = sqls;
+		if (log != SqlLog.EMPTY) {
+			log.reset();
+		}
+		dataSource = null;
+		clock = null;
+		stackTracePolicy = null;
+		retentionPolicy = null;
+		id = null;
+		savepoint = null;
+		startTrace = null;
+		completeTrace = null;
+		callSite = null;
+		watchdogTimeout = null;
+		pool.release(this);
+	}
+
+	/**
+	 * @return an unpooled record with the same content, for a reader that
+	 *         holds a reference and needs the content after releasing it
+	 */
+	TransactionInfo copy() {
+		TransactionInfo copy = new TransactionInfo(null);
+		copy.dataSource = dataSource;
+		copy.clock = clock;
+		copy.stackTracePolicy = stackTracePolicy;
+		copy.retentionPolicy = retentionPolicy;
+		copy.sqls = sqls.copy();
+		copy.buffered = buffered;
+		copy.retained = retained;
+		copy.nested = nested;
+		copy.beginTime = beginTime;
+		copy.beginTimeMillis = beginTimeMillis;
+		copy.idNode = idNode;
+		copy.idSequence = idSequence;
+		copy.id = id;
+		copy.endTime = endTime;
+		copy.savepoint = savepoint;
+		copy.startTrace = startTrace;
+		copy.completeTrace = completeTrace;
+		copy.callSite = callSite;
+		copy.state = state;
+		return copy;
+	}
+
+	/**
+	 * @return the view handed to listeners
+	 */
+	public TransactionEvent getEvent() {
+		return event;
+	}
+
+	public TransactionState getState() {
+		return state;
+	}
+
+	public boolean isComplete() {
+		return state != TransactionState.RUNNING;
+	}
+
+	public long getCost() {
+		return TimeUnit.NANOSECONDS.toMillis(getCostNanos());
+	}
+
+	public long getCostNanos() {
+		if (isComplete())
+			return endTime - beginTime;
+		return clock.nanoTime() - beginTime;
+	}
+
+	public long getBeginTimeMillis() {
+		return beginTimeMillis;
+	}
+
+	public void complete(TransactionState state) {
+		if (!isComplete()) {
+			endTime = clock.nanoTime();
+			long costNanos = endTime - beginTime;
+			retained = retentionPolicy.retain(state, costNanos);
+			if (scratch) {
+				scratch = false;
+				SqlLog log = sqls;
+				sqls = retained ? log.copy() : SqlLog.EMPTY;
+				SqlLogPool.release(log);
+			}
+			dataSource.getRetentionStatistics().record(retained);
+			if (retained && stackTracePolicy.captureOnComplete(
+					startTrace != null || (buffered && stackTracePolicy.captureOnBegin()), costNanos)) {
+				completeTrace = new LazyStackTrace();
+			}
+			if (!retained) {
+				startTrace = null;
+			}
+			this.state = state;
+			cancelWatch();
+		}
+	}
+
+	private void cancelWatch() {
+		Timeout timeout = watchdogTimeout;
+		if (timeout != null) {
+			watchdogTimeout = null;
+			if (timeout.cancel()) {
+				// the watch will not run to give back its reference
+				release();
+			}
+		}
+	}
+
+	public StackTraceElement[] getStartTrace() {
+		return LazyStackTrace.elementsOf(startTrace);
+	}
+
+	/**
+	 * @return the first frame outside the monitor that began this
+	 *         transaction, or that completed it when no begin trace was
+	 *         taken, under a tail retention policy or a threshold stack trace
+	 *         policy
+	 */
+	public String getCallSite() {
+		String result = callSite;
+		if (result == null) {
+			LazyStackTrace trace = startTrace != null ? startTrace : completeTrace;
+			result = trace == null ? CallSites.UNKNOWN : CallSites.of(trace.getElements());
+			if (isComplete()) {
+				// a running transaction may still take its complete trace
+				callSite = result;
+			}
+		}
+		return result;
+	}
+
+	public StackTraceElement[] getCompleteTrace() {
+		if (isComplete())
+			return LazyStackTrace.elementsOf(completeTrace);
+		throw new RuntimeException("There is no completeTrace when transaction has not bean completed.");
+	}
+
+	public boolean isSameTransaction(Savepoint savepoint) {
+		return this.savepoint == savepoint;
+	}
+
+	public void publishBeginEvent() {
+		publish(EventType.BEGIN);
+	}
+
+	public void publishCommitEvent() {
+		publish(EventType.COMMIT);
+	}
+
+	public void publishRollbackEvent() {
+		publish(EventType.ROLLBACK);
+	}
+
+	public void publishAbandonedEvent() {
+		publish(EventType.ABANDON);
+	}
+
+	public void publishFailedEvent() {
+		publish(EventType.FAIL);
+	}
+
+	private void publish(EventType type) {
+		DataSourceMonitor monitor = dataSource;
+		if (monitor != null) {
+			monitor.publish(this, type);
+		}
+	}
+
+}
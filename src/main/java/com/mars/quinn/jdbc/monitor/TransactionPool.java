@@ -0,0 +1,78 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped pool of released {@link TransactionInfo} records. Each stripe is a
+ * few slots emptied and filled with a CAS, and a thread starts at the stripe
+ * its id maps to, so threads rarely touch the same slots. A record released
+ * into a full stripe is left to the garbage collector.
+ */
+final class TransactionPool {
+
+	private final AtomicReferenceArray<TransactionInfo> slots;
+
+	private final int stripeMask;
+
+	private final int slotsPerStripe;
+
+	private final LongAdder created = new LongAdder();
+
+	private final LongAdder reused = new LongAdder();
+
+	TransactionPool(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()));
+		while (stripes > 1 && capacity / stripes < 4) {
+			stripes >>= 1;
+		}
+		this.stripeMask = stripes - 1;
+		this.slotsPerStripe = capacity / stripes;
+		this.slots = new AtomicReferenceArray<>(stripes * slotsPerStripe);
+	}
+
+	/**
+	 * @return a released record, or a new one when the stripe is empty
+	 */
+	TransactionInfo acquire() {
+		int base = stripe() * slotsPerStripe;
+		for (int i = base; i < base + slotsPerStripe; i++) {
+			TransactionInfo record = slots.get(i);
+			if (record != null && slots.compareAndSet(i, record, null)) {
+				reused.increment();
+				return record;
+			}
+		}
+		created.increment();
+		return new TransactionInfo(this);
+	}
+
+	void release(TransactionInfo record) {
+		int base = stripe() * slotsPerStripe;
+		for (int i = base; i < base + slotsPerStripe; i++) {
+			if (slots.get(i) == null && slots.compareAndSet(i, null, record)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return records allocated because no released one was at hand
+	 */
+	long getCreatedCount() {
+		return created.sum();
+	}
+
+	long getReusedCount() {
+		return reused.sum();
+	}
+
+	private int stripe() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & stripeMask;
+	}
+
+}
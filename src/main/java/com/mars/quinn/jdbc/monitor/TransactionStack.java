@@ -0,0 +1,140 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.sql.Savepoint;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Lock-free stack of the open transaction and its savepoints on one
+ * connection. Frames are linked from the newest down and the top is swapped
+ * with a CAS, so push, peek and pop are O(1) and unwinding to a savepoint is
+ * O(depth) with a single CAS.
+ */
+final class TransactionStack {
+
+	private static final class Frame {
+
+		final TransactionInfo transaction;
+
+		Frame next;
+
+		Frame(TransactionInfo transaction) {
+			this.transaction = transaction;
+		}
+
+	}
+
+	private final AtomicReference<Frame> top = new AtomicReference<>();
+
+	TransactionInfo peek() {
+		Frame frame = top.get();
+		return frame == null ? null : frame.transaction;
+	}
+
+	void push(TransactionInfo transaction) {
+		Frame frame = new Frame(transaction);
+		Frame current;
+		do {
+			current = top.get();
+			frame.next = current;
+		} while (!top.compareAndSet(current, frame));
+	}
+
+	/**
+	 * Pushes {@code transaction} only if the stack is empty.
+	 * 
+	 * @return null if pushed, otherwise the transaction already on top
+	 */
+	TransactionInfo pushIfEmpty(TransactionInfo transaction) {
+		Frame frame = new Frame(transaction);
+		while (!top.compareAndSet(null, frame)) {
+			Frame current = top.get();
+			if (current != null) {
+				return current.transaction;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Pops every frame down to and including the one opened by
+	 * {@code savepoint}, or down to the bottom when no frame matches. The SQL
+	 * of the frames above it is merged into it.
+	 * 
+	 * @return the transaction of the last popped frame, or null if empty
+	 */
+	TransactionInfo unwindTo(Savepoint savepoint) {
+		while (true) {
+			Frame head = top.get();
+			if (head == null) {
+				return null;
+			}
+			Frame target = find(head, savepoint, true);
+			if (top.compareAndSet(head, target.next)) {
+				mergeInto(target, head);
+				return target.transaction;
+			}
+		}
+	}
+
+	/**
+	 * Pops the frames above the one opened by {@code savepoint} and merges
+	 * their SQL into it. Nothing happens when no frame matches.
+	 */
+	void unwindAbove(Savepoint savepoint) {
+		while (true) {
+			Frame head = top.get();
+			Frame target = head == null ? null : find(head, savepoint, false);
+			if (target == null || target == head) {
+				return;
+			}
+			if (top.compareAndSet(head, target)) {
+				mergeInto(target, head);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Empties the stack.
+	 * 
+	 * @return the transactions that were open, newest first
+	 */
+	TransactionInfo[] clear() {
+		Frame head = top.getAndSet(null);
+		int depth = 0;
+		for (Frame frame = head; frame != null; frame = frame.next) {
+			depth++;
+		}
+		TransactionInfo[] transactions = new TransactionInfo[depth];
+		int i = 0;
+		for (Frame frame = head; frame != null; frame = frame.next) {
+			transactions[i++] = frame.transaction;
+		}
+		return transactions;
+	}
+
+	private static Frame find(Frame head, Savepoint savepoint, boolean bottomIfMissing) {
+		Frame frame = head;
+		while (!frame.transaction.isSameTransaction(savepoint)) {
+			if (frame.next == null) {
+				return bottomIfMissing ? frame : null;
+			}
+			frame = frame.next;
+		}
+		return frame;
+	}
+
+	/**
+	 * Appends the SQL of the frames from {@code frame} down to, not including,
+	 * {@code target}, oldest first.
+	 */
+	private static void mergeInto(Frame target, Frame frame) {
+		if (frame == target) {
+			return;
+		}
+		mergeInto(target, frame.next);
+		target.transaction.addAll(frame.transaction);
+	}
+
+}
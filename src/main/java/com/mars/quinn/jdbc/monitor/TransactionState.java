@@ -0,0 +1,14 @@
+package com.mars.quinn.jdbc.monitor;
+
+public enum TransactionState {
+	COMMIT, ROLLBACK, RUNNING,
+	/**
+	 * Still open when its connection was closed.
+	 */
+	ABANDONED,
+	/**
+	 * {@link java.sql.Connection#commit()} or
+	 * {@link java.sql.Connection#rollback()} threw.
+	 */
+	FAILED
+}
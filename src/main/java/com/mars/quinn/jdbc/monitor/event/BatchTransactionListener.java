@@ -0,0 +1,17 @@
+package com.mars.quinn.jdbc.monitor.event;
+
+/**
+ * Receives completed transactions in batches. A batch is delivered once it
+ * reaches its size limit or its oldest transaction reaches the age limit.
+ */
+public interface BatchTransactionListener {
+
+	/**
+	 * @param events
+	 *            the batch; the array is reused once this method returns
+	 * @param count
+	 *            number of events in the array
+	 */
+	public void onBatch(TransactionEvent[] events, int count);
+
+}
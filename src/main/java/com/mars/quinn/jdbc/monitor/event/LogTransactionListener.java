@@ -1,8 +1,20 @@
 package com.mars.quinn.jdbc.monitor.event;
 
+import java.util.concurrent.TimeUnit;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mars.quinn.jdbc.monitor.SqlLog;
+
+/**
+ * Logs one line per statement and one per transaction to the
+ * {@code jdbcmonitor} logger.
+ *
+ * @deprecated the text is many times larger than the transactions it
+ *             describes; use {@link com.mars.quinn.jdbc.monitor.journal.TransactionJournal}
+ */
+@Deprecated
 public class LogTransactionListener implements TransactionListener {
 
 	private static final Logger logger = LoggerFactory.getLogger("jdbcmonitor");
@@ -13,18 +25,22 @@ public class LogTransactionListener implements TransactionListener {
 
 	@Override
 	public void onCommit(TransactionEvent event) {
-		for (String sql : event.getSqls()) {
-			logger.info("Transaction: {}, sql:{}", event.transactionId(), sql);
-		}
-		logger.info("Transaction: {} commited, cost {}ms", event.transactionId(), event.getTransactionTime());
+		logSqls(event);
+		logger.info("Transaction: {} commited, cost {}us", event.transactionId(), TimeUnit.NANOSECONDS.toMicros(event.getTransactionNanos()));
 	}
 
 	@Override
 	public void onRollback(TransactionEvent event) {
-		for (String sql : event.getSqls()) {
-			logger.info("Transaction: {}, sql:{}", event.transactionId(), sql);
+		logSqls(event);
+		logger.info("Transaction: {} rollback, cost {}us", event.transactionId(), TimeUnit.NANOSECONDS.toMicros(event.getTransactionNanos()));
+	}
+
+	private void logSqls(TransactionEvent event) {
+		SqlLog sqls = event.getSqlLog();
+		for (int i = 0, size = sqls.size(); i < size; i++) {
+			logger.info("Transaction: {}, sql:{}, cost {}us{}", event.transactionId(), sqls.renderAt(i),
+					TimeUnit.NANOSECONDS.toMicros(sqls.elapsedNanosAt(i)), sqls.isFailedAt(i) ? ", failed" : "");
 		}
-		logger.info("Transaction: {} rollback, cost {}ms", event.transactionId(), event.getTransactionTime());
 	}
 
 }
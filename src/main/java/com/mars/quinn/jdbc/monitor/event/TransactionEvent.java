@@ -1,7 +1,16 @@
 package com.mars.quinn.jdbc.monitor.event;
 
-import com.mars.quinn.jdbc.monitor.ConnectionMonitor.TransactionInfo;
+import com.mars.quinn.jdbc.monitor.SqlLog;
+import com.mars.quinn.jdbc.monitor.TransactionInfo;
+import com.mars.quinn.jdbc.monitor.TransactionState;
 
+/**
+ * Read-only view of a transaction. One view belongs to each transaction and is
+ * shared by every listener and every publication, so listeners must not
+ * modify the arrays it returns. When transaction records are pooled, a view
+ * is only valid during the callback it was passed to, unless the listener
+ * calls {@link #retain()} and later {@link #release()}.
+ */
 public class TransactionEvent {
 	
 	private final TransactionInfo transaction;
@@ -10,30 +19,82 @@ public class TransactionEvent {
 		this.transaction = transaction;
 	}
 	
+	/**
+	 * @return the transaction time in milliseconds
+	 */
 	public long getTransactionTime() {
 		return transaction.getCost();
 	}
 	
+	public TransactionState getState() {
+		return transaction.getState();
+	}
+	
+	public long getTransactionNanos() {
+		return transaction.getCostNanos();
+	}
+	
+	public long getBeginTimeMillis() {
+		return transaction.getBeginTimeMillis();
+	}
+	
+	/**
+	 * @return a copy of the statements; {@link #getSqlLog()} avoids the copy
+	 */
 	public String[] getSqls() {
 		return transaction.sqls();
 	}
 	
+	/**
+	 * @return the transaction's statements, iterable without copying
+	 */
+	public SqlLog getSqlLog() {
+		return transaction.getSqlLog();
+	}
+	
 	public String transactionId() {
 		return transaction.getId();
 	}
 	
+	public long transactionNode() {
+		return transaction.getIdNode();
+	}
+	
+	public long transactionSequence() {
+		return transaction.getIdSequence();
+	}
+	
+	/**
+	 * @return the shared trace array, built on first call
+	 */
 	public StackTraceElement[] getStartTrace() {
-		int length = transaction.getStartTrace().length;
-		StackTraceElement[] trace = new StackTraceElement[length];
-		System.arraycopy(transaction.getStartTrace(), 0, trace, 0, length);
-		return trace;
+		return transaction.getStartTrace();
+	}
+	
+	/**
+	 * @return the first frame outside the monitor in the start trace, or
+	 *         "unknown" when no start trace was kept
+	 */
+	public String getCallSite() {
+		return transaction.getCallSite();
 	}
 	
+	/**
+	 * @return the shared trace array, built on first call
+	 */
 	public StackTraceElement[] getEndTrace() {
-		int length = transaction.getCompleteTrace().length;
-		StackTraceElement[] trace = new StackTraceElement[length];
-		System.arraycopy(transaction.getCompleteTrace(), 0, trace, 0, length);
-		return trace;
+		return transaction.getCompleteTrace();
+	}
+
+	/**
+	 * Keeps a pooled transaction from being reused until {@link #release()}.
+	 */
+	public void retain() {
+		transaction.retain();
+	}
+
+	public void release() {
+		transaction.release();
 	}
 
 }
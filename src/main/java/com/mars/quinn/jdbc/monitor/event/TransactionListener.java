@@ -1,5 +1,11 @@
 package com.mars.quinn.jdbc.monitor.event;
 
+/**
+ * Receives the transactions run with auto-commit off. A statement run in
+ * auto-commit mode is its own implicit transaction and produces no event; it
+ * is only counted in {@link com.mars.quinn.jdbc.monitor.AutoCommitStatistics}
+ * and the latency histograms.
+ */
 public interface TransactionListener {
 	
 	public void onBegin(TransactionEvent event);
@@ -7,5 +13,28 @@ public interface TransactionListener {
 	public void onCommit(TransactionEvent event);
 	
 	public void onRollback(TransactionEvent event);
+	
+	/**
+	 * Called from the watchdog thread while a transaction is still open and
+	 * has just been running for {@code thresholdNanos}.
+	 */
+	public default void onLongRunning(TransactionEvent event, long thresholdNanos) {
+	}
+
+	/**
+	 * Called when a connection is closed while this transaction was open.
+	 * {@link TransactionEvent#getCallSite()} names the code that began it.
+	 */
+	public default void onAbandoned(TransactionEvent event) {
+	}
+
+	/**
+	 * Called when commit or rollback threw; most databases have rolled the
+	 * transaction back by then, so this defaults to
+	 * {@link #onRollback(TransactionEvent)}.
+	 */
+	public default void onFailed(TransactionEvent event) {
+		onRollback(event);
+	}
 
 }
@@ -0,0 +1,30 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.util.Arrays;
+
+/**
+ * Bitmap of the shape or call-site IDs a segment has defined. Updates are not
+ * atomic: a bit lost to a racing update only makes a writer define the ID
+ * again, and a reader takes the last definition.
+ */
+final class IdSet {
+
+	private volatile long[] bits = new long[16];
+
+	boolean contains(int id) {
+		long[] current = bits;
+		int word = id >>> 6;
+		return word < current.length && (current[word] & (1L << id)) != 0;
+	}
+
+	void add(int id) {
+		int word = id >>> 6;
+		long[] current = bits;
+		if (word >= current.length) {
+			current = Arrays.copyOf(current, Math.max(current.length << 1, word + 1));
+			bits = current;
+		}
+		current[word] |= 1L << id;
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+import com.mars.quinn.jdbc.monitor.journal.JournalReport.CallSiteStats;
+import com.mars.quinn.jdbc.monitor.journal.JournalReport.ShapeStats;
+
+/**
+ * Scans journal segments in parallel, one fork/join task per segment, and
+ * merges what each task found into one {@link JournalReport}.
+ * <p>
+ * Run from the command line as
+ * {@code JournalAnalyzer <directory> [prefix] [top shapes] [window seconds]}.
+ */
+public final class JournalAnalyzer {
+
+	private final long windowMillis;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param window
+	 *            length of the windows transaction durations are grouped by
+	 * @param parallelism
+	 *            segments scanned at once
+	 */
+	public JournalAnalyzer(long window, TimeUnit unit, int parallelism) {
+		this.windowMillis = unit.toMillis(window);
+		if (windowMillis < 1) {
+			throw new IllegalArgumentException("window must be at least a millisecond: " + window + " " + unit);
+		}
+		this.pool = new ForkJoinPool(parallelism);
+	}
+
+	public JournalReport analyze(File... segments) {
+		return pool.invoke(new ScanTask(segments));
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private final class ScanTask extends RecursiveTask<JournalReport> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File[] segments;
+
+		ScanTask(File[] segments) {
+			this.segments = segments;
+		}
+
+		@Override
+		protected JournalReport compute() {
+			List<SegmentTask> tasks = new ArrayList<>(segments.length);
+			for (File segment : segments) {
+				tasks.add(new SegmentTask(segment));
+			}
+			invokeAll(tasks);
+			JournalReport report = new JournalReport(windowMillis);
+			for (SegmentTask task : tasks) {
+				report.merge(task.join());
+			}
+			return report;
+		}
+
+	}
+
+	private final class SegmentTask extends RecursiveTask<JournalReport> implements JournalReader.Visitor {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File segment;
+
+		private final JournalReport report = new JournalReport(windowMillis);
+
+		private final Map<Integer, String> shapeTexts = new HashMap<>();
+
+		private final Map<Integer, String> callSiteTexts = new HashMap<>();
+
+		private final Map<Integer, ShapeStats> shapes = new HashMap<>();
+
+		private final Map<Integer, CallSiteStats> callSites = new HashMap<>();
+
+		SegmentTask(File segment) {
+			this.segment = segment;
+		}
+
+		@Override
+		protected JournalReport compute() {
+			try {
+				new JournalReader(segment).read(this);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			// definitions can follow their first use, so resolve at the end
+			for (Map.Entry<Integer, ShapeStats> entry : shapes.entrySet()) {
+				report.statements(text(shapeTexts, "shape#", entry.getKey()), entry.getValue());
+			}
+			for (Map.Entry<Integer, CallSiteStats> entry : callSites.entrySet()) {
+				report.callSite(text(callSiteTexts, "callSite#", entry.getKey()), entry.getValue());
+			}
+			report.segmentRead();
+			return report;
+		}
+
+		@Override
+		public void shape(int id, String text) {
+			shapeTexts.put(id, text);
+		}
+
+		@Override
+		public void callSite(int id, String text) {
+			callSiteTexts.put(id, text);
+		}
+
+		@Override
+		public void transaction(TransactionRecord record) {
+			report.transaction(record.getBeginTimeMillis(), record.getDurationNanos(), record.getState());
+			int callSiteId = record.getCallSiteId();
+			if (callSiteId != JournalFormat.NO_CALL_SITE) {
+				CallSiteStats stats = callSites.get(callSiteId);
+				if (stats == null) {
+					stats = new CallSiteStats(null);
+					callSites.put(callSiteId, stats);
+				}
+				stats.add(record.getState());
+			}
+			for (int i = 0, count = record.getStatementCount(); i < count; i++) {
+				int shapeId = record.shapeIdAt(i);
+				ShapeStats stats = shapes.get(shapeId);
+				if (stats == null) {
+					stats = new ShapeStats(null);
+					shapes.put(shapeId, stats);
+				}
+				stats.record(record.elapsedNanosAt(i), record.isFailedAt(i));
+			}
+		}
+
+		private String text(Map<Integer, String> texts, String prefix, int id) {
+			String text = texts.get(id);
+			return text == null ? prefix + id : text;
+		}
+
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 4) {
+			System.err.println("Usage: JournalAnalyzer <directory> [prefix] [top shapes] [window seconds]");
+			System.exit(2);
+		}
+		File directory = new File(args[0]);
+		String prefix = args.length > 1 ? args[1] : "transactions";
+		int top = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		long window = args.length > 3 ? Long.parseLong(args[3]) : 3600;
+		File[] segments = JournalReader.segments(directory, prefix);
+		if (segments.length == 0) {
+			System.err.println("No " + prefix + " segments in " + directory);
+			System.exit(1);
+		}
+		JournalAnalyzer analyzer = new JournalAnalyzer(window, TimeUnit.SECONDS,
+				Runtime.getRuntime().availableProcessors());
+		long start = System.nanoTime();
+		JournalReport report = analyzer.analyze(segments);
+		analyzer.shutdown();
+		report.print(System.out, top);
+		System.out.printf("%nScanned %d segments in %d ms%n", report.getSegmentCount(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+import com.mars.quinn.jdbc.monitor.TransactionState;
+
+/**
+ * Layout of journal segment files. All values are little-endian.
+ * <p>
+ * A segment starts with a {@value #HEADER_SIZE} byte header: magic, version,
+ * creation time in epoch milliseconds and segment index. Records follow back
+ * to back, each framed as {@code int length, byte type} where the length
+ * covers the frame. The length is written last, so a zero length marks the
+ * end of the written part of the segment.
+ * <ul>
+ * <li>{@link #SHAPE} and {@link #CALL_SITE}: {@code int id, int byteLength,
+ * UTF-8 bytes}. A segment defines every shape and call site its
+ * transactions use, so segments can be read on their own.</li>
+ * <li>{@link #TRANSACTION}: {@code long idNode, long idSequence,
+ * long beginTimeMillis, long durationNanos, byte state, int callSiteId,
+ * int omittedStatements, int statementCount}, then per statement
+ * {@code int shapeId, long elapsedNanos, long rows, byte flags}.</li>
+ * </ul>
+ */
+final class JournalFormat {
+
+	static final int MAGIC = 0x4a54584a;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+
+	static final int FRAME_SIZE = 5;
+
+	static final byte SHAPE = 1;
+
+	static final byte CALL_SITE = 2;
+
+	static final byte TRANSACTION = 3;
+
+	static final int TRANSACTION_FIXED_SIZE = FRAME_SIZE + 8 + 8 + 8 + 8 + 1 + 4 + 4 + 4;
+
+	static final int STATEMENT_SIZE = 4 + 8 + 8 + 1;
+
+	static final int NO_CALL_SITE = -1;
+
+	static final byte FAILED = 1;
+
+	static final byte BATCH = 2;
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final String SUFFIX = ".journal";
+
+	private JournalFormat() {
+	}
+
+	static File segmentFile(File directory, String prefix, int index) {
+		return new File(directory, String.format("%s-%08d%s", prefix, index, SUFFIX));
+	}
+
+	static byte stateCode(TransactionState state) {
+		switch (state) {
+		case COMMIT:
+			return 1;
+		case ROLLBACK:
+			return 2;
+		case ABANDONED:
+			return 3;
+		case FAILED:
+			return 4;
+		default:
+			return 0;
+		}
+	}
+
+	static TransactionState state(byte code) {
+		switch (code) {
+		case 1:
+			return TransactionState.COMMIT;
+		case 2:
+			return TransactionState.ROLLBACK;
+		case 3:
+			return TransactionState.ABANDONED;
+		case 4:
+			return TransactionState.FAILED;
+		default:
+			return TransactionState.RUNNING;
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads one journal segment in place through a read-only mapping. Records
+ * are passed to a {@link Visitor}, transactions through one
+ * {@link TransactionRecord} view, so a scan allocates nothing per
+ * transaction. Reading stops at the first record that was never completed.
+ */
+public final class JournalReader {
+
+	public interface Visitor {
+
+		/**
+		 * Defines a shape ID of this segment. A definition may follow the
+		 * first transaction that uses it.
+		 */
+		void shape(int id, String text);
+
+		void callSite(int id, String text);
+
+		void transaction(TransactionRecord record);
+
+	}
+
+	private final File file;
+
+	private final ByteBuffer buffer;
+
+	public JournalReader(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < JournalFormat.HEADER_SIZE || length > Integer.MAX_VALUE) {
+				throw new IOException("Not a journal segment: " + file);
+			}
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+		if (buffer.getInt(0) != JournalFormat.MAGIC) {
+			throw new IOException("Not a journal segment: " + file);
+		}
+		if (buffer.getInt(4) != JournalFormat.VERSION) {
+			throw new IOException("Unsupported journal version " + buffer.getInt(4) + " in " + file);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getCreatedMillis() {
+		return buffer.getLong(8);
+	}
+
+	public int getIndex() {
+		return buffer.getInt(16);
+	}
+
+	/**
+	 * @return the number of transactions read
+	 */
+	public long read(Visitor visitor) {
+		TransactionRecord record = new TransactionRecord(buffer);
+		int limit = buffer.capacity();
+		int position = JournalFormat.HEADER_SIZE;
+		long transactions = 0;
+		while (position <= limit - JournalFormat.FRAME_SIZE) {
+			int length = buffer.getInt(position);
+			if (length < JournalFormat.FRAME_SIZE || length > limit - position) {
+				break;
+			}
+			switch (buffer.get(position + 4)) {
+			case JournalFormat.SHAPE:
+				visitor.shape(buffer.getInt(position + JournalFormat.FRAME_SIZE), text(position, length));
+				break;
+			case JournalFormat.CALL_SITE:
+				visitor.callSite(buffer.getInt(position + JournalFormat.FRAME_SIZE), text(position, length));
+				break;
+			case JournalFormat.TRANSACTION:
+				record.moveTo(position);
+				visitor.transaction(record);
+				transactions++;
+				break;
+			default:
+				// written by a later version
+			}
+			position += length;
+		}
+		return transactions;
+	}
+
+	private String text(int position, int length) {
+		int start = position + JournalFormat.FRAME_SIZE + 8;
+		int size = buffer.getInt(position + JournalFormat.FRAME_SIZE + 4);
+		byte[] bytes = new byte[Math.max(0, Math.min(size, length - JournalFormat.FRAME_SIZE - 8))];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return new String(bytes, JournalFormat.UTF_8);
+	}
+
+	/**
+	 * @return the segments of journal {@code prefix} in {@code directory},
+	 *         oldest first
+	 */
+	public static File[] segments(File directory, final String prefix) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(prefix + "-") && name.endsWith(JournalFormat.SUFFIX);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+}
@@ -0,0 +1,368 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mars.quinn.jdbc.monitor.TransactionState;
+import com.mars.quinn.jdbc.monitor.stat.HistogramRecorder;
+import com.mars.quinn.jdbc.monitor.stat.HistogramSnapshot;
+
+/**
+ * What {@link JournalAnalyzer} found in a set of segments. Shapes and call
+ * sites are keyed by their text, since IDs only hold within one segment.
+ */
+public final class JournalReport {
+
+	private final long windowMillis;
+
+	private final Map<String, ShapeStats> shapes = new HashMap<>();
+
+	private final Map<String, CallSiteStats> callSites = new HashMap<>();
+
+	private final Map<Long, WindowStats> windows = new HashMap<>();
+
+	private final HistogramRecorder statementLatency = new HistogramRecorder();
+
+	private final HistogramRecorder transactionDuration = new HistogramRecorder();
+
+	private int segmentCount;
+
+	private long transactionCount;
+
+	private long statementCount;
+
+	JournalReport(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public long getTransactionCount() {
+		return transactionCount;
+	}
+
+	public long getStatementCount() {
+		return statementCount;
+	}
+
+	public HistogramSnapshot getStatementLatency() {
+		return statementLatency.snapshot();
+	}
+
+	public HistogramSnapshot getTransactionDuration() {
+		return transactionDuration.snapshot();
+	}
+
+	/**
+	 * @return the {@code n} shapes with the most total time, most first
+	 */
+	public List<ShapeStats> getTopShapes(int n) {
+		List<ShapeStats> result = new ArrayList<>(shapes.values());
+		Collections.sort(result, new Comparator<ShapeStats>() {
+			@Override
+			public int compare(ShapeStats a, ShapeStats b) {
+				return Long.compare(b.totalNanos, a.totalNanos);
+			}
+		});
+		return result.subList(0, Math.min(n, result.size()));
+	}
+
+	/**
+	 * @return call sites, most transactions that did not commit first
+	 */
+	public List<CallSiteStats> getCallSites() {
+		List<CallSiteStats> result = new ArrayList<>(callSites.values());
+		Collections.sort(result, new Comparator<CallSiteStats>() {
+			@Override
+			public int compare(CallSiteStats a, CallSiteStats b) {
+				int byRollbacks = Long.compare(b.getRollbackCount(), a.getRollbackCount());
+				return byRollbacks != 0 ? byRollbacks : Long.compare(b.transactions, a.transactions);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @return the time windows transactions began in, oldest first
+	 */
+	public List<WindowStats> getWindows() {
+		List<WindowStats> result = new ArrayList<>(windows.values());
+		Collections.sort(result, new Comparator<WindowStats>() {
+			@Override
+			public int compare(WindowStats a, WindowStats b) {
+				return Long.compare(a.startMillis, b.startMillis);
+			}
+		});
+		return result;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	void segmentRead() {
+		segmentCount++;
+	}
+
+	void transaction(long beginTimeMillis, long durationNanos, TransactionState state) {
+		transactionCount++;
+		transactionDuration.record(durationNanos);
+		long start = beginTimeMillis - Math.floorMod(beginTimeMillis, windowMillis);
+		WindowStats window = windows.get(start);
+		if (window == null) {
+			window = new WindowStats(start);
+			windows.put(start, window);
+		}
+		window.add(durationNanos, state);
+	}
+
+	void callSite(String callSite, CallSiteStats transactions) {
+		CallSiteStats stats = callSites.get(callSite);
+		if (stats == null) {
+			stats = new CallSiteStats(callSite);
+			callSites.put(callSite, stats);
+		}
+		stats.add(transactions);
+	}
+
+	void statements(String shape, ShapeStats statements) {
+		statementCount += statements.count;
+		statementLatency.add(statements.latency);
+		ShapeStats stats = shapes.get(shape);
+		if (stats == null) {
+			stats = new ShapeStats(shape);
+			shapes.put(shape, stats);
+		}
+		stats.add(statements);
+	}
+
+	void merge(JournalReport other) {
+		segmentCount += other.segmentCount;
+		transactionCount += other.transactionCount;
+		statementCount += other.statementCount;
+		statementLatency.add(other.statementLatency);
+		transactionDuration.add(other.transactionDuration);
+		for (ShapeStats stats : other.shapes.values()) {
+			ShapeStats mine = shapes.get(stats.shape);
+			if (mine == null) {
+				shapes.put(stats.shape, stats);
+			} else {
+				mine.add(stats);
+			}
+		}
+		for (CallSiteStats stats : other.callSites.values()) {
+			CallSiteStats mine = callSites.get(stats.callSite);
+			if (mine == null) {
+				callSites.put(stats.callSite, stats);
+			} else {
+				mine.add(stats);
+			}
+		}
+		for (WindowStats stats : other.windows.values()) {
+			WindowStats mine = windows.get(stats.startMillis);
+			if (mine == null) {
+				windows.put(stats.startMillis, stats);
+			} else {
+				mine.add(stats);
+			}
+		}
+	}
+
+	/**
+	 * Prints the report with times in microseconds.
+	 */
+	public void print(PrintStream out, int top) {
+		out.printf("Segments: %d, transactions: %d, statements: %d%n", segmentCount, transactionCount,
+				statementCount);
+		out.println("Transaction duration: " + micros(getTransactionDuration()));
+		out.println("Statement latency:    " + micros(getStatementLatency()));
+		out.println();
+		out.printf("Top %d shapes by total time%n", top);
+		out.printf("%12s %10s %10s %10s %8s  %s%n", "total(ms)", "count", "mean(us)", "p99(us)", "failed", "shape");
+		for (ShapeStats stats : getTopShapes(top)) {
+			HistogramSnapshot latency = stats.getLatency();
+			out.printf("%12d %10d %10d %10d %8d  %s%n", TimeUnit.NANOSECONDS.toMillis(stats.totalNanos), stats.count,
+					toMicros(latency.getMean()), toMicros(latency.getP99()), stats.failed, stats.shape);
+		}
+		out.println();
+		out.println("Rollback rate by call site");
+		out.printf("%12s %10s %8s  %s%n", "transactions", "rollbacks", "rate", "call site");
+		for (CallSiteStats stats : getCallSites()) {
+			out.printf("%12d %10d %7.2f%%  %s%n", stats.transactions, stats.getRollbackCount(),
+					stats.getRollbackRate() * 100, stats.callSite);
+		}
+		out.println();
+		out.printf("Transaction duration per %d s window%n", TimeUnit.MILLISECONDS.toSeconds(windowMillis));
+		out.printf("%-19s %10s %10s %10s %10s %10s%n", "start", "count", "rollbacks", "p50(us)", "p99(us)",
+				"max(us)");
+		for (WindowStats stats : getWindows()) {
+			HistogramSnapshot durations = stats.getDurations();
+			out.printf("%tF %<tT %10d %10d %10d %10d %10d%n", stats.startMillis, stats.count, stats.rollbacks,
+					toMicros(durations.getP50()), toMicros(durations.getP99()), toMicros(durations.getMax()));
+		}
+	}
+
+	private static String micros(HistogramSnapshot snapshot) {
+		return "count=" + snapshot.getCount() + ", p50=" + toMicros(snapshot.getP50()) + "us, p90="
+				+ toMicros(snapshot.getP90()) + "us, p99=" + toMicros(snapshot.getP99()) + "us, p999="
+				+ toMicros(snapshot.getP999()) + "us, max=" + toMicros(snapshot.getMax()) + "us";
+	}
+
+	private static long toMicros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	public static final class ShapeStats {
+
+		private final String shape;
+
+		private final HistogramRecorder latency = new HistogramRecorder();
+
+		private long count;
+
+		private long failed;
+
+		private long totalNanos;
+
+		ShapeStats(String shape) {
+			this.shape = shape;
+		}
+
+		void record(long elapsedNanos, boolean wasFailed) {
+			count++;
+			totalNanos += elapsedNanos;
+			latency.record(elapsedNanos);
+			if (wasFailed) {
+				failed++;
+			}
+		}
+
+		void add(ShapeStats other) {
+			count += other.count;
+			failed += other.failed;
+			totalNanos += other.totalNanos;
+			latency.add(other.latency);
+		}
+
+		public String getShape() {
+			return shape;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getFailedCount() {
+			return failed;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public HistogramSnapshot getLatency() {
+			return latency.snapshot();
+		}
+
+	}
+
+	public static final class CallSiteStats {
+
+		private final String callSite;
+
+		private long transactions;
+
+		private long commits;
+
+		CallSiteStats(String callSite) {
+			this.callSite = callSite;
+		}
+
+		void add(TransactionState state) {
+			transactions++;
+			if (state == TransactionState.COMMIT) {
+				commits++;
+			}
+		}
+
+		void add(CallSiteStats other) {
+			transactions += other.transactions;
+			commits += other.commits;
+		}
+
+		public String getCallSite() {
+			return callSite;
+		}
+
+		public long getTransactionCount() {
+			return transactions;
+		}
+
+		/**
+		 * @return transactions rolled back, failed or abandoned
+		 */
+		public long getRollbackCount() {
+			return transactions - commits;
+		}
+
+		public double getRollbackRate() {
+			return transactions == 0 ? 0 : (double) getRollbackCount() / transactions;
+		}
+
+	}
+
+	public static final class WindowStats {
+
+		private final long startMillis;
+
+		private final HistogramRecorder durations = new HistogramRecorder();
+
+		private long count;
+
+		private long rollbacks;
+
+		WindowStats(long startMillis) {
+			this.startMillis = startMillis;
+		}
+
+		void add(long durationNanos, TransactionState state) {
+			count++;
+			durations.record(durationNanos);
+			if (state != TransactionState.COMMIT) {
+				rollbacks++;
+			}
+		}
+
+		void add(WindowStats other) {
+			count += other.count;
+			rollbacks += other.rollbacks;
+			durations.add(other.durations);
+		}
+
+		public long getStartMillis() {
+			return startMillis;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getRollbackCount() {
+			return rollbacks;
+		}
+
+		public HistogramSnapshot getDurations() {
+			return durations.snapshot();
+		}
+
+	}
+
+}
@@ -0,0 +1,377 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mars.quinn.jdbc.monitor.SqlLog;
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
+
+/**
+ * Listener that appends every completed transaction to memory-mapped segment
+ * files in the binary {@link JournalFormat}. A writer reserves its record with
+ * one atomic add on the segment's write position and fills it in place, so
+ * appending takes no lock and no system call. A segment that cannot take a
+ * record is replaced by the next one, the only step that locks.
+ * <p>
+ * Records reach the page cache, not the disk, until their segment is forced
+ * when the journal moves on to the next one or on {@link #close()}; until
+ * then they survive a crash of the process but not of the host.
+ */
+public class TransactionJournal implements TransactionListener, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(TransactionJournal.class);
+
+	private final File directory;
+
+	private final String prefix;
+
+	private final int segmentSize;
+
+	private final boolean recordCallSites;
+
+	private final ConcurrentHashMap<String, Integer> callSiteIds = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextCallSiteId = new AtomicInteger();
+
+	private final LongAdder written = new LongAdder();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private volatile Segment current;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param directory
+	 *            where segments are created; segments already there are kept
+	 *            and numbered past
+	 * @param segmentSize
+	 *            bytes mapped per segment
+	 * @param recordCallSites
+	 *            whether to record the call site that began each
+	 *            transaction, which needs its begin stack trace; the first
+	 *            record of a transaction's call site turns its trace into
+	 *            stack frames on the committing thread, once per transaction
+	 */
+	public TransactionJournal(File directory, String prefix, int segmentSize, boolean recordCallSites)
+			throws IOException {
+		if (segmentSize < 4096) {
+			throw new IllegalArgumentException("segmentSize must be at least 4096: " + segmentSize);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.recordCallSites = recordCallSites;
+		this.current = open(lastIndex() + 1);
+	}
+
+	/**
+	 * Creates a journal of 64 MB segments that does not record call sites.
+	 */
+	public TransactionJournal(File directory) throws IOException {
+		this(directory, "transactions", 64 << 20, false);
+	}
+
+	@Override
+	public void onBegin(TransactionEvent event) {
+	}
+
+	@Override
+	public void onCommit(TransactionEvent event) {
+		append(event);
+	}
+
+	@Override
+	public void onRollback(TransactionEvent event) {
+		append(event);
+	}
+
+	@Override
+	public void onAbandoned(TransactionEvent event) {
+		append(event);
+	}
+
+	/**
+	 * Writes a completed transaction. Statements that do not fit in one
+	 * segment are left out and counted in the record. A transaction that
+	 * does not fit in an empty segment with the definitions it needs is
+	 * dropped.
+	 */
+	public void append(TransactionEvent event) {
+		SqlLog sqls = event.getSqlLog();
+		int count = sqls.size();
+		int stored = Math.min(count, (segmentSize - JournalFormat.HEADER_SIZE - JournalFormat.TRANSACTION_FIXED_SIZE)
+				/ JournalFormat.STATEMENT_SIZE);
+		long omitted = count - stored + sqls.getOverflowCount();
+		int size = JournalFormat.TRANSACTION_FIXED_SIZE + stored * JournalFormat.STATEMENT_SIZE;
+		String callSite = recordCallSites ? event.getCallSite() : null;
+		int callSiteId = callSiteId(callSite);
+		while (!closed) {
+			Segment segment = current;
+			boolean empty = segment.isEmpty();
+			int offset = -1;
+			try {
+				int defined = define(segment, sqls, stored, callSiteId, callSite);
+				if (defined >= 0) {
+					offset = segment.reserve(size);
+				}
+				if (offset >= 0) {
+					writeTransaction(segment.buffer, offset, size, event, sqls, stored,
+							(int) Math.min(omitted, Integer.MAX_VALUE), callSiteId);
+					written.increment();
+					return;
+				}
+				int own = defined >= 0 ? defined : ~defined;
+				if (empty && segment.position.get() == JournalFormat.HEADER_SIZE + own) {
+					// alone in the segment, so another would not take it either
+					break;
+				}
+				roll(segment);
+			} catch (IOException e) {
+				logger.error("Cannot open the next journal segment", e);
+				break;
+			}
+		}
+		dropped.increment();
+	}
+
+	/**
+	 * Writes the definitions of the shapes and call site the record uses that
+	 * the segment has not defined yet.
+	 *
+	 * @return the bytes reserved for definitions, or their complement when
+	 *         the segment is full
+	 */
+	private int define(Segment segment, SqlLog sqls, int stored, int callSiteId, String callSite) {
+		SqlShapeDictionary dictionary = SqlShapeDictionary.global();
+		int reserved = 0;
+		for (int i = 0; i < stored; i++) {
+			int shapeId = sqls.shapeIdAt(i);
+			if (!segment.shapes.contains(shapeId)) {
+				int size = writeDefinition(segment, JournalFormat.SHAPE, shapeId, dictionary.shape(shapeId));
+				if (size < 0) {
+					return ~reserved;
+				}
+				reserved += size;
+				segment.shapes.add(shapeId);
+			}
+		}
+		if (callSiteId != JournalFormat.NO_CALL_SITE && !segment.callSites.contains(callSiteId)) {
+			int size = writeDefinition(segment, JournalFormat.CALL_SITE, callSiteId, callSite);
+			if (size < 0) {
+				return ~reserved;
+			}
+			reserved += size;
+			segment.callSites.add(callSiteId);
+		}
+		return reserved;
+	}
+
+	/**
+	 * @return the size of the definition, or -1 when the segment is full
+	 */
+	private static int writeDefinition(Segment segment, byte type, int id, String text) {
+		byte[] bytes = (text == null ? "" : text).getBytes(JournalFormat.UTF_8);
+		int size = JournalFormat.FRAME_SIZE + 8 + bytes.length;
+		int offset = segment.reserve(size);
+		if (offset < 0) {
+			return -1;
+		}
+		MappedByteBuffer buffer = segment.buffer;
+		int position = offset + JournalFormat.FRAME_SIZE;
+		buffer.putInt(position, id);
+		buffer.putInt(position + 4, bytes.length);
+		position += 8;
+		for (int i = 0; i < bytes.length; i++) {
+			buffer.put(position + i, bytes[i]);
+		}
+		buffer.put(offset + 4, type);
+		buffer.putInt(offset, size);
+		return size;
+	}
+
+	private static void writeTransaction(MappedByteBuffer buffer, int offset, int size, TransactionEvent event,
+			SqlLog sqls, int stored, int omitted, int callSiteId) {
+		int position = offset + JournalFormat.FRAME_SIZE;
+		buffer.putLong(position, event.transactionNode());
+		buffer.putLong(position + 8, event.transactionSequence());
+		buffer.putLong(position + 16, event.getBeginTimeMillis());
+		buffer.putLong(position + 24, event.getTransactionNanos());
+		buffer.put(position + 32, JournalFormat.stateCode(event.getState()));
+		buffer.putInt(position + 33, callSiteId);
+		buffer.putInt(position + 37, omitted);
+		buffer.putInt(position + 41, stored);
+		position += 45;
+		for (int i = 0; i < stored; i++) {
+			byte flags = 0;
+			if (sqls.isFailedAt(i)) {
+				flags |= JournalFormat.FAILED;
+			}
+			if (sqls.batchSizeAt(i) > 0) {
+				flags |= JournalFormat.BATCH;
+			}
+			buffer.putInt(position, sqls.shapeIdAt(i));
+			buffer.putLong(position + 4, sqls.elapsedNanosAt(i));
+			buffer.putLong(position + 12, sqls.rowsAt(i));
+			buffer.put(position + 20, flags);
+			position += JournalFormat.STATEMENT_SIZE;
+		}
+		buffer.put(offset + 4, JournalFormat.TRANSACTION);
+		buffer.putInt(offset, size);
+	}
+
+	private int callSiteId(String callSite) {
+		if (callSite == null) {
+			return JournalFormat.NO_CALL_SITE;
+		}
+		Integer id = callSiteIds.get(callSite);
+		if (id == null) {
+			Integer created = nextCallSiteId.getAndIncrement();
+			id = callSiteIds.putIfAbsent(callSite, created);
+			if (id == null) {
+				id = created;
+			}
+		}
+		return id;
+	}
+
+	private synchronized void roll(Segment full) throws IOException {
+		if (current == full && !closed) {
+			current = open(full.index + 1);
+			full.buffer.force();
+		}
+	}
+
+	private Segment open(int index) throws IOException {
+		File file = JournalFormat.segmentFile(directory, prefix, index);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(0, JournalFormat.MAGIC);
+			buffer.putInt(4, JournalFormat.VERSION);
+			buffer.putLong(8, System.currentTimeMillis());
+			buffer.putInt(16, index);
+			return new Segment(index, buffer, segmentSize);
+		} finally {
+			// the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	private int lastIndex() {
+		int last = 0;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(prefix + "-") && name.endsWith(JournalFormat.SUFFIX)) {
+					try {
+						last = Math.max(last, Integer.parseInt(
+								name.substring(prefix.length() + 1, name.length() - JournalFormat.SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// not a segment of this journal
+					}
+				}
+			}
+		}
+		return last;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the index of the segment being written
+	 */
+	public int getSegmentIndex() {
+		return current.index;
+	}
+
+	public long getWrittenCount() {
+		return written.sum();
+	}
+
+	/**
+	 * @return transactions not written because the journal was closed, a
+	 *         segment could not be opened or the transaction did not fit in
+	 *         one
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Stops appending and forces the current segment to disk.
+	 */
+	@Override
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			current.buffer.force();
+		}
+	}
+
+	private static final class Segment {
+
+		final int index;
+
+		final MappedByteBuffer buffer;
+
+		final int limit;
+
+		final AtomicInteger position = new AtomicInteger(JournalFormat.HEADER_SIZE);
+
+		final IdSet shapes = new IdSet();
+
+		final IdSet callSites = new IdSet();
+
+		Segment(int index, MappedByteBuffer buffer, int limit) {
+			this.index = index;
+			this.buffer = buffer;
+			this.limit = limit;
+		}
+
+		boolean isEmpty() {
+			return position.get() == JournalFormat.HEADER_SIZE;
+		}
+
+		/**
+		 * Reserves with a CAS so that the position never passes the limit,
+		 * however many writers find the segment full.
+		 * 
+		 * @return the offset of {@code size} bytes reserved for one record,
+		 *         or -1 when the segment is full
+		 */
+		int reserve(int size) {
+			while (true) {
+				int offset = position.get();
+				if (offset > limit - size) {
+					return -1;
+				}
+				if (position.compareAndSet(offset, offset + size)) {
+					return offset;
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,93 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.nio.ByteBuffer;
+
+import com.mars.quinn.jdbc.monitor.TransactionState;
+
+/**
+ * View of one transaction record in a mapped segment. The reader moves a
+ * single view from record to record, so a visitor must copy what it keeps.
+ */
+public final class TransactionRecord {
+
+	private final ByteBuffer buffer;
+
+	private int offset;
+
+	TransactionRecord(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	void moveTo(int recordOffset) {
+		this.offset = recordOffset + JournalFormat.FRAME_SIZE;
+	}
+
+	public long getIdNode() {
+		return buffer.getLong(offset);
+	}
+
+	public long getIdSequence() {
+		return buffer.getLong(offset + 8);
+	}
+
+	public long getBeginTimeMillis() {
+		return buffer.getLong(offset + 16);
+	}
+
+	public long getDurationNanos() {
+		return buffer.getLong(offset + 24);
+	}
+
+	public TransactionState getState() {
+		return JournalFormat.state(buffer.get(offset + 32));
+	}
+
+	/**
+	 * @return the segment's ID of the call site, or -1 when none was recorded
+	 */
+	public int getCallSiteId() {
+		return buffer.getInt(offset + 33);
+	}
+
+	/**
+	 * @return statements the transaction ran that are not in the record
+	 */
+	public int getOmittedStatements() {
+		return buffer.getInt(offset + 37);
+	}
+
+	public int getStatementCount() {
+		return buffer.getInt(offset + 41);
+	}
+
+	/**
+	 * @return the segment's ID of the statement's shape
+	 */
+	public int shapeIdAt(int index) {
+		return buffer.getInt(statement(index));
+	}
+
+	public long elapsedNanosAt(int index) {
+		return buffer.getLong(statement(index) + 4);
+	}
+
+	public long rowsAt(int index) {
+		return buffer.getLong(statement(index) + 12);
+	}
+
+	public boolean isFailedAt(int index) {
+		return (buffer.get(statement(index) + 20) & JournalFormat.FAILED) != 0;
+	}
+
+	public boolean isBatchAt(int index) {
+		return (buffer.get(statement(index) + 20) & JournalFormat.BATCH) != 0;
+	}
+
+	private int statement(int index) {
+		if (index < 0 || index >= getStatementCount()) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + getStatementCount());
+		}
+		return offset + 45 + index * JournalFormat.STATEMENT_SIZE;
+	}
+
+}
@@ -0,0 +1,272 @@
+package com.mars.quinn.jdbc.monitor.sql;
+
+/**
+ * Reduces a SQL statement to its shape in a single pass: literals become
+ * {@code ?}, {@code IN} lists collapse to {@code in (?)}, multi-row
+ * {@code VALUES} lists keep their first row, comments are dropped, unquoted
+ * text is lower-cased and whitespace is folded to single spaces.
+ */
+public final class SqlNormalizer {
+
+	private static final int NONE = 0;
+
+	private static final int AFTER_IN = 1;
+
+	private static final int IN_LIST = 2;
+
+	private static final int AFTER_VALUES = 1;
+
+	private static final int VALUES_ROW = 2;
+
+	private static final int AFTER_ROW = 3;
+
+	private SqlNormalizer() {
+	}
+
+	public static String normalize(String sql) {
+		int length = sql.length();
+		StringBuilder out = new StringBuilder(length);
+		boolean space = false;
+		int inState = NONE;
+		int valuesState = NONE;
+		int depth = 0;
+		boolean pendingComma = false;
+		int i = 0;
+		while (i < length) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+				i++;
+				continue;
+			}
+			if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+				i = skipLine(sql, i);
+				space = true;
+				continue;
+			}
+			if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+				i = skipBlockComment(sql, i + 2);
+				space = true;
+				continue;
+			}
+			if (c == ',' && valuesState == AFTER_ROW) {
+				int next = skipRows(sql, i);
+				if (next > i) {
+					i = next;
+					continue;
+				}
+			}
+			boolean placeholder = c == '?' || c == '\''
+					|| (isDigit(c) && (space || !isIdentifierPart(last(out))))
+					|| (c == '.' && i + 1 < length && isDigit(sql.charAt(i + 1))
+							&& (space || !isIdentifierPart(last(out))));
+			if (inState == IN_LIST) {
+				if (placeholder && pendingComma) {
+					i = skipLiteral(sql, i);
+					pendingComma = false;
+					space = false;
+					continue;
+				}
+				if (c == ',' && last(out) == '?') {
+					pendingComma = true;
+					space = false;
+					i++;
+					continue;
+				}
+				if (c == ')') {
+					inState = NONE;
+					pendingComma = false;
+					space = false;
+				} else if (!placeholder) {
+					inState = NONE;
+					if (pendingComma) {
+						out.append(',');
+						space = true;
+						pendingComma = false;
+					}
+				}
+			}
+			if (space) {
+				char previous = last(out);
+				if (previous != 0 && previous != '(' && c != ',' && c != ')') {
+					out.append(' ');
+				}
+				space = false;
+			}
+			if (placeholder) {
+				i = skipLiteral(sql, i);
+				out.append('?');
+				inState = inState == AFTER_IN ? NONE : inState;
+				valuesState = valuesState == VALUES_ROW ? VALUES_ROW : NONE;
+			} else if (c == '"' || c == '`') {
+				i = copyQuoted(sql, i, out);
+				inState = NONE;
+				valuesState = valuesState == VALUES_ROW ? VALUES_ROW : NONE;
+			} else if (isIdentifierPart(c)) {
+				int start = out.length();
+				while (i < length && isIdentifierPart(sql.charAt(i))) {
+					out.append(Character.toLowerCase(sql.charAt(i)));
+					i++;
+				}
+				inState = out.length() - start == 2 && out.charAt(start) == 'i' && out.charAt(start + 1) == 'n'
+						? AFTER_IN : NONE;
+				if (valuesState != VALUES_ROW) {
+					valuesState = out.length() - start == 6 && out.indexOf("values", start) == start
+							? AFTER_VALUES : NONE;
+				}
+			} else {
+				out.append(c);
+				i++;
+				if (c == ',') {
+					space = true;
+				}
+				inState = inState == AFTER_IN && c == '(' ? IN_LIST : inState == IN_LIST ? IN_LIST : NONE;
+				if (c == '(' && (valuesState == AFTER_VALUES || valuesState == VALUES_ROW)) {
+					valuesState = VALUES_ROW;
+					depth++;
+				} else if (c == ')' && valuesState == VALUES_ROW) {
+					valuesState = --depth == 0 ? AFTER_ROW : VALUES_ROW;
+				} else if (valuesState != VALUES_ROW) {
+					valuesState = NONE;
+				}
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Skips the rows that follow the first row of a {@code VALUES} list.
+	 * 
+	 * @param i
+	 *            the position of the comma after a row
+	 * @return the position after the last row, or {@code i} when no row
+	 *         follows the comma
+	 */
+	private static int skipRows(String sql, int i) {
+		int length = sql.length();
+		int end = i;
+		int comma = i;
+		while (comma < length && sql.charAt(comma) == ',') {
+			int j = comma + 1;
+			while (j < length && Character.isWhitespace(sql.charAt(j))) {
+				j++;
+			}
+			if (j == length || sql.charAt(j) != '(') {
+				break;
+			}
+			int depth = 0;
+			while (j < length) {
+				char c = sql.charAt(j);
+				if (c == '\'') {
+					j = skipLiteral(sql, j);
+					continue;
+				}
+				if (c == '"' || c == '`') {
+					j = copyQuoted(sql, j, new StringBuilder());
+					continue;
+				}
+				j++;
+				if (c == '(') {
+					depth++;
+				} else if (c == ')' && --depth == 0) {
+					break;
+				}
+			}
+			end = j;
+			comma = j;
+			while (comma < length && Character.isWhitespace(sql.charAt(comma))) {
+				comma++;
+			}
+		}
+		return end;
+	}
+
+	private static int skipLiteral(String sql, int i) {
+		int length = sql.length();
+		char c = sql.charAt(i);
+		if (c == '?') {
+			return i + 1;
+		}
+		if (c == '\'') {
+			i++;
+			while (i < length) {
+				char current = sql.charAt(i);
+				if (current == '\\') {
+					i += 2;
+				} else if (current == '\'') {
+					if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+						i += 2;
+					} else {
+						return i + 1;
+					}
+				} else {
+					i++;
+				}
+			}
+			return length;
+		}
+		if (c == '0' && i + 1 < length && (sql.charAt(i + 1) == 'x' || sql.charAt(i + 1) == 'X')) {
+			i += 2;
+			while (i < length && Character.digit(sql.charAt(i), 16) >= 0) {
+				i++;
+			}
+			return i;
+		}
+		while (i < length) {
+			char current = sql.charAt(i);
+			if (isDigit(current) || current == '.') {
+				i++;
+			} else if ((current == 'e' || current == 'E') && i + 1 < length
+					&& (isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '-' || sql.charAt(i + 1) == '+')) {
+				i += 2;
+			} else {
+				break;
+			}
+		}
+		return i;
+	}
+
+	private static int copyQuoted(String sql, int i, StringBuilder out) {
+		int length = sql.length();
+		char quote = sql.charAt(i);
+		out.append(quote);
+		i++;
+		while (i < length) {
+			char current = sql.charAt(i);
+			out.append(current);
+			i++;
+			if (current == quote) {
+				if (i < length && sql.charAt(i) == quote) {
+					out.append(quote);
+					i++;
+				} else {
+					break;
+				}
+			}
+		}
+		return i;
+	}
+
+	private static int skipLine(String sql, int i) {
+		int end = sql.indexOf('\n', i);
+		return end < 0 ? sql.length() : end + 1;
+	}
+
+	private static int skipBlockComment(String sql, int i) {
+		int end = sql.indexOf("*/", i);
+		return end < 0 ? sql.length() : end + 2;
+	}
+
+	private static char last(StringBuilder out) {
+		return out.length() == 0 ? 0 : out.charAt(out.length() - 1);
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.mars.quinn.jdbc.monitor.sql;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps each normalized SQL shape to a compact int ID. IDs are dense, start at
+ * 0 and are never reused, so they can index arrays. Once the dictionary holds
+ * its maximum number of shapes, new shapes share the {@link #OVERFLOW} shape
+ * and are counted.
+ */
+public final class SqlShapeDictionary {
+
+	private static final SqlShapeDictionary GLOBAL = new SqlShapeDictionary();
+
+	/**
+	 * Raw statements remembered so that a repeated statement skips normalizing.
+	 * Statements with inlined literals would otherwise grow this without bound.
+	 */
+	private static final int MAX_RAW_ENTRIES = 16384;
+
+	/**
+	 * Shapes kept by the global dictionary. Generated SQL, such as
+	 * unnormalized identifiers, would otherwise grow it without bound.
+	 */
+	private static final int MAX_SHAPES = 65536;
+
+	/**
+	 * The shape standing for every shape beyond the maximum.
+	 */
+	public static final String OVERFLOW = "/* too many sql shapes */";
+
+	private final ConcurrentHashMap<String, Integer> shapeIds = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, Integer> rawIds = new ConcurrentHashMap<>();
+
+	private volatile String[] shapes = new String[256];
+
+	private final int maxShapes;
+
+	private int size;
+
+	private int overflowId = -1;
+
+	private long overflowCount;
+
+	public SqlShapeDictionary() {
+		this(MAX_SHAPES);
+	}
+
+	SqlShapeDictionary(int maxShapes) {
+		if (maxShapes < 1) {
+			throw new IllegalArgumentException("maxShapes must be positive: " + maxShapes);
+		}
+		this.maxShapes = maxShapes;
+	}
+
+	public static SqlShapeDictionary global() {
+		return GLOBAL;
+	}
+
+	public int intern(String sql) {
+		Integer id = rawIds.get(sql);
+		if (id != null) {
+			return id;
+		}
+		String shape = SqlNormalizer.normalize(sql);
+		id = shapeIds.get(shape);
+		if (id == null) {
+			id = register(shape);
+			if (id == overflowId) {
+				// not remembered, so that every overflowing statement is counted
+				return id;
+			}
+		}
+		if (rawIds.size() < MAX_RAW_ENTRIES) {
+			rawIds.putIfAbsent(sql, id);
+		}
+		return id;
+	}
+
+	private synchronized Integer register(String shape) {
+		Integer id = shapeIds.get(shape);
+		if (id != null) {
+			return id;
+		}
+		if (overflowId >= 0 || size == maxShapes - 1) {
+			overflowCount++;
+			if (overflowId < 0) {
+				overflowId = add(OVERFLOW);
+			}
+			return overflowId;
+		}
+		id = add(shape);
+		shapeIds.put(shape, id);
+		return id;
+	}
+
+	private int add(String shape) {
+		String[] current = shapes;
+		if (size == current.length) {
+			current = Arrays.copyOf(current, size << 1);
+		}
+		current[size] = shape;
+		shapes = current;
+		return size++;
+	}
+
+	/**
+	 * @return the shape registered under {@code id}
+	 */
+	public String shape(int id) {
+		String[] current = shapes;
+		if (id < 0 || id >= current.length || current[id] == null) {
+			throw new IllegalArgumentException("Unknown sql shape: " + id);
+		}
+		return current[id];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return how many times a new shape was mapped to {@link #OVERFLOW}
+	 *         because the dictionary was full
+	 */
+	public synchronized long getOverflowCount() {
+		return overflowCount;
+	}
+
+}
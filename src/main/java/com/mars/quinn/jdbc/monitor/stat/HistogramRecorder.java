@@ -0,0 +1,42 @@
+package com.mars.quinn.jdbc.monitor.stat;
+
+/**
+ * Single-threaded counterpart of {@link LatencyHistogram} with the same
+ * buckets, for code that builds many histograms on one thread and merges them,
+ * such as offline analysis. Not safe for concurrent use.
+ */
+public final class HistogramRecorder {
+
+	private final long[] buckets = new long[LatencyHistogram.BUCKETS];
+
+	private long total;
+
+	private long max;
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets[LatencyHistogram.bucketOf(nanos)]++;
+		total += nanos;
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	/**
+	 * Adds the values recorded by {@code other}.
+	 */
+	public void add(HistogramRecorder other) {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] += other.buckets[i];
+		}
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public HistogramSnapshot snapshot() {
+		return new HistogramSnapshot(buckets.clone(), total, max);
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.mars.quinn.jdbc.monitor.stat;
+
+/**
+ * Point-in-time copy of a {@link LatencyHistogram}. All values are nanoseconds.
+ */
+public final class HistogramSnapshot {
+
+	private final long[] buckets;
+
+	private final long count;
+
+	private final long total;
+
+	private final long max;
+
+	HistogramSnapshot(long[] buckets, long total, long max) {
+		long count = 0;
+		for (long bucket : buckets) {
+			count += bucket;
+		}
+		this.buckets = buckets;
+		this.count = count;
+		this.total = total;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotal() {
+		return total;
+	}
+
+	public long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * @param quantile
+	 *            between 0 and 1
+	 * @return the upper bound of the bucket holding the quantile, never more
+	 *         than {@link #getMax()}
+	 */
+	public long valueAt(double quantile) {
+		if (quantile < 0 || quantile > 1) {
+			throw new IllegalArgumentException("quantile must be between 0 and 1: " + quantile);
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * count));
+		long seen = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			seen += buckets[i];
+			if (seen >= rank) {
+				return Math.min(LatencyHistogram.upperBoundOf(i), max);
+			}
+		}
+		return max;
+	}
+
+	public long getP50() {
+		return valueAt(0.5);
+	}
+
+	public long getP90() {
+		return valueAt(0.9);
+	}
+
+	public long getP99() {
+		return valueAt(0.99);
+	}
+
+	public long getP999() {
+		return valueAt(0.999);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + ", p50=" + getP50() + ", p90=" + getP90() + ", p99=" + getP99() + ", p999="
+				+ getP999() + ", max=" + max;
+	}
+
+}
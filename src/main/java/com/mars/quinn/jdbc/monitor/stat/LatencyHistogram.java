@@ -0,0 +1,137 @@
+package com.mars.quinn.jdbc.monitor.stat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-memory log-linear histogram of nanosecond latencies. Every power of two
+ * is split into {@link #SUB_BUCKETS} linear buckets, which bounds the relative
+ * error of a reported value to 1/{@value #SUB_BUCKETS}. Values above
+ * 2<sup>{@value #MAX_EXPONENT}</sup>ns (about 73 minutes) land in the last bucket.
+ * <p>
+ * A histogram starts with one stripe of counts, about 5 KB, and doubles the
+ * number of stripes up to one per group of threads each time writers collide
+ * on a count, so shapes run by one thread at a time stay small while hot
+ * shapes spread their writers over separate cache lines. Recording is
+ * lock-free and allocates only when a stripe is first used;
+ * {@link #snapshot()} sums the stripes while writers keep going.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+
+	static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private static final int SUB_MASK = SUB_BUCKETS - 1;
+
+	static final int MAX_EXPONENT = 42;
+
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) << SUB_BITS;
+
+	private static final int MAX_STRIPES = maxStripes();
+
+	private volatile AtomicLongArray[] stripes = { new AtomicLongArray(BUCKETS) };
+
+	private final LongAdder total = new LongAdder();
+
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		AtomicLongArray[] current = stripes;
+		int index = (int) Thread.currentThread().getId() & (current.length - 1);
+		AtomicLongArray counts = current[index];
+		if (counts == null) {
+			counts = createStripe(index);
+		}
+		int bucket = bucketOf(nanos);
+		long count = counts.get(bucket);
+		if (!counts.compareAndSet(bucket, count, count + 1)) {
+			counts.getAndIncrement(bucket);
+			grow(current);
+		}
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	public HistogramSnapshot snapshot() {
+		long[] buckets = new long[BUCKETS];
+		for (AtomicLongArray counts : stripes) {
+			if (counts != null) {
+				for (int i = 0; i < BUCKETS; i++) {
+					buckets[i] += counts.get(i);
+				}
+			}
+		}
+		return new HistogramSnapshot(buckets, total.sum(), max.get());
+	}
+
+	/**
+	 * @return the number of stripes allocated so far
+	 */
+	int getStripeCount() {
+		int count = 0;
+		for (AtomicLongArray counts : stripes) {
+			if (counts != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private synchronized AtomicLongArray createStripe(int index) {
+		AtomicLongArray[] current = stripes;
+		AtomicLongArray counts = current[index];
+		if (counts == null) {
+			counts = new AtomicLongArray(BUCKETS);
+			current[index] = counts;
+			// republish so that readers of the array see the new stripe
+			stripes = current;
+		}
+		return counts;
+	}
+
+	/**
+	 * Doubles the stripes after writers collided; stripes already in use keep
+	 * their counts and new ones are allocated by the first thread mapped to
+	 * them.
+	 */
+	private synchronized void grow(AtomicLongArray[] seen) {
+		if (stripes == seen && seen.length < MAX_STRIPES) {
+			stripes = Arrays.copyOf(seen, seen.length << 1);
+		}
+	}
+
+	static int bucketOf(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		return (exponent - SUB_BITS + 1) << SUB_BITS | (int) (nanos >>> (exponent - SUB_BITS)) & SUB_MASK;
+	}
+
+	/**
+	 * @return the largest value that falls into {@code bucket}
+	 */
+	static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+		long lower = (long) (SUB_BUCKETS | bucket & SUB_MASK) << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+	}
+
+	private static int maxStripes() {
+		int processors = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+		return Integer.highestOneBit(Math.max(processors, 1));
+	}
+
+}
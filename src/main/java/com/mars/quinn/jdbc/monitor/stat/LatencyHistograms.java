@@ -0,0 +1,71 @@
+package com.mars.quinn.jdbc.monitor.stat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
+
+/**
+ * Registry of {@link LatencyHistogram}s indexed by the shape IDs of the
+ * {@link SqlShapeDictionary}. A histogram is created on the first latency of
+ * its shape and takes about 5 KB until concurrent writers make it add
+ * stripes.
+ */
+public final class LatencyHistograms {
+
+	private static final LatencyHistograms GLOBAL = new LatencyHistograms();
+
+	private volatile LatencyHistogram[] histograms = new LatencyHistogram[64];
+
+	public static LatencyHistograms global() {
+		return GLOBAL;
+	}
+
+	public void record(int shapeId, long nanos) {
+		LatencyHistogram[] current = histograms;
+		LatencyHistogram histogram = shapeId < current.length ? current[shapeId] : null;
+		if (histogram == null) {
+			histogram = create(shapeId);
+		}
+		histogram.record(nanos);
+	}
+
+	private synchronized LatencyHistogram create(int shapeId) {
+		LatencyHistogram[] current = histograms;
+		if (shapeId >= current.length) {
+			current = Arrays.copyOf(current, Math.max(current.length << 1, Integer.highestOneBit(shapeId) << 1));
+		}
+		LatencyHistogram histogram = current[shapeId];
+		if (histogram == null) {
+			histogram = new LatencyHistogram();
+			current[shapeId] = histogram;
+		}
+		histograms = current;
+		return histogram;
+	}
+
+	/**
+	 * @return the latencies recorded for a shape, or null if none were
+	 */
+	public HistogramSnapshot snapshot(int shapeId) {
+		LatencyHistogram[] current = histograms;
+		LatencyHistogram histogram = shapeId < current.length ? current[shapeId] : null;
+		return histogram == null ? null : histogram.snapshot();
+	}
+
+	/**
+	 * @return snapshots keyed by shape ID, in ID order
+	 */
+	public Map<Integer, HistogramSnapshot> snapshotAll() {
+		LatencyHistogram[] current = histograms;
+		Map<Integer, HistogramSnapshot> snapshots = new LinkedHashMap<>();
+		for (int shapeId = 0; shapeId < current.length; shapeId++) {
+			if (current[shapeId] != null) {
+				snapshots.put(shapeId, current[shapeId].snapshot());
+			}
+		}
+		return snapshots;
+	}
+
+}
@@ -0,0 +1,251 @@
+package com.mars.quinn.jdbc.monitor.support;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel driven by one daemon thread. Scheduling and cancelling
+ * only enqueue the timeout, so both are O(1) for the calling thread; the
+ * worker moves new timeouts into their buckets and unlinks cancelled ones once
+ * per tick. Timeouts fire up to one tick late.
+ */
+public final class HashedTimingWheel {
+
+	public interface Task {
+
+		void expired(Timeout timeout);
+
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private final long tickNanos;
+
+	private final int mask;
+
+	private final Bucket[] buckets;
+
+	private final long startTime = System.nanoTime();
+
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+	private final Thread worker;
+
+	private volatile boolean running = true;
+
+	public HashedTimingWheel(String name, long tick, TimeUnit unit, int ticksPerWheel) {
+		if (tick <= 0) {
+			throw new IllegalArgumentException("tick must be positive: " + tick);
+		}
+		if (ticksPerWheel < 1 || Integer.bitCount(ticksPerWheel) != 1) {
+			throw new IllegalArgumentException("ticksPerWheel must be a power of two: " + ticksPerWheel);
+		}
+		this.tickNanos = unit.toNanos(tick);
+		this.mask = ticksPerWheel - 1;
+		this.buckets = new Bucket[ticksPerWheel];
+		for (int i = 0; i < ticksPerWheel; i++) {
+			buckets[i] = new Bucket();
+		}
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public Timeout schedule(Task task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	public void stop() {
+		running = false;
+		LockSupport.unpark(worker);
+	}
+
+	private void work() {
+		long tick = 0;
+		while (running) {
+			long deadline = waitForNextTick(tick);
+			if (!running) {
+				return;
+			}
+			removeCancelled();
+			transferPending(tick);
+			buckets[(int) tick & mask].expire(deadline);
+			tick++;
+		}
+	}
+
+	private long waitForNextTick(long tick) {
+		long target = tickNanos * (tick + 1);
+		while (running) {
+			long now = System.nanoTime() - startTime;
+			if (now >= target) {
+				return now;
+			}
+			LockSupport.parkNanos(this, target - now);
+		}
+		return target;
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void transferPending(long tick) {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = pending.poll();
+			if (timeout == null) {
+				return;
+			}
+			if (timeout.state != Timeout.INIT) {
+				continue;
+			}
+			long expiryTick = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (expiryTick - tick) / buckets.length;
+			buckets[(int) Math.max(expiryTick, tick) & mask].add(timeout);
+		}
+	}
+
+	public static final class Timeout {
+
+		private static final int INIT = 0;
+
+		private static final int CANCELLED = 1;
+
+		private static final int EXPIRED = 2;
+
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "state");
+
+		private final HashedTimingWheel wheel;
+
+		private final Task task;
+
+		private final long deadline;
+
+		private volatile int state = INIT;
+
+		private long remainingRounds;
+
+		private Bucket bucket;
+
+		private Timeout previous;
+
+		private Timeout next;
+
+		private Timeout(HashedTimingWheel wheel, Task task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false if the timeout already fired or was cancelled
+		 */
+		public boolean cancel() {
+			if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+				return false;
+			}
+			wheel.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			if (STATE.compareAndSet(this, INIT, EXPIRED)) {
+				try {
+					task.expired(this);
+				} catch (Throwable t) {
+					logger.warn("Timing wheel task failed", t);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Doubly-linked list of timeouts, only touched by the worker thread.
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.previous != null) {
+				timeout.previous.next = next;
+			}
+			if (next != null) {
+				next.previous = timeout.previous;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.previous;
+			}
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.state != Timeout.INIT) {
+					remove(timeout);
+				} else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else if (timeout.remainingRounds > 0) {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,28 @@
+package com.mars.quinn.jdbc.monitor.support;
+
+/**
+ * A call site captured as the VM's raw backtrace. The {@link StackTraceElement}
+ * array is only built the first time {@link #getElements()} is called.
+ */
+public final class LazyStackTrace {
+
+	public static final StackTraceElement[] EMPTY = new StackTraceElement[0];
+
+	private final Throwable backtrace = new Throwable();
+
+	private volatile StackTraceElement[] elements;
+
+	public StackTraceElement[] getElements() {
+		StackTraceElement[] result = elements;
+		if (result == null) {
+			result = backtrace.getStackTrace();
+			elements = result;
+		}
+		return result;
+	}
+
+	public static StackTraceElement[] elementsOf(LazyStackTrace trace) {
+		return trace == null ? EMPTY : trace.getElements();
+	}
+
+}
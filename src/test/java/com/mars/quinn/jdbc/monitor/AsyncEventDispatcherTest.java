@@ -0,0 +1,185 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.AsyncEventDispatcher.OverflowPolicy;
+import com.mars.quinn.jdbc.monitor.AsyncEventDispatcher.WaitStrategy;
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+
+public class AsyncEventDispatcherTest {
+
+	@Test
+	public void testOrderPerProducer() throws Exception {
+		final DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		final Map<String, List<Long>> sequences = new ConcurrentHashMap<>();
+		dataSource.setTransactionListeners(new CountingListener() {
+			@Override
+			public void onCommit(TransactionEvent event) {
+				String sql = event.getSqls()[0];
+				List<Long> seen = sequences.get(sql);
+				if (seen == null) {
+					seen = new ArrayList<>();
+					sequences.put(sql, seen);
+				}
+				seen.add(event.transactionSequence());
+			}
+		});
+		dataSource.enableAsyncDispatch(64, WaitStrategy.SLEEPING, OverflowPolicy.BLOCK);
+		Thread[] producers = new Thread[4];
+		for (int i = 0; i < producers.length; i++) {
+			final String sql = "update t" + i + " set a = 1";
+			producers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Connection connection = dataSource.getConnection();
+						for (int j = 0; j < 250; j++) {
+							connection.createStatement().execute(sql);
+							connection.commit();
+						}
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		AsyncEventDispatcher dispatcher = dataSource.getAsyncDispatcher();
+		dataSource.shutdown();
+		Assert.assertEquals(dispatcher.getDroppedCount(), 0);
+		Assert.assertEquals(sequences.size(), 4);
+		for (List<Long> seen : sequences.values()) {
+			Assert.assertEquals(seen.size(), 250);
+			for (int i = 1; i < seen.size(); i++) {
+				Assert.assertTrue(seen.get(i) > seen.get(i - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testDropWhenFull() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		CountingListener listener = new CountingListener();
+		dataSource.setTransactionListeners(listener);
+		dataSource.enableAsyncDispatch(2, WaitStrategy.BLOCKING, OverflowPolicy.DROP);
+		Connection connection = dataSource.getConnection();
+		for (int i = 0; i < 10; i++) {
+			connection.createStatement().execute("delete from t");
+			connection.commit();
+		}
+		AsyncEventDispatcher dispatcher = dataSource.getAsyncDispatcher();
+		// of 20 begin and commit events, the consumer has delivered at most the
+		// first begin, is stuck in the first commit and holds two in the ring
+		Assert.assertTrue(dispatcher.getDroppedCount() >= 16, "dropped " + dispatcher.getDroppedCount());
+		listener.release.countDown();
+		dataSource.shutdown();
+		Assert.assertEquals(listener.begins.get() + listener.commits.size() + dispatcher.getDroppedCount(), 20);
+	}
+
+	@Test
+	public void testBlockWhenFull() throws Exception {
+		final DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		CountingListener listener = new CountingListener();
+		dataSource.setTransactionListeners(listener);
+		dataSource.enableAsyncDispatch(2, WaitStrategy.BLOCKING, OverflowPolicy.BLOCK);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Connection connection = dataSource.getConnection();
+					for (int i = 0; i < 10; i++) {
+						connection.createStatement().execute("delete from t");
+						connection.commit();
+					}
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		});
+		producer.start();
+		producer.join(200);
+		Assert.assertTrue(producer.isAlive());
+		listener.release.countDown();
+		producer.join();
+		AsyncEventDispatcher dispatcher = dataSource.getAsyncDispatcher();
+		dataSource.shutdown();
+		Assert.assertEquals(listener.commits.size(), 10);
+		Assert.assertEquals(dispatcher.getDroppedCount(), 0);
+	}
+
+	@Test
+	public void testShutdownDrains() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class), 0, 0);
+		dataSource.setTransactionPoolSize(16);
+		CountingListener listener = new CountingListener();
+		listener.release.countDown();
+		dataSource.setTransactionListeners(listener);
+		dataSource.enableAsyncDispatch(1024, WaitStrategy.SLEEPING, OverflowPolicy.BLOCK);
+		Connection connection = dataSource.getConnection();
+		for (int i = 0; i < 100; i++) {
+			connection.createStatement().execute("delete from t");
+			connection.commit();
+		}
+		AsyncEventDispatcher dispatcher = dataSource.getAsyncDispatcher();
+		dispatcher.shutdown(1, TimeUnit.MINUTES);
+		Assert.assertEquals(listener.commits.size(), 100);
+		Assert.assertEquals(dispatcher.getBacklog(), 0);
+
+		// published after the dispatcher stopped: delivered in place and pooled
+		long reused = dataSource.getReusedTransactionCount();
+		for (int i = 0; i < 2; i++) {
+			connection.createStatement().execute("delete from t");
+			connection.commit();
+		}
+		Assert.assertEquals(listener.commits.size(), 102);
+		Assert.assertEquals(dataSource.getReusedTransactionCount(), reused + 2);
+		dataSource.shutdown();
+	}
+
+	private static class CountingListener implements TransactionListener {
+
+		final AtomicInteger begins = new AtomicInteger();
+
+		final List<Long> commits = new CopyOnWriteArrayList<>();
+
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void onBegin(TransactionEvent event) {
+			begins.incrementAndGet();
+		}
+
+		@Override
+		public void onCommit(TransactionEvent event) {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			commits.add(event.transactionSequence());
+		}
+
+		@Override
+		public void onRollback(TransactionEvent event) {
+		}
+
+	}
+
+}
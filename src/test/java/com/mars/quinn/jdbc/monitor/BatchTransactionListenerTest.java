@@ -0,0 +1,142 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.event.BatchTransactionListener;
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+
+public class BatchTransactionListenerTest {
+
+	@Test
+	public void testFlushBySize() {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		RecordingListener listener = new RecordingListener();
+		ListenerEndpoint.Batching endpoint = new ListenerEndpoint.Batching(listener, 3, TimeUnit.HOURS.toNanos(1));
+		for (int i = 0; i < 7; i++) {
+			endpoint.complete(dataSource.newTransaction(null).getEvent());
+		}
+		Assert.assertEquals(listener.sizes, Arrays.asList(3, 3));
+		endpoint.flush();
+		Assert.assertEquals(listener.sizes, Arrays.asList(3, 3, 1));
+		endpoint.flush();
+		Assert.assertEquals(listener.sizes.size(), 3);
+	}
+
+	@Test
+	public void testFlushByAge() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		RecordingListener listener = new RecordingListener();
+		ListenerEndpoint.Batching endpoint = new ListenerEndpoint.Batching(listener, 10, TimeUnit.SECONDS.toNanos(1));
+		endpoint.complete(dataSource.newTransaction(null).getEvent());
+		endpoint.flushAged(System.nanoTime());
+		Assert.assertEquals(listener.sizes.size(), 0);
+		endpoint.flushAged(System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+		Assert.assertEquals(listener.sizes, Arrays.asList(1));
+
+		final CountDownLatch delivered = new CountDownLatch(1);
+		final List<Integer> sizes = new CopyOnWriteArrayList<>();
+		dataSource.addBatchTransactionListener(new BatchTransactionListener() {
+			@Override
+			public void onBatch(TransactionEvent[] events, int count) {
+				sizes.add(count);
+				delivered.countDown();
+			}
+		}, 100, 20, TimeUnit.MILLISECONDS);
+		Connection connection = dataSource.getConnection();
+		for (int i = 0; i < 2; i++) {
+			connection.createStatement().execute("delete from t");
+			connection.commit();
+		}
+		Assert.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		dataSource.shutdown();
+		Assert.assertEquals(sizes, Arrays.asList(2));
+	}
+
+	@Test
+	public void testSpareBufferSwap() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		final CountDownLatch inListener = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingListener listener = new RecordingListener() {
+			@Override
+			public void onBatch(TransactionEvent[] events, int count) {
+				super.onBatch(events, count);
+				if (arrays.size() == 1) {
+					inListener.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		final ListenerEndpoint.Batching endpoint = new ListenerEndpoint.Batching(listener, 2,
+				TimeUnit.HOURS.toNanos(1));
+		final TransactionEvent first = dataSource.newTransaction(null).getEvent();
+		final TransactionEvent second = dataSource.newTransaction(null).getEvent();
+		endpoint.complete(first);
+		Thread flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				endpoint.complete(second);
+			}
+		});
+		flusher.start();
+		Assert.assertTrue(inListener.await(5, TimeUnit.SECONDS));
+		// the spare buffer takes events while the listener holds the full one
+		endpoint.complete(dataSource.newTransaction(null).getEvent());
+		Assert.assertEquals(listener.sizes.size(), 1);
+		release.countDown();
+		flusher.join();
+		endpoint.complete(dataSource.newTransaction(null).getEvent());
+		endpoint.complete(dataSource.newTransaction(null).getEvent());
+		endpoint.complete(dataSource.newTransaction(null).getEvent());
+		Assert.assertEquals(listener.sizes, Arrays.asList(2, 2, 2));
+		Assert.assertNotSame(listener.arrays.get(1), listener.arrays.get(0));
+		Assert.assertSame(listener.arrays.get(2), listener.arrays.get(0));
+	}
+
+	@Test
+	public void testReleaseAfterFlush() {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		dataSource.setTransactionPoolSize(16);
+		RecordingListener listener = new RecordingListener();
+		ListenerEndpoint.Batching endpoint = new ListenerEndpoint.Batching(listener, 2, TimeUnit.HOURS.toNanos(1));
+		TransactionInfo transaction = dataSource.newTransaction(null);
+		endpoint.complete(transaction.getEvent());
+		transaction.release();
+		// the pending batch still holds the record
+		Assert.assertNotSame(dataSource.newTransaction(null), transaction);
+		endpoint.flush();
+		Assert.assertSame(dataSource.newTransaction(null), transaction);
+	}
+
+	private static class RecordingListener implements BatchTransactionListener {
+
+		final List<Integer> sizes = new CopyOnWriteArrayList<>();
+
+		final List<TransactionEvent[]> arrays = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void onBatch(TransactionEvent[] events, int count) {
+			for (int i = 0; i < count; i++) {
+				Assert.assertNotNull(events[i]);
+			}
+			arrays.add(events);
+			sizes.add(count);
+		}
+
+	}
+
+}
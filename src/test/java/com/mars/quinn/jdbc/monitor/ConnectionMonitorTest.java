@@ -0,0 +1,860 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+import com.mars.quinn.jdbc.monitor.sql.SqlShapeDictionary;
+import com.mars.quinn.jdbc.monitor.stat.LatencyHistograms;
+
+public class ConnectionMonitorTest {
+
+	private DataSourceMonitor dataSource;
+
+	private List<String> events;
+
+	@BeforeMethod
+	public void setUp() {
+		dataSource = new DataSourceMonitor(stub(DataSource.class));
+		events = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				events.add("commit " + Arrays.toString(event.getSqls()));
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+				events.add("rollback " + Arrays.toString(event.getSqls()));
+			}
+
+			@Override
+			public void onAbandoned(TransactionEvent event) {
+				events.add("abandoned " + Arrays.toString(event.getSqls()) + " at " + event.getCallSite());
+			}
+		});
+	}
+
+	@Test
+	public void testRollbackToSavepoint() throws Exception {
+		Connection connection = dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		statement.executeUpdate("insert into t values (1)");
+		Savepoint savepoint = connection.setSavepoint();
+		PreparedStatement prepared = connection.prepareStatement("update t set a = ?");
+		prepared.executeUpdate();
+		Savepoint nested = connection.setSavepoint();
+		prepared.executeUpdate();
+		connection.rollback(savepoint);
+		Assert.assertEquals(events, Arrays.asList("rollback [update t set a = ?, update t set a = ?]"));
+		connection.releaseSavepoint(nested);
+		connection.commit();
+		Assert.assertEquals(events.get(1), "commit [insert into t values (?)]");
+	}
+
+	@Test
+	public void testReleaseSavepointKeepsSql() throws Exception {
+		Connection connection = dataSource.getConnection();
+		connection.createStatement().execute("delete from t");
+		Savepoint savepoint = connection.setSavepoint();
+		connection.setSavepoint();
+		connection.createStatement().execute("delete from s");
+		connection.releaseSavepoint(savepoint);
+		connection.commit();
+		Assert.assertEquals(events, Arrays.asList("commit [delete from t, delete from s]"));
+	}
+
+	@Test
+	public void testSharedEvent() throws Exception {
+		final List<TransactionEvent> seen = new ArrayList<>();
+		TransactionListener recorder = new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+				seen.add(event);
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				seen.add(event);
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+		};
+		dataSource.setTransactionListeners(recorder, recorder);
+		Connection connection = dataSource.getConnection();
+		connection.createStatement().execute("delete from t");
+		connection.commit();
+		Assert.assertEquals(seen.size(), 4);
+		TransactionEvent event = seen.get(0);
+		for (TransactionEvent other : seen) {
+			Assert.assertSame(other, event);
+		}
+		Assert.assertSame(event.getStartTrace(), event.getStartTrace());
+		Assert.assertSame(event.getSqlLog(), event.getSqlLog());
+		Assert.assertNotSame(event.getSqls(), event.getSqls());
+		Assert.assertEquals(event.getSqls(), new String[] { "delete from t" });
+	}
+
+	@Test
+	public void testCreateStatementWithOptions() throws Exception {
+		Connection connection = dataSource.getConnection();
+		Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		Assert.assertTrue(statement instanceof StatementMonitor);
+		statement.execute("delete from t");
+		statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY,
+				ResultSet.HOLD_CURSORS_OVER_COMMIT);
+		Assert.assertTrue(statement instanceof StatementMonitor);
+		statement.execute("delete from s");
+		connection.commit();
+		Assert.assertEquals(events, Arrays.asList("commit [delete from t, delete from s]"));
+	}
+
+	@Test
+	public void testStatementConnection() throws Exception {
+		Connection connection = dataSource.getConnection();
+		Assert.assertSame(connection.createStatement().getConnection(), connection);
+		Assert.assertSame(connection.prepareStatement("delete from t").getConnection(), connection);
+		Assert.assertSame(connection.prepareCall("call p()").getConnection(), connection);
+		// statements created through the returned connection are monitored too
+		connection.createStatement().getConnection().createStatement().execute("delete from t");
+		connection.commit();
+		Assert.assertEquals(events, Arrays.asList("commit [delete from t]"));
+	}
+
+	@Test
+	public void testBatch() throws Exception {
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		PreparedStatement prepared = connection.prepareStatement("update t set a = ?");
+		for (int i = 0; i < 3; i++) {
+			prepared.addBatch();
+		}
+		prepared.clearBatch();
+		prepared.addBatch();
+		prepared.addBatch();
+		prepared.executeBatch();
+		Statement statement = connection.createStatement();
+		statement.addBatch("insert into t values (1)");
+		statement.addBatch("insert into t values (2)");
+		statement.executeBatch();
+		statement.executeBatch();
+		SqlLog sqls = connection.currentTransaction().getSqlLog();
+		Assert.assertEquals(sqls.toArray(), new String[] { "update t set a = ?", "insert into t values (?)" });
+		Assert.assertEquals(sqls.batchSizeAt(0), 2);
+		Assert.assertEquals(sqls.batchSizeAt(1), 2);
+	}
+
+	@Test
+	public void testMixedBatch() throws Exception {
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		statement.addBatch("insert into t values (1)");
+		statement.addBatch("insert into t values (2)");
+		statement.addBatch("update t set a = 3");
+		statement.addBatch("insert into t values (4)");
+		statement.executeBatch();
+		SqlLog sqls = connection.currentTransaction().getSqlLog();
+		Assert.assertEquals(sqls.toArray(),
+				new String[] { "insert into t values (?)", "update t set a = ?", "insert into t values (?)" });
+		Assert.assertEquals(sqls.batchSizeAt(0), 2);
+		Assert.assertEquals(sqls.batchSizeAt(1), 1);
+		Assert.assertEquals(sqls.batchSizeAt(2), 1);
+		// a batch of one shape is still one entry
+		statement.addBatch("delete from t");
+		statement.addBatch("delete from t");
+		statement.executeBatch();
+		Assert.assertEquals(sqls.size(), 4);
+		Assert.assertEquals(sqls.batchSizeAt(3), 2);
+	}
+
+	@Test
+	public void testResultSetCounters() throws Exception {
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		StatementMonitor statement = (StatementMonitor) connection.createStatement();
+		statement.execute("select a from t");
+		ResultSet resultSet = statement.monitor(rows(2));
+		while (resultSet.next()) {
+			resultSet.getString(1);
+			resultSet.getLong(2);
+		}
+		resultSet.close();
+		statement.executeQuery("select b from t").close();
+		SqlLog sqls = connection.currentTransaction().getSqlLog();
+		Assert.assertEquals(sqls.fetchedRowsAt(0), 2);
+		Assert.assertEquals(sqls.fetchedBytesAt(0), 22);
+		Assert.assertEquals(sqls.fetchedRowsAt(1), 0);
+		Assert.assertEquals(sqls.getFetchedRows(), 2);
+		Assert.assertSame(resultSet.getStatement(), statement);
+	}
+
+	@Test
+	public void testStatementTiming() throws Exception {
+		final ManualClock clock = new ManualClock();
+		dataSource.setClock(clock);
+		final List<SqlLog> logs = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				logs.add(event.getSqlLog());
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+		});
+		Connection connection = new ConnectionMonitor(timed(Connection.class, clock, new AtomicInteger(), null),
+				dataSource);
+		Statement statement = connection.createStatement();
+		statement.executeQuery("select a from t");
+		statement.executeUpdate("update t set a = 1");
+		statement.execute("delete from t");
+		statement.executeUpdate("update t set b = 1", Statement.RETURN_GENERATED_KEYS);
+		statement.executeLargeUpdate("update t set c = 1");
+		connection.prepareStatement("select a from u").executeQuery();
+		PreparedStatement prepared = connection.prepareStatement("update u set a = ?");
+		prepared.executeUpdate();
+		prepared.executeLargeUpdate();
+		prepared.execute();
+		try {
+			statement.executeUpdate("update missing set a = 1");
+			Assert.fail();
+		} catch (SQLException expected) {
+		}
+		try {
+			connection.prepareStatement("delete from missing").execute();
+			Assert.fail();
+		} catch (SQLException expected) {
+		}
+		connection.commit();
+
+		SqlLog log = logs.get(0);
+		long u = SqlLog.UNKNOWN_ROWS;
+		long[] rows = { u, 1, u, 1, 1, u, 1, 1, u, u, u };
+		Assert.assertEquals(log.size(), rows.length);
+		long start = 0;
+		for (int i = 0; i < rows.length; i++) {
+			// the n-th execution takes n milliseconds
+			long elapsed = TimeUnit.MILLISECONDS.toNanos(i + 1);
+			Assert.assertEquals(log.startNanosAt(i), start, log.get(i));
+			Assert.assertEquals(log.elapsedNanosAt(i), elapsed, log.get(i));
+			Assert.assertEquals(log.rowsAt(i), rows[i], log.get(i));
+			Assert.assertEquals(log.isFailedAt(i), i >= 9, log.get(i));
+			start += elapsed;
+		}
+	}
+
+	@Test
+	public void testHistory() throws Exception {
+		DataSourceMonitor monitor = new DataSourceMonitor(stub(DataSource.class), 2, 1);
+		ConnectionMonitor connection = (ConnectionMonitor) monitor.getConnection();
+		for (int i = 0; i < 3; i++) {
+			connection.createStatement().execute("select " + i);
+			connection.commit();
+		}
+		Assert.assertEquals(monitor.getHistory().getTotalCount(), 3);
+		Assert.assertEquals(monitor.getHistory().snapshot().size(), 2);
+		Assert.assertEquals(connection.getHistory().snapshot().size(), 1);
+		connection.close();
+		Assert.assertEquals(monitor.getHistory().snapshot().get(1).getState(), TransactionState.COMMIT);
+	}
+
+	@Test
+	public void testConnectionRegistry() throws Exception {
+		Connection first = dataSource.getConnection();
+		Connection second = dataSource.getConnection();
+		second.createStatement().execute("select 1");
+		first.close();
+		Connection third = dataSource.getConnection();
+		Assert.assertEquals(((ConnectionMonitor) third).getRegistrySlot(), 0);
+		List<ConnectionSnapshot> snapshot = dataSource.getConnections().snapshot();
+		Assert.assertEquals(snapshot.size(), 2);
+		Assert.assertFalse(snapshot.get(0).isInTransaction());
+		Assert.assertEquals(snapshot.get(1).getStatementCount(), 1);
+		second.close();
+		third.close();
+		Assert.assertEquals(dataSource.getConnections().size(), 0);
+	}
+
+	@Test
+	public void testParameterCapture() throws Exception {
+		final List<String> rendered = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				for (int i = 0; i < event.getSqlLog().size(); i++) {
+					rendered.add(event.getSqlLog().renderAt(i));
+				}
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+		});
+		dataSource.setMaxParameterLength(4);
+		Connection connection = dataSource.getConnection();
+		PreparedStatement uncaptured = connection.prepareStatement("update t set a = ?");
+		dataSource.setCaptureParameters(true);
+		PreparedStatement prepared = connection.prepareStatement("insert into t(a, b, c, d) values (?, '?', ?, ?) -- ?");
+		prepared.setInt(1, 42);
+		prepared.setString(2, "it's long");
+		prepared.setBinaryStream(3, null, 10L);
+		prepared.executeUpdate();
+		prepared.clearParameters();
+		prepared.setNull(1, java.sql.Types.INTEGER);
+		prepared.execute();
+		PreparedStatement lobs = connection.prepareStatement("update t set a = ?, b = 'x\\'?' where c = ? and d = ?");
+		lobs.setBlob(1, stub(java.sql.Blob.class));
+		lobs.setClob(2, stub(java.sql.Clob.class));
+		lobs.setString(3, "a\\b");
+		lobs.execute();
+		uncaptured.setInt(1, 1);
+		uncaptured.execute();
+		connection.commit();
+		Assert.assertEquals(rendered, Arrays.asList(
+				"insert into t(a, b, c, d) values (42, '?', 'it\\'s'...(9 chars), <binary stream, 10>) -- ?",
+				"insert into t(a, b, c, d) values (NULL, '?', ?, ?) -- ?",
+				"update t set a = <blob, 1>, b = 'x\\'?' where c = <clob, 1> and d = 'a\\\\b'",
+				"update t set a = ?"));
+	}
+
+	@Test
+	public void testAutoCommit() throws Exception {
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		connection.setAutoCommit(true);
+		Statement statement = connection.createStatement();
+		statement.execute("select 1");
+		statement.execute("select 2");
+		Assert.assertNull(connection.currentTransaction());
+		Assert.assertEquals(dataSource.getAutoCommitStatistics().getCount(), 2);
+		connection.setAutoCommit(false);
+		statement.execute("select 3");
+		Assert.assertNotNull(connection.currentTransaction());
+		connection.setAutoCommit(true);
+		Assert.assertEquals(events, Arrays.asList("commit [select ?]"));
+		Assert.assertNull(connection.currentTransaction());
+	}
+
+	@Test
+	public void testAutoCommitLatencies() throws Exception {
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		connection.setAutoCommit(true);
+		Statement statement = connection.createStatement();
+		statement.execute("select autocommit_latency from t where id = 1");
+		statement.execute("select autocommit_latency from t where id = 2");
+		statement.addBatch("delete from autocommit_latency");
+		statement.executeBatch();
+		int shapeId = SqlShapeDictionary.global().intern("select autocommit_latency from t where id = 3");
+		Assert.assertEquals(LatencyHistograms.global().snapshot(shapeId).getCount(), 2);
+		shapeId = SqlShapeDictionary.global().intern("delete from autocommit_latency");
+		Assert.assertEquals(LatencyHistograms.global().snapshot(shapeId).getCount(), 1);
+
+		// unsampled transactions feed the histograms as well
+		dataSource.setSamplingPolicy(SamplingPolicy.rate(0));
+		connection.setAutoCommit(false);
+		connection.prepareStatement("update autocommit_latency set a = ?").executeUpdate();
+		connection.commit();
+		shapeId = SqlShapeDictionary.global().intern("update autocommit_latency set a = ?");
+		Assert.assertEquals(LatencyHistograms.global().snapshot(shapeId).getCount(), 1);
+	}
+
+	@Test
+	public void testAutoCommitNotPublished() throws Exception {
+		final List<String> seen = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+				seen.add("begin");
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				seen.add("commit " + Arrays.toString(event.getSqls()));
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+				seen.add("rollback");
+			}
+		});
+		Connection connection = dataSource.getConnection();
+		connection.setAutoCommit(true);
+		Statement statement = connection.createStatement();
+		statement.execute("delete from t");
+		connection.prepareStatement("update t set a = ?").executeUpdate();
+		connection.commit();
+		Assert.assertEquals(seen, new ArrayList<String>());
+		Assert.assertEquals(dataSource.getAutoCommitStatistics().getCount(), 2);
+		connection.setAutoCommit(false);
+		statement.execute("delete from s");
+		connection.commit();
+		Assert.assertEquals(seen, Arrays.asList("begin", "commit [delete from s]"));
+	}
+
+	@Test
+	public void testAbandonedOnClose() throws Exception {
+		Connection connection = dataSource.getConnection();
+		Statement closed = connection.createStatement();
+		closed.execute("delete from t");
+		closed.close();
+		connection.setSavepoint();
+		connection.createStatement().execute("delete from s");
+		connection.close();
+		Assert.assertEquals(events.size(), 1);
+		Assert.assertTrue(events.get(0).startsWith("abandoned [delete from t, delete from s] at "
+				+ ConnectionMonitorTest.class.getName() + ".testAbandonedOnClose"), events.get(0));
+		LeakStatistics leaks = dataSource.getLeakStatistics();
+		Assert.assertEquals(leaks.getAbandonedTransactionCount(), 1);
+		Assert.assertEquals(leaks.getUnclosedStatementCount(), 1);
+		// statement creation sites are not captured by default
+		Assert.assertEquals(leaks.getUnclosedStatements().keySet().iterator().next(), CallSites.UNKNOWN);
+	}
+
+	@Test
+	public void testUnclosedStatementsByCreationSite() throws Exception {
+		dataSource.setCaptureStatementCallSites(true);
+		Connection connection = dataSource.getConnection();
+		connection.setAutoCommit(true);
+		leakStatement(connection);
+		leakStatement(connection);
+		connection.createStatement().close();
+		connection.close();
+		Assert.assertEquals(events.size(), 0);
+		Map<String, Long> unclosed = dataSource.getLeakStatistics().getUnclosedStatements();
+		Assert.assertEquals(unclosed.size(), 1);
+		Map.Entry<String, Long> entry = unclosed.entrySet().iterator().next();
+		Assert.assertTrue(entry.getKey().startsWith(ConnectionMonitorTest.class.getName() + ".leakStatement"),
+				entry.getKey());
+		Assert.assertEquals(entry.getValue().longValue(), 2);
+
+		dataSource.setCaptureStatementCallSites(false);
+		connection = dataSource.getConnection();
+		leakStatement(connection);
+		connection.close();
+		Assert.assertEquals(dataSource.getLeakStatistics().getUnclosedStatements().get(CallSites.UNKNOWN).longValue(),
+				1);
+	}
+
+	private static void leakStatement(Connection connection) throws SQLException {
+		connection.createStatement().execute("select 1");
+	}
+
+	@Test
+	public void testPerShapeSampling() throws Exception {
+		dataSource.setSamplingPolicy(SamplingPolicy.perShape(1, TimeUnit.HOURS, 2));
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		for (int i = 0; i < 3; i++) {
+			statement.execute("update t set a = " + i);
+			statement.execute("update s set a = " + i);
+			connection.commit();
+		}
+		statement.execute("delete from t");
+		connection.commit();
+		Assert.assertEquals(events, Arrays.asList("commit [update t set a = ?, update s set a = ?]",
+				"commit [update t set a = ?, update s set a = ?]", "commit [delete from t]"));
+		SamplingStatistics statistics = dataSource.getSamplingStatistics();
+		Assert.assertEquals(statistics.getSampledCount(), 3);
+		Assert.assertEquals(statistics.getUnsampledCount(), 1);
+		Assert.assertEquals(statistics.getUnsampledStatementCount(), 2);
+	}
+
+	@Test
+	public void testUnsampledPathSkipsWrapping() throws Exception {
+		dataSource.setSamplingPolicy(SamplingPolicy.rate(0));
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		statement.execute("update t set a = 1");
+		Assert.assertFalse(statement.executeQuery("select a from t where id = 918273") instanceof ResultSetMonitor);
+		connection.commit();
+		connection.setAutoCommit(true);
+		Assert.assertFalse(statement.executeQuery("select a from t where id = 918274") instanceof ResultSetMonitor);
+
+		dataSource.setSamplingPolicy(SamplingPolicy.always());
+		connection.setAutoCommit(false);
+		Assert.assertTrue(statement.executeQuery("select a from t where id = 918275") instanceof ResultSetMonitor);
+	}
+
+	@Test
+	public void testThresholdStackTraces() throws Exception {
+		final List<TransactionEvent> committed = new ArrayList<>();
+		ManualClock clock = new ManualClock();
+		dataSource.setClock(clock);
+		dataSource.setStackTracePolicy(StackTracePolicy.threshold(10, TimeUnit.MILLISECONDS));
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+				// nothing is captured when the transaction begins
+				Assert.assertEquals(event.getStartTrace().length, 0);
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				committed.add(event);
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+		});
+		Connection connection = dataSource.getConnection();
+		connection.createStatement().execute("delete from t");
+		clock.advance(1, TimeUnit.MILLISECONDS);
+		connection.commit();
+		connection.createStatement().execute("delete from t");
+		clock.advance(10, TimeUnit.MILLISECONDS);
+		connection.commit();
+		TransactionEvent fast = committed.get(0);
+		Assert.assertEquals(fast.getEndTrace().length, 0);
+		Assert.assertEquals(fast.getCallSite(), CallSites.UNKNOWN);
+		TransactionEvent slow = committed.get(1);
+		Assert.assertEquals(slow.getStartTrace().length, 0);
+		Assert.assertTrue(slow.getEndTrace().length > 0);
+		Assert.assertTrue(slow.getCallSite().contains("testThresholdStackTraces"), slow.getCallSite());
+	}
+
+	@Test
+	public void testTailRetention() throws Exception {
+		ManualClock clock = new ManualClock();
+		dataSource.setClock(clock);
+		dataSource.setRetentionPolicy(RetentionPolicy.tail(100, TimeUnit.MILLISECONDS));
+		Connection connection = dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		statement.execute("delete from t");
+		connection.commit();
+		statement.execute("delete from s");
+		clock.advance(100, TimeUnit.MILLISECONDS);
+		connection.commit();
+		statement.execute("update t set a = 1");
+		connection.rollback();
+		Assert.assertEquals(events, Arrays.asList("commit [delete from s]", "rollback [update t set a = ?]"));
+		Assert.assertEquals(dataSource.getHistory().getTotalCount(), 2);
+		Assert.assertEquals(dataSource.getRetentionStatistics().getDiscardedCount(), 1);
+
+		Connection failing = new ConnectionMonitor((Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("commit")) {
+							throw new SQLException("connection reset");
+						}
+						return method.invoke(stub(Connection.class), args);
+					}
+				}), dataSource);
+		failing.createStatement().execute("insert into t values (1)");
+		try {
+			failing.commit();
+			Assert.fail();
+		} catch (SQLException expected) {
+		}
+		Assert.assertEquals(events.get(2), "rollback [insert into t values (?)]");
+	}
+
+	@Test
+	public void testTailRetentionScratchLog() throws Exception {
+		dataSource.setRetentionPolicy(RetentionPolicy.tail(1, TimeUnit.HOURS));
+		final List<String> sites = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+				sites.add(event.getCallSite());
+				Assert.assertEquals(event.getStartTrace().length, 0);
+			}
+		});
+		ConnectionMonitor connection = (ConnectionMonitor) dataSource.getConnection();
+		connection.createStatement().execute("delete from t");
+		TransactionInfo transaction = connection.currentTransaction();
+		Assert.assertTrue(transaction.log().isScratch());
+		// readers other than the connection get a copy of the scratch log
+		SqlLog copy = transaction.getSqlLog();
+		Assert.assertFalse(copy.isScratch());
+		connection.rollback();
+		Assert.assertEquals(copy.toArray(), new String[] { "delete from t" });
+		Assert.assertEquals(transaction.getSqlLog().toArray(), new String[] { "delete from t" });
+		Assert.assertTrue(sites.get(0).startsWith(ConnectionMonitorTest.class.getName() + ".testTailRetentionScratchLog"),
+				sites.get(0));
+	}
+
+	@Test
+	public void testTransactionPooling() throws Exception {
+		DataSourceMonitor monitor = new DataSourceMonitor(stub(DataSource.class), 0, 0);
+		monitor.setTransactionPoolSize(16);
+		final List<TransactionEvent> seen = new ArrayList<>();
+		monitor.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				seen.add(event);
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+				event.retain();
+				seen.add(event);
+			}
+		});
+		Connection connection = monitor.getConnection();
+		Statement statement = connection.createStatement();
+		statement.execute("delete from t");
+		connection.commit();
+		statement.execute("delete from s");
+		connection.commit();
+		Assert.assertSame(seen.get(1), seen.get(0));
+		Assert.assertEquals(monitor.getReusedTransactionCount(), 1);
+
+		statement.execute("update t set a = 1");
+		connection.rollback();
+		statement.execute("update s set a = 1");
+		connection.commit();
+		Assert.assertNotSame(seen.get(3), seen.get(2));
+		Assert.assertEquals(seen.get(2).getSqls(), new String[] { "update t set a = ?" });
+		seen.get(2).release();
+
+		DataSourceMonitor history = new DataSourceMonitor(stub(DataSource.class), 1, 0);
+		history.setTransactionPoolSize(16);
+		connection = history.getConnection();
+		connection.createStatement().execute("delete from t");
+		connection.commit();
+		TransactionEvent kept = history.getHistory().snapshot().get(0);
+		connection.createStatement().execute("delete from s");
+		connection.commit();
+		connection.createStatement().execute("delete from u");
+		connection.commit();
+		Assert.assertEquals(kept.getSqls(), new String[] { "delete from t" });
+		Assert.assertEquals(history.getHistory().snapshot().get(0).getSqls(), new String[] { "delete from u" });
+	}
+
+	@Test
+	public void testAdaptiveSampling() throws Exception {
+		SamplingPolicy policy = SamplingPolicy.adaptive(0.01, 0.001);
+		AdaptiveSampler sampler = policy.getAdaptiveSampler();
+		sampler.addOverhead(1000);
+		sampler.addTransaction(10000);
+		sampler.adjust();
+		Assert.assertEquals(policy.getRate(), 0.55, 1e-9);
+		sampler.addOverhead(1000000);
+		sampler.addTransaction(10000);
+		sampler.adjust();
+		Assert.assertEquals(policy.getRate(), 0.2755, 1e-9);
+
+		dataSource.setSamplingPolicy(policy);
+		Assert.assertEquals(dataSource.getEffectiveSampleRate(), 0.2755, 1e-9);
+		dataSource.setSamplingPolicy(SamplingPolicy.rate(0.25));
+		Assert.assertEquals(dataSource.getEffectiveSampleRate(), 0.25, 1e-9);
+	}
+
+	@Test
+	public void testLongTransactionDetection() throws Exception {
+		final List<Long> thresholds = new CopyOnWriteArrayList<>();
+		final CountDownLatch latch = new CountDownLatch(2);
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+
+			@Override
+			public void onLongRunning(TransactionEvent event, long thresholdNanos) {
+				thresholds.add(TimeUnit.NANOSECONDS.toMillis(thresholdNanos));
+				latch.countDown();
+			}
+		});
+		dataSource.enableLongTransactionDetection(5, TimeUnit.MILLISECONDS, 40, 20);
+		try {
+			Connection connection = dataSource.getConnection();
+			connection.createStatement().execute("select 1");
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+			connection.commit();
+			Assert.assertEquals(thresholds, Arrays.asList(20L, 40L));
+		} finally {
+			dataSource.shutdown();
+		}
+	}
+
+	@Test
+	public void testLongTransactionIgnoresSavepoints() throws Exception {
+		DataSourceMonitor monitor = new DataSourceMonitor(stub(DataSource.class), 0, 0);
+		monitor.setTransactionPoolSize(16);
+		final List<String> running = new CopyOnWriteArrayList<>();
+		monitor.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+
+			@Override
+			public void onLongRunning(TransactionEvent event, long thresholdNanos) {
+				running.add(event.transactionId());
+			}
+		});
+		monitor.enableLongTransactionDetection(5, TimeUnit.MILLISECONDS, 20, 40);
+		try {
+			Connection connection = monitor.getConnection();
+			connection.createStatement().execute("select 1");
+			Savepoint savepoint = connection.setSavepoint();
+			connection.setSavepoint();
+			connection.createStatement().execute("select 2");
+			connection.releaseSavepoint(savepoint);
+			// the merged savepoint went straight back to the pool
+			connection.setSavepoint();
+			Assert.assertEquals(monitor.getReusedTransactionCount(), 1);
+			Thread.sleep(100);
+			connection.commit();
+			Assert.assertEquals(running.size(), 2);
+			Assert.assertEquals(running.get(0), running.get(1));
+		} finally {
+			monitor.shutdown();
+		}
+	}
+
+	private static ResultSet rows(final int count) {
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+				new InvocationHandler() {
+
+					private int row;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						switch (method.getName()) {
+						case "next":
+							return ++row <= count;
+						case "getString":
+							return "abc";
+						case "getLong":
+							return 7L;
+						default:
+							return null;
+						}
+					}
+				});
+	}
+
+	/**
+	 * A driver object whose n-th execution advances {@code clock} by n
+	 * milliseconds and fails on tables named "missing".
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T timed(final Class<T> type, final ManualClock clock, final AtomicInteger executions,
+			final String sql) {
+		final T stub = stub(type);
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("createStatement")) {
+					return timed(Statement.class, clock, executions, null);
+				}
+				if (name.equals("prepareStatement")) {
+					return timed(PreparedStatement.class, clock, executions, (String) args[0]);
+				}
+				if (name.startsWith("execute")) {
+					clock.advance(executions.incrementAndGet(), TimeUnit.MILLISECONDS);
+					String executed = args != null && args.length > 0 ? (String) args[0] : sql;
+					if (executed.contains("missing")) {
+						throw new SQLException("no such table");
+					}
+				}
+				return method.invoke(stub, args);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T stub(final Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Class<?> returnType = method.getReturnType();
+				if (method.getName().equals("equals")) {
+					return proxy == args[0];
+				}
+				if (method.getName().equals("hashCode")) {
+					return System.identityHashCode(proxy);
+				}
+				if (returnType == boolean.class) {
+					return false;
+				}
+				if (returnType == int.class) {
+					return 1;
+				}
+				if (returnType == long.class) {
+					return 1L;
+				}
+				if (returnType.isInterface() && returnType.getName().startsWith("java")) {
+					return stub(returnType);
+				}
+				return null;
+			}
+		});
+	}
+
+}
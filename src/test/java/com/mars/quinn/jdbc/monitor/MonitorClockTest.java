@@ -0,0 +1,112 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+
+public class MonitorClockTest {
+
+	@Test
+	public void testCoarseClockResolution() throws Exception {
+		CoarseClock clock = new CoarseClock(20, TimeUnit.MILLISECONDS);
+		try {
+			Assert.assertEquals(clock.getTickNanos(), TimeUnit.MILLISECONDS.toNanos(20));
+			// readings within one tick are the same cached value
+			long first = clock.nanoTime();
+			int same = 0;
+			for (int i = 0; i < 1000; i++) {
+				if (clock.nanoTime() == first) {
+					same++;
+				}
+			}
+			Assert.assertTrue(same > 0);
+			long before = System.nanoTime();
+			Thread.sleep(100);
+			long advanced = clock.nanoTime() - first;
+			Assert.assertTrue(advanced > 0, "clock did not tick");
+			// never ahead of the system clock, and at most a few ticks behind
+			Assert.assertTrue(clock.nanoTime() <= System.nanoTime());
+			Assert.assertTrue(System.nanoTime() - clock.nanoTime() < TimeUnit.MILLISECONDS.toNanos(200));
+			Assert.assertTrue(Math.abs(clock.currentTimeMillis() - System.currentTimeMillis()) < 200);
+			Assert.assertTrue(clock.nanoTime() >= before - TimeUnit.MILLISECONDS.toNanos(20));
+		} finally {
+			clock.close();
+		}
+	}
+
+	@Test
+	public void testClosedCoarseClockReadsSystemClock() throws Exception {
+		CoarseClock clock = new CoarseClock(1, TimeUnit.HOURS);
+		long cached = clock.nanoTime();
+		Thread.sleep(5);
+		Assert.assertEquals(clock.nanoTime(), cached);
+		clock.close();
+		Assert.assertTrue(clock.isClosed());
+		Assert.assertTrue(clock.nanoTime() > cached);
+	}
+
+	@Test
+	public void testDataSourceClosesReplacedClock() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		CoarseClock first = new CoarseClock();
+		CoarseClock second = new CoarseClock();
+		dataSource.setClock(first);
+		dataSource.setClock(second);
+		Assert.assertTrue(first.isClosed());
+		Assert.assertFalse(second.isClosed());
+		dataSource.shutdown();
+		Assert.assertTrue(second.isClosed());
+	}
+
+	@Test
+	public void testSwitchingClocks() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		final List<Long> costs = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				costs.add(event.getTransactionNanos());
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+		});
+		ManualClock old = new ManualClock();
+		old.advance(1, TimeUnit.SECONDS);
+		dataSource.setClock(old);
+		Connection before = dataSource.getConnection();
+		before.createStatement().execute("delete from t");
+
+		// a far-off clock must not leak into the open transaction
+		ManualClock replacement = new ManualClock();
+		replacement.advance(1000, TimeUnit.SECONDS);
+		dataSource.setClock(replacement);
+		before.setSavepoint();
+		old.advance(5, TimeUnit.MILLISECONDS);
+		before.commit();
+
+		Connection after = dataSource.getConnection();
+		after.createStatement().execute("delete from t");
+		replacement.advance(7, TimeUnit.MILLISECONDS);
+		after.commit();
+		Assert.assertEquals(costs, Arrays.asList(TimeUnit.MILLISECONDS.toNanos(5),
+				TimeUnit.MILLISECONDS.toNanos(7)));
+	}
+
+}
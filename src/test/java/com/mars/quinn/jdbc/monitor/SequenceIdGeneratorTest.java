@@ -0,0 +1,62 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SequenceIdGeneratorTest {
+
+	@Test
+	public void testUniqueAndMonotonic() throws Exception {
+		final SequenceIdGenerator generator = new SequenceIdGenerator(7);
+		final Set<Long> seen = ConcurrentHashMap.newKeySet();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						long last = -1;
+						for (int j = 0; j < 10000; j++) {
+							long sequence = generator.nextSequence();
+							Assert.assertTrue(sequence > last);
+							Assert.assertTrue(seen.add(sequence), "duplicate " + sequence);
+							last = sequence;
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(seen.size(), 40000);
+		// one counter for all threads: nothing is skipped
+		Assert.assertEquals(generator.nextSequence(), 40000);
+		Assert.assertEquals(generator.node(), 7);
+	}
+
+	@Test
+	public void testFormat() {
+		Assert.assertEquals(TransactionIds.format(0x1234abcdL, 255), "000000001234abcd-00000000000000ff");
+		Assert.assertEquals(TransactionIds.format(-1L, 0), "ffffffffffffffff-0000000000000000");
+
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		dataSource.setIdGenerator(new SequenceIdGenerator(0xabcL));
+		TransactionInfo first = dataSource.newTransaction(null);
+		TransactionInfo second = dataSource.newTransaction(null);
+		Assert.assertEquals(first.getId(), "0000000000000abc-0000000000000000");
+		Assert.assertEquals(second.getId(), "0000000000000abc-0000000000000001");
+	}
+
+}
@@ -0,0 +1,99 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SqlLogTest {
+
+	@Test
+	public void testGrowsPastOneChunk() {
+		SqlLog log = new SqlLog(1000);
+		for (int i = 0; i < 300; i++) {
+			Assert.assertEquals(log.append(i, i, i * 10L, i, i % 7 == 0, null), i);
+		}
+		Assert.assertEquals(log.size(), 300);
+		Assert.assertEquals(log.getOverflowCount(), 0);
+		for (int i = 0; i < 300; i++) {
+			Assert.assertEquals(log.shapeIdAt(i), i);
+			Assert.assertEquals(log.startNanosAt(i), i);
+			Assert.assertEquals(log.elapsedNanosAt(i), i * 10L);
+			Assert.assertEquals(log.rowsAt(i), i);
+			Assert.assertEquals(log.isFailedAt(i), i % 7 == 0);
+			Assert.assertEquals(log.batchSizeAt(i), 0);
+		}
+		try {
+			log.shapeIdAt(300);
+			Assert.fail();
+		} catch (IndexOutOfBoundsException expected) {
+		}
+
+		// a reset log reuses its chunks and starts over
+		log.reset();
+		Assert.assertEquals(log.size(), 0);
+		Assert.assertEquals(log.append(5, 0, 0, SqlLog.UNKNOWN_ROWS, false, null), 0);
+		Assert.assertEquals(log.rowsAt(0), SqlLog.UNKNOWN_ROWS);
+	}
+
+	@Test
+	public void testOverflowAtCapacity() {
+		SqlLog log = new SqlLog(3);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(log.append(i, 0, 0, 0, false, null), i);
+		}
+		Assert.assertEquals(log.append(3, 0, 0, 0, false, null), -1);
+		Assert.assertEquals(log.append(4, 0, 0, 0, false, null), -1);
+		Assert.assertEquals(log.size(), 3);
+		Assert.assertEquals(log.getOverflowCount(), 2);
+		Assert.assertEquals(log.shapeIdAt(2), 2);
+
+		// a copy carries the overflow along with the entries
+		SqlLog copy = log.copy();
+		Assert.assertEquals(copy.size(), 3);
+		Assert.assertEquals(copy.getOverflowCount(), 2);
+		log.reset();
+		Assert.assertEquals(log.getOverflowCount(), 0);
+	}
+
+	@Test
+	public void testConcurrentAppendAndRead() throws Exception {
+		final int entries = 20000;
+		final SqlLog log = new SqlLog(entries);
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] readers = new Thread[3];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!done.get()) {
+							// every entry below the size a reader sees is complete
+							int size = log.size();
+							for (int j = Math.max(0, size - 200); j < size; j++) {
+								Assert.assertEquals(log.shapeIdAt(j), j);
+								Assert.assertEquals(log.elapsedNanosAt(j), j + 1L);
+								Assert.assertEquals(log.rowsAt(j), j * 2L);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			readers[i].start();
+		}
+		for (int i = 0; i < entries; i++) {
+			log.append(i, 0, i + 1L, i * 2L, false, null);
+		}
+		done.set(true);
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(log.size(), entries);
+	}
+
+}
@@ -0,0 +1,119 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+import com.mars.quinn.jdbc.monitor.event.TransactionListener;
+
+public class StackTracePolicyTest {
+
+	@Test
+	public void testNeverAndEager() {
+		StackTracePolicy never = StackTracePolicy.never();
+		Assert.assertEquals(never.getMode(), StackTracePolicy.Mode.NEVER);
+		Assert.assertFalse(never.captureOnBegin());
+		Assert.assertFalse(never.captureOnComplete(false, Long.MAX_VALUE));
+
+		StackTracePolicy eager = StackTracePolicy.eager();
+		Assert.assertEquals(eager.getMode(), StackTracePolicy.Mode.EAGER);
+		Assert.assertTrue(eager.captureOnBegin());
+		Assert.assertTrue(eager.captureOnComplete(true, 0));
+	}
+
+	@Test
+	public void testSampled() {
+		Assert.assertSame(StackTracePolicy.sampled(1), StackTracePolicy.eager());
+		StackTracePolicy sampled = StackTracePolicy.sampled(4);
+		Assert.assertEquals(sampled.getMode(), StackTracePolicy.Mode.SAMPLED);
+		int captured = 0;
+		for (int i = 0; i < 4000; i++) {
+			if (sampled.captureOnBegin()) {
+				captured++;
+			}
+		}
+		Assert.assertTrue(captured > 500 && captured < 1500, "captured " + captured);
+		// the complete trace follows the begin decision
+		Assert.assertTrue(sampled.captureOnComplete(true, 0));
+		Assert.assertFalse(sampled.captureOnComplete(false, Long.MAX_VALUE));
+		try {
+			StackTracePolicy.sampled(0);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testThreshold() {
+		StackTracePolicy threshold = StackTracePolicy.threshold(10, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(threshold.getMode(), StackTracePolicy.Mode.THRESHOLD);
+		Assert.assertFalse(threshold.captureOnBegin());
+		Assert.assertFalse(threshold.captureOnComplete(false, TimeUnit.MILLISECONDS.toNanos(10) - 1));
+		Assert.assertTrue(threshold.captureOnComplete(false, TimeUnit.MILLISECONDS.toNanos(10)));
+		try {
+			StackTracePolicy.threshold(-1, TimeUnit.MILLISECONDS);
+			Assert.fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void testPolicyOnTransactions() throws Exception {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		final List<TransactionEvent> committed = new ArrayList<>();
+		dataSource.setTransactionListeners(new TransactionListener() {
+
+			@Override
+			public void onBegin(TransactionEvent event) {
+			}
+
+			@Override
+			public void onCommit(TransactionEvent event) {
+				committed.add(event);
+			}
+
+			@Override
+			public void onRollback(TransactionEvent event) {
+			}
+		});
+		dataSource.setStackTracePolicy(StackTracePolicy.eager());
+		Connection connection = dataSource.getConnection();
+		connection.createStatement().execute("delete from t");
+		connection.commit();
+		dataSource.setStackTracePolicy(StackTracePolicy.never());
+		connection.createStatement().execute("delete from t");
+		connection.commit();
+
+		TransactionEvent eager = committed.get(0);
+		Assert.assertTrue(eager.getStartTrace().length > 0);
+		Assert.assertTrue(eager.getEndTrace().length > 0);
+		Assert.assertTrue(eager.getCallSite().contains("testPolicyOnTransactions"), eager.getCallSite());
+		TransactionEvent never = committed.get(1);
+		Assert.assertEquals(never.getStartTrace().length, 0);
+		Assert.assertEquals(never.getEndTrace().length, 0);
+		Assert.assertEquals(never.getCallSite(), CallSites.UNKNOWN);
+	}
+
+	@Test
+	public void testCallSitesSkipMonitorFrames() {
+		StackTraceElement application = new StackTraceElement("com.example.OrderService", "place",
+				"OrderService.java", 42);
+		StackTraceElement[] trace = {
+				new StackTraceElement(TransactionInfo.class.getName(), "init", "TransactionInfo.java", 1),
+				new StackTraceElement(ConnectionMonitor.class.getName(), "maybeTransaction", "ConnectionMonitor.java", 2),
+				new StackTraceElement(StatementMonitor.class.getName(), "execute", "StatementMonitor.java", 3),
+				application,
+				new StackTraceElement("com.example.OrderController", "post", "OrderController.java", 7) };
+		Assert.assertEquals(CallSites.of(trace), application.toString());
+		Assert.assertEquals(CallSites.of(new StackTraceElement[] { trace[0], trace[1] }), CallSites.UNKNOWN);
+		Assert.assertEquals(CallSites.of(new StackTraceElement[0]), CallSites.UNKNOWN);
+	}
+
+}
@@ -0,0 +1,126 @@
+package com.mars.quinn.jdbc.monitor;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.event.TransactionEvent;
+
+public class TransactionHistoryTest {
+
+	@Test
+	public void testSnapshotOrder() {
+		DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		TransactionHistory history = new TransactionHistory(3);
+		Assert.assertEquals(history.snapshot().size(), 0);
+		TransactionInfo[] added = new TransactionInfo[5];
+		for (int i = 0; i < added.length; i++) {
+			added[i] = dataSource.newTransaction(null);
+			history.add(added[i]);
+		}
+		List<TransactionEvent> snapshot = history.snapshot();
+		Assert.assertEquals(snapshot.size(), 3);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertSame(snapshot.get(i), added[i + 2].getEvent());
+		}
+		Assert.assertEquals(history.getTotalCount(), 5);
+	}
+
+	@Test
+	public void testConcurrentAddsOnSmallRing() throws Exception {
+		final DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		final TransactionHistory history = new TransactionHistory(2);
+		final int writers = 8;
+		final int adds = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[writers];
+		for (int i = 0; i < writers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					try {
+						for (int j = 0; j < adds; j++) {
+							history.add(dataSource.newTransaction(null));
+							if (j % 64 == 0) {
+								assertDistinct(history.snapshot());
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(history.getTotalCount(), (long) writers * adds);
+		// every slot holds the entry of the last lap, labelled with its sequence
+		List<TransactionEvent> snapshot = history.snapshot();
+		Assert.assertEquals(snapshot.size(), 2);
+		assertDistinct(snapshot);
+	}
+
+	@Test
+	public void testPooledReferences() throws Exception {
+		final DataSourceMonitor dataSource = new DataSourceMonitor(ConnectionMonitorTest.stub(DataSource.class));
+		dataSource.setTransactionPoolSize(64);
+		final TransactionHistory history = new TransactionHistory(2);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 10000; j++) {
+							TransactionInfo transaction = dataSource.newTransaction(null);
+							history.add(transaction);
+							transaction.release();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// a record released twice, or overwritten while still in a slot, throws
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(history.snapshot().size(), 2);
+		for (int i = 0; i < 2; i++) {
+			TransactionInfo transaction = dataSource.newTransaction(null);
+			history.add(transaction);
+			transaction.release();
+		}
+		Assert.assertEquals(history.snapshot().size(), 2);
+	}
+
+	private static void assertDistinct(List<TransactionEvent> snapshot) {
+		Assert.assertTrue(snapshot.size() <= 2, "size " + snapshot.size());
+		Set<String> ids = new HashSet<>();
+		for (TransactionEvent event : snapshot) {
+			Assert.assertTrue(ids.add(event.transactionId()), "duplicate " + event.transactionId());
+		}
+	}
+
+}
@@ -0,0 +1,229 @@
+package com.mars.quinn.jdbc.monitor.journal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.DataSourceMonitor;
+
+public class TransactionJournalTest {
+
+	@Test
+	public void testSegmentsRoll() throws Exception {
+		File directory = Files.createTempDirectory("journal").toFile();
+		TransactionJournal journal = new TransactionJournal(directory, "tx", 4096, true);
+		DataSourceMonitor dataSource = new DataSourceMonitor(stub(DataSource.class));
+		dataSource.setTransactionListeners(journal);
+		Connection connection = dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		for (int i = 0; i < 200; i++) {
+			statement.execute("update t set a = " + i);
+			connection.commit();
+		}
+		journal.close();
+		Assert.assertEquals(journal.getWrittenCount(), 200);
+		Assert.assertEquals(journal.getDroppedCount(), 0);
+		Assert.assertTrue(journal.getSegmentIndex() > 1);
+		for (int index = 1; index <= journal.getSegmentIndex(); index++) {
+			ByteBuffer segment = map(JournalFormat.segmentFile(directory, "tx", index));
+			Assert.assertEquals(segment.getInt(0), JournalFormat.MAGIC);
+			Assert.assertEquals(segment.getInt(16), index);
+			// every segment defines the shape before using it
+			Assert.assertEquals(segment.get(JournalFormat.HEADER_SIZE + 4), JournalFormat.SHAPE);
+		}
+
+		TransactionJournal next = new TransactionJournal(directory, "tx", 4096, true);
+		Assert.assertEquals(next.getSegmentIndex(), journal.getSegmentIndex() + 1);
+		next.close();
+	}
+
+	@Test
+	public void testOversizedTransactionDropped() throws Exception {
+		File directory = Files.createTempDirectory("journal").toFile();
+		TransactionJournal journal = new TransactionJournal(directory, "tx", 4096, false);
+		DataSourceMonitor dataSource = new DataSourceMonitor(stub(DataSource.class));
+		dataSource.setTransactionListeners(journal);
+		Connection connection = dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		StringBuilder sql = new StringBuilder("select c0");
+		for (int i = 1; i < 1000; i++) {
+			sql.append(", c").append(i);
+		}
+		statement.execute(sql.append(" from t").toString());
+		connection.commit();
+		statement.execute("delete from t");
+		connection.commit();
+		journal.close();
+		Assert.assertEquals(journal.getDroppedCount(), 1);
+		Assert.assertEquals(journal.getWrittenCount(), 1);
+		// the failed reservation leaves the segment open for smaller records
+		Assert.assertEquals(JournalReader.segments(directory, "tx").length, 1);
+	}
+
+	@Test
+	public void testConcurrentAppends() throws Exception {
+		File directory = Files.createTempDirectory("journal").toFile();
+		final TransactionJournal journal = new TransactionJournal(directory, "tx", 4096, true);
+		final DataSourceMonitor dataSource = new DataSourceMonitor(stub(DataSource.class));
+		dataSource.setTransactionListeners(journal);
+		final int commits = 500;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Connection connection = dataSource.getConnection();
+						Statement statement = connection.createStatement();
+						for (int j = 0; j < commits; j++) {
+							statement.execute("update t set a = " + j);
+							connection.commit();
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journal.close();
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(journal.getWrittenCount(), threads.length * commits);
+		Assert.assertEquals(journal.getDroppedCount(), 0);
+		final int[] count = new int[1];
+		for (File segment : JournalReader.segments(directory, "tx")) {
+			new JournalReader(segment).read(new JournalReader.Visitor() {
+				@Override
+				public void shape(int id, String text) {
+				}
+
+				@Override
+				public void callSite(int id, String text) {
+				}
+
+				@Override
+				public void transaction(TransactionRecord record) {
+					count[0]++;
+				}
+			});
+		}
+		// writers that found a segment full never pushed past its end
+		Assert.assertEquals(count[0], threads.length * commits);
+	}
+
+	@Test
+	public void testReadAndAnalyze() throws Exception {
+		File directory = Files.createTempDirectory("journal").toFile();
+		TransactionJournal journal = new TransactionJournal(directory, "tx", 4096, true);
+		DataSourceMonitor dataSource = new DataSourceMonitor(stub(DataSource.class));
+		dataSource.setTransactionListeners(journal);
+		Connection connection = dataSource.getConnection();
+		Statement statement = connection.createStatement();
+		for (int i = 0; i < 150; i++) {
+			statement.execute("update t set a = " + i);
+			statement.execute("select a from t where id = " + i);
+			if (i % 3 == 0) {
+				connection.rollback();
+			} else {
+				connection.commit();
+			}
+		}
+		journal.close();
+
+		File[] segments = JournalReader.segments(directory, "tx");
+		Assert.assertEquals(segments.length, journal.getSegmentIndex());
+		final int[] counts = new int[2];
+		for (File segment : segments) {
+			new JournalReader(segment).read(new JournalReader.Visitor() {
+				@Override
+				public void shape(int id, String text) {
+				}
+
+				@Override
+				public void callSite(int id, String text) {
+				}
+
+				@Override
+				public void transaction(TransactionRecord record) {
+					counts[0]++;
+					counts[1] += record.getStatementCount();
+				}
+			});
+		}
+		Assert.assertEquals(counts[0], 150);
+		Assert.assertEquals(counts[1], 300);
+
+		JournalAnalyzer analyzer = new JournalAnalyzer(1, TimeUnit.HOURS, 2);
+		JournalReport report = analyzer.analyze(segments);
+		analyzer.shutdown();
+		Assert.assertEquals(report.getSegmentCount(), segments.length);
+		Assert.assertEquals(report.getTransactionCount(), 150);
+		Assert.assertEquals(report.getStatementCount(), 300);
+		Assert.assertEquals(report.getStatementLatency().getCount(), 300);
+		// shapes defined again in every segment merge into one entry each
+		Assert.assertEquals(report.getTopShapes(10).size(), 2);
+		Assert.assertEquals(report.getTopShapes(10).get(0).getCount(), 150);
+		long transactions = 0;
+		long rollbacks = 0;
+		for (JournalReport.CallSiteStats callSite : report.getCallSites()) {
+			transactions += callSite.getTransactionCount();
+			rollbacks += callSite.getRollbackCount();
+		}
+		Assert.assertEquals(transactions, 150);
+		Assert.assertEquals(rollbacks, 50);
+		Assert.assertTrue(report.getWindows().size() >= 1);
+	}
+
+	private static ByteBuffer map(File file) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+					.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T stub(final Class<T> type) {
+		return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				Class<?> returnType = method.getReturnType();
+				if (returnType == boolean.class) {
+					return false;
+				}
+				if (returnType == int.class) {
+					return 1;
+				}
+				if (returnType == long.class) {
+					return 1L;
+				}
+				if (returnType.isInterface() && returnType.getName().startsWith("java")) {
+					return stub(returnType);
+				}
+				return null;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,83 @@
+package com.mars.quinn.jdbc.monitor.sql;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SqlNormalizerTest {
+
+	@Test
+	public void testLiterals() {
+		Assert.assertEquals(SqlNormalizer.normalize("SELECT * FROM t1 WHERE a = 'it''s' AND b = -12.5e3 AND c = 0x1F"),
+				"select * from t1 where a = ? and b = -? and c = ?");
+	}
+
+	@Test
+	public void testLiteralAfterKeyword() {
+		Assert.assertEquals(SqlNormalizer.normalize("select 1, .5 limit 10"), "select ?, ? limit ?");
+		Assert.assertEquals(SqlNormalizer.normalize("select a1, t2.c3 from t4 limit 10 offset 20"),
+				"select a1, t2.c3 from t4 limit ? offset ?");
+		Assert.assertEquals(SqlNormalizer.normalize("select 1"), SqlNormalizer.normalize("select 2"));
+	}
+
+	@Test
+	public void testInList() {
+		Assert.assertEquals(SqlNormalizer.normalize("select a from t where id in ( 1, 2 ,3) and b in (?, ?)"),
+				"select a from t where id in (?) and b in (?)");
+		Assert.assertEquals(SqlNormalizer.normalize("select a from t where id in (1, b)"),
+				"select a from t where id in (?, b)");
+		Assert.assertEquals(SqlNormalizer.normalize("select a from t where id in (select id from s)"),
+				"select a from t where id in (select id from s)");
+	}
+
+	@Test
+	public void testMultiRowValues() {
+		Assert.assertEquals(SqlNormalizer.normalize("insert into t (a, b) values (1, 'x'), (2, 'y') ,(3,now())"),
+				"insert into t (a, b) values (?, ?)");
+		Assert.assertEquals(SqlNormalizer.normalize("insert into t values (?, ?), (?, ?)"),
+				SqlNormalizer.normalize("insert into t values (?, ?)"));
+		Assert.assertEquals(
+				SqlNormalizer.normalize("insert into t values (1, '(' ), (2, ')') on duplicate key update a = values(a)"),
+				"insert into t values (?, ?) on duplicate key update a = values(a)");
+		Assert.assertEquals(SqlNormalizer.normalize("insert into t values (lower('A'), 1), (lower('B'), 2)"),
+				"insert into t values (lower(?), ?)");
+		// only rows are dropped; a select list after values is kept
+		Assert.assertEquals(SqlNormalizer.normalize("select * from (values (1), (2)) v, w"),
+				"select * from (values (?)) v, w");
+	}
+
+	@Test
+	public void testWhitespaceAndComments() {
+		Assert.assertEquals(SqlNormalizer.normalize("insert into test(a,b)\n\t values(?,  ?) -- load\n"),
+				"insert into test(a, b) values(?, ?)");
+		Assert.assertEquals(SqlNormalizer.normalize("update /* hint */ \"Tab\"  set x=1"),
+				"update \"Tab\" set x=?");
+	}
+
+	@Test
+	public void testDictionary() {
+		SqlShapeDictionary dictionary = new SqlShapeDictionary();
+		int id = dictionary.intern("select * from t where id = 1");
+		Assert.assertEquals(dictionary.intern("select *  from t where id = 2"), id);
+		Assert.assertEquals(dictionary.shape(id), "select * from t where id = ?");
+		Assert.assertNotEquals(dictionary.intern("delete from t"), id);
+		Assert.assertEquals(dictionary.getOverflowCount(), 0);
+	}
+
+	@Test
+	public void testDictionaryOverflow() {
+		SqlShapeDictionary dictionary = new SqlShapeDictionary(3);
+		int first = dictionary.intern("delete from t1");
+		int second = dictionary.intern("delete from t2");
+		int overflow = dictionary.intern("delete from t3");
+		Assert.assertEquals(dictionary.shape(overflow), SqlShapeDictionary.OVERFLOW);
+		Assert.assertEquals(dictionary.intern("delete from t4"), overflow);
+		Assert.assertEquals(dictionary.intern("delete from t3"), overflow);
+		Assert.assertEquals(dictionary.getOverflowCount(), 3);
+		Assert.assertEquals(dictionary.size(), 3);
+		// shapes registered before the limit keep their IDs
+		Assert.assertEquals(dictionary.intern("delete  from t1"), first);
+		Assert.assertEquals(dictionary.intern("delete from t2"), second);
+		Assert.assertEquals(dictionary.getOverflowCount(), 3);
+	}
+
+}
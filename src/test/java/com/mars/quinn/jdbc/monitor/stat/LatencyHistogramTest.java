@@ -0,0 +1,77 @@
+package com.mars.quinn.jdbc.monitor.stat;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		for (long value : new long[] { 0, 1, 15, 16, 31, 32, 1000, 123456789L, 1L << 40 }) {
+			int bucket = LatencyHistogram.bucketOf(value);
+			Assert.assertTrue(LatencyHistogram.upperBoundOf(bucket) >= value);
+			Assert.assertTrue(bucket == 0 || LatencyHistogram.upperBoundOf(bucket - 1) < value);
+		}
+		Assert.assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE), LatencyHistogram.BUCKETS - 1);
+	}
+
+	@Test
+	public void testPercentiles() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (long i = 1; i <= 1000; i++) {
+						histogram.record(i * 1000);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		HistogramSnapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(snapshot.getCount(), 4000);
+		Assert.assertEquals(snapshot.getMax(), 1000000);
+		assertWithin(snapshot.getP50(), 500000);
+		assertWithin(snapshot.getP99(), 990000);
+		Assert.assertEquals(snapshot.valueAt(1), 1000000);
+	}
+
+	@Test
+	public void testStripesAllocatedLazily() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		// uncontended writes never spread beyond the first stripe
+		Assert.assertEquals(histogram.getStripeCount(), 1);
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						histogram.record(7);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		HistogramSnapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(snapshot.getCount(), 801000);
+		Assert.assertTrue(histogram.getStripeCount() <= 8);
+	}
+
+	private static void assertWithin(long actual, long expected) {
+		Assert.assertTrue(Math.abs(actual - expected) <= expected / LatencyHistogram.SUB_BUCKETS,
+				actual + " is not close to " + expected);
+	}
+
+}
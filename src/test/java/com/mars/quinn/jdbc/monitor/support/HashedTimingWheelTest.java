@@ -0,0 +1,42 @@
+package com.mars.quinn.jdbc.monitor.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mars.quinn.jdbc.monitor.support.HashedTimingWheel.Timeout;
+
+public class HashedTimingWheelTest {
+
+	@Test
+	public void testExpireAndCancel() throws Exception {
+		HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", 5, TimeUnit.MILLISECONDS, 8);
+		try {
+			final CountDownLatch latch = new CountDownLatch(1);
+			final AtomicInteger cancelledRuns = new AtomicInteger();
+			Timeout cancelled = wheel.schedule(new HashedTimingWheel.Task() {
+				@Override
+				public void expired(Timeout timeout) {
+					cancelledRuns.incrementAndGet();
+				}
+			}, 20, TimeUnit.MILLISECONDS);
+			Timeout expired = wheel.schedule(new HashedTimingWheel.Task() {
+				@Override
+				public void expired(Timeout timeout) {
+					latch.countDown();
+				}
+			}, 100, TimeUnit.MILLISECONDS);
+			Assert.assertTrue(cancelled.cancel());
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+			Assert.assertTrue(expired.isExpired());
+			Assert.assertFalse(expired.cancel());
+			Assert.assertEquals(cancelledRuns.get(), 0);
+		} finally {
+			wheel.stop();
+		}
+	}
+
+}